@@ -0,0 +1,82 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+* Collects every document a query matches, for searches without a limit.
+* <p>Asking Lucene for the top maxDoc hits sizes a priority queue for the whole index up front,
+  however few documents match. This only keeps the matches, in a list that grows as they're
+  found, and sorts them once at the end, the way neo4j gathers unlimited hits itself.</p>
+*/
+public class AllHitsCollector extends Collector {
+
+  // best first; ties go to the earlier document, as they do in Lucene's own top hits.
+  private static final Comparator<ScoreDoc> BEST_FIRST = new Comparator<ScoreDoc>() {
+    public int compare(ScoreDoc a, ScoreDoc b) {
+      int byScore = Float.compare(b.score, a.score);
+      return (byScore != 0) ? byScore : (a.doc < b.doc ? -1 : (a.doc == b.doc ? 0 : 1));
+    }
+  };
+
+  private final List<ScoreDoc> hits = new ArrayList<ScoreDoc>();
+  private final float minScore;
+  private Scorer scorer;
+  private int docBase;
+  private int matches = 0;
+
+  /**
+  * @param minScore The least score a match needs to be kept
+  */
+  public AllHitsCollector(float minScore) {
+    this.minScore = minScore;
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public void setNextReader(IndexReader reader, int docBase) {
+    this.docBase = docBase;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    matches++;
+    float score = scorer.score();
+    if (score >= minScore) {
+      hits.add(new ScoreDoc(docBase + doc, score));
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    // they're all sorted at the end anyway.
+    return true;
+  }
+
+  /**
+  * @return how many documents matched, min score or not
+  */
+  public int getHitCount() {
+    return matches;
+  }
+
+  /**
+  * @return the matches with at least the min score, best first
+  */
+  public List<ScoreDoc> hits() {
+    Collections.sort(hits, BEST_FIRST);
+    return hits;
+  }
+}
@@ -0,0 +1,131 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+
+import java.util.logging.*;
+
+/**
+* Wraps a query so we can get hold of the IndexSearcher that neo4j runs it with.
+* <p>Neo4j doesn't expose its searchers, but every query it runs is asked for a Weight by
+  the searcher running it. This query passes straight through to the wrapped query, but
+  remembers that searcher and keeps its reader open until {@link #release} is called, so
+  we can ask the index about itself after the hits have been read and closed.</p>
+*/
+public class CapturingQuery extends Query {
+
+  /** The field where neo4j keeps the id of the entity a document is about. */
+  public static final String DOC_ID_KEY = "_id_";
+
+  private static final Logger log = Logger.getLogger(CapturingQuery.class.getName());
+
+  private final Query inner;
+  // shared between this query and its rewrites, since the searcher only ever sees the rewrite.
+  private final AtomicReference<IndexSearcher> captured;
+
+  /**
+  * @param inner The query to run
+  */
+  public CapturingQuery(Query inner) {
+    this(inner, new AtomicReference<IndexSearcher>());
+  }
+
+  private CapturingQuery(Query inner, AtomicReference<IndexSearcher> captured) {
+    this.inner = inner;
+    this.captured = captured;
+  }
+
+  /**
+  * @return the wrapped query
+  */
+  public Query getInner() {
+    return inner;
+  }
+
+  /**
+  * @return the searcher this query was run with, or null if it hasn't been run yet.
+            Its reader stays open until {@link #release} is called.
+  */
+  public IndexSearcher getSearcher() {
+    return captured.get();
+  }
+
+  /**
+  * Let go of the captured searcher's reader. Safe to call more than once, or if the query never ran.
+  */
+  public void release() {
+    IndexSearcher searcher = captured.getAndSet(null);
+    if (searcher != null) {
+      try {
+        searcher.getIndexReader().decRef();
+      } catch (IOException e) {
+        log.warning("Failed to release captured index reader: " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+  * Find the document neo4j keeps for a node in the captured searcher.
+  * @param nodeId The node to look for
+  * @return the document number of the node in the captured searcher, or -1 if it's not there
+  * @throws IOException if the index can't be read
+  */
+  public int findDocument(long nodeId) throws IOException {
+    IndexSearcher searcher = getSearcher();
+    if (searcher == null) {
+      return -1;
+    }
+    TopDocs docs = searcher.search(new TermQuery(new Term(DOC_ID_KEY, String.valueOf(nodeId))), 1);
+    return docs.totalHits == 0 ? -1 : docs.scoreDocs[0].doc;
+  }
+
+  @Override
+  public Weight createWeight(Searcher searcher) throws IOException {
+    if (searcher instanceof IndexSearcher && captured.get() == null) {
+      IndexSearcher indexSearcher = (IndexSearcher)searcher;
+      if (captured.compareAndSet(null, indexSearcher)) {
+        indexSearcher.getIndexReader().incRef();
+      }
+    }
+    return inner.createWeight(searcher);
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    Query rewritten = inner.rewrite(reader);
+    if (rewritten == inner) {
+      return this;
+    }
+    return new CapturingQuery(rewritten, captured);
+  }
+
+  @Override
+  public void extractTerms(Set<Term> terms) {
+    inner.extractTerms(terms);
+  }
+
+  @Override
+  public String toString(String field) {
+    return inner.toString(field);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return (o instanceof CapturingQuery) && inner.equals(((CapturingQuery)o).inner);
+  }
+
+  @Override
+  public int hashCode() {
+    return inner.hashCode() ^ 0x43415054;
+  }
+}
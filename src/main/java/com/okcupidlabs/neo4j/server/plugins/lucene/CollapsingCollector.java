@@ -0,0 +1,142 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+* Collects the best-scoring hit for each value of an index key, so one value can't crowd the
+  others out of the top hits.
+* <p>Values are read from the field cache, one term per document, so the key should be
+  indexed exactly, like an author id, rather than as analyzed text. Hits without a value
+  aren't collapsed with anything. Only the best hit of each value is kept while collecting,
+  so memory grows with the number of distinct values matched, not the number of hits.</p>
+*/
+public class CollapsingCollector extends Collector {
+
+  /**
+  * The best hit for one value.
+  */
+  public static class Group extends ScoreDoc {
+    private final String value;
+
+    Group(String value, int doc, float score) {
+      super(doc, score);
+      this.value = value;
+    }
+
+    /**
+    * @return the key's value, or null for a hit that had none
+    */
+    public String getValue() {
+      return value;
+    }
+
+    /**
+    * @return the document number of the best hit, in the whole index
+    */
+    public int getDoc() {
+      return doc;
+    }
+
+    /**
+    * @return the score of the best hit
+    */
+    public float getScore() {
+      return score;
+    }
+  }
+
+  // best first; ties go to the earlier document, as they do in lucene's own top hits.
+  private static final Comparator<Group> BEST_FIRST = new Comparator<Group>() {
+    public int compare(Group a, Group b) {
+      int byScore = Float.compare(b.score, a.score);
+      return (byScore != 0) ? byScore : (a.doc < b.doc ? -1 : (a.doc == b.doc ? 0 : 1));
+    }
+  };
+
+  private final String key;
+  private final float minScore;
+  private final Map<String, Group> groups = new HashMap<String, Group>();
+  private final List<Group> ungrouped = new ArrayList<Group>();
+  private Scorer scorer;
+  private FieldCache.StringIndex values;
+  private int docBase;
+  private int hits = 0;
+
+  /**
+  * @param key The index key to collapse on
+  * @param minScore The least score a hit needs to be collected. 0 for no limit.
+  */
+  public CollapsingCollector(String key, float minScore) {
+    this.key = key;
+    this.minScore = minScore;
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public void setNextReader(IndexReader reader, int docBase) throws IOException {
+    this.values = FieldCache.DEFAULT.getStringIndex(reader, key);
+    this.docBase = docBase;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    float score = scorer.score();
+    if (score < minScore) {
+      return;
+    }
+    hits++;
+    String value = values.lookup[values.order[doc]];
+    if (value == null) {
+      ungrouped.add(new Group(null, docBase + doc, score));
+      return;
+    }
+    Group best = groups.get(value);
+    if (best == null) {
+      groups.put(value, new Group(value, docBase + doc, score));
+    } else if (score > best.score || (score == best.score && docBase + doc < best.doc)) {
+      best.doc = docBase + doc;
+      best.score = score;
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    // ties go to the earlier document, so the order they come in doesn't matter.
+    return true;
+  }
+
+  /**
+  * @return how many hits scored at least the min score, before collapsing
+  */
+  public int getHitCount() {
+    return hits;
+  }
+
+  /**
+  * @param limit The most groups to return, or 0 for all of them
+  * @return the best hit of each value, best first
+  */
+  public List<Group> top(int limit) {
+    List<Group> top = new ArrayList<Group>(groups.size() + ungrouped.size());
+    top.addAll(groups.values());
+    top.addAll(ungrouped);
+    Collections.sort(top, BEST_FIRST);
+    return (limit > 0 && top.size() > limit) ? new ArrayList<Group>(top.subList(0, limit)) : top;
+  }
+}
@@ -0,0 +1,135 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+/**
+* The content codings the plugin can compress responses with.
+* <p>Search results are JSON full of repeated node URLs, which compress several times over.
+  The coding is picked from the caller's Accept-Encoding header, gzip first; callers that
+  don't send one get the body as it is. Bodies we already hold are only compressed once
+  they're big enough for it to pay; streamed bodies always are.</p>
+*/
+public enum ContentEncoding {
+  GZIP("gzip"),
+  DEFLATE("deflate"),
+  IDENTITY("identity");
+
+  private final String token;
+
+  private ContentEncoding(String token) {
+    this.token = token;
+  }
+
+  /**
+  * @return the coding's name, as it goes in Content-Encoding
+  */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+  * Pick a coding from an Accept-Encoding header. Codings given a q of 0 are refused.
+  * @param acceptEncoding The Accept-Encoding header, which may be null
+  * @return GZIP or DEFLATE if the caller accepts them, in that order, IDENTITY otherwise
+  */
+  public static ContentEncoding forAcceptEncoding(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return IDENTITY;
+    }
+    boolean deflate = false;
+    for (String coding : acceptEncoding.toLowerCase().split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (parts.length > 1 && isRefused(parts[1].trim())) {
+        continue;
+      }
+      if (name.equals(GZIP.token) || name.equals("x-gzip")) {
+        return GZIP;
+      }
+      deflate |= name.equals(DEFLATE.token);
+    }
+    return deflate ? DEFLATE : IDENTITY;
+  }
+
+  private static boolean isRefused(String param) {
+    if (!param.startsWith("q=")) {
+      return false;
+    }
+    try {
+      return Float.parseFloat(param.substring(2)) == 0;
+    } catch (NumberFormatException e) {
+      return false;
+    }
+  }
+
+  /**
+  * Compress a response's body with the coding the caller asked for.
+  * @param response A built response
+  * @param acceptEncoding The caller's Accept-Encoding header, which may be null
+  * @param minBytes The smallest body worth compressing, or a negative number to never compress
+  * @return the response, compressed if the caller accepts a coding and the body is big enough.
+            Either way it varies by Accept-Encoding.
+  */
+  public static Response encode(Response response, String acceptEncoding, int minBytes) {
+    Object entity = response.getEntity();
+    if (entity == null || minBytes < 0) {
+      return response;
+    }
+    Response.ResponseBuilder builder = Response.fromResponse(response).header("Vary", "Accept-Encoding");
+    final ContentEncoding coding = forAcceptEncoding(acceptEncoding);
+    if (coding == IDENTITY) {
+      return builder.build();
+    }
+
+    final StreamingOutput body;
+    if (entity instanceof StreamingOutput) {
+      body = (StreamingOutput)entity;
+    } else {
+      final byte[] bytes;
+      if (entity instanceof byte[]) {
+        bytes = (byte[])entity;
+      } else if (entity instanceof String) {
+        bytes = utf8((String)entity);
+      } else {
+        // something only jersey knows how to write; leave it be.
+        return builder.build();
+      }
+      if (bytes.length < minBytes) {
+        return builder.build();
+      }
+      body = new StreamingOutput() {
+        public void write(OutputStream out) throws IOException {
+          out.write(bytes);
+        }
+      };
+    }
+    // neo4j puts its charset in Content-Encoding, so replace it rather than adding ours.
+    return builder.entity(new StreamingOutput() {
+      public void write(OutputStream out) throws IOException, WebApplicationException {
+        DeflaterOutputStream compressed = coding.wrap(out);
+        body.write(compressed);
+        compressed.finish();
+      }
+    }).header("Content-Encoding", null).header("Content-Encoding", coding.token).build();
+  }
+
+  private DeflaterOutputStream wrap(OutputStream out) throws IOException {
+    return (this == GZIP) ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out);
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("No UTF-8 support", e);
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+* A table of latitude and longitude by node id, in primitive arrays, so distances can be
+  worked out without loading nodes or boxing anything.
+* <p>It's an open-addressed hash table with linear probing, kept at most half full. The ids
+  and coordinates live in buffers that can be allocated outside the heap, so a big table
+  doesn't add to garbage collection work. Reads can run concurrently; writes are exclusive.</p>
+*/
+public class CoordinateTable {
+
+  private static final int MIN_CAPACITY = 1024;
+  // no node has this id, so it marks an empty slot.
+  private static final long EMPTY = -1;
+
+  private final boolean offHeap;
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private LongBuffer ids;
+  private DoubleBuffer coords; // lat, lon for the id in the same slot
+  private int mask;
+  private int size = 0;
+
+  /**
+  * @param offHeap true to keep the table in direct buffers, outside the heap
+  */
+  public CoordinateTable(boolean offHeap) {
+    this.offHeap = offHeap;
+    allocate(MIN_CAPACITY);
+  }
+
+  /**
+  * @return the number of nodes with coordinates
+  */
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return size;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * @return true if the table is kept outside the heap
+  */
+  public boolean isOffHeap() {
+    return offHeap;
+  }
+
+  /**
+  * Set a node's coordinates, replacing any it had.
+  * @param nodeId A node id
+  * @param lat Its latitude in degrees
+  * @param lon Its longitude in degrees
+  */
+  public void put(long nodeId, double lat, double lon) {
+    if (nodeId < 0) {
+      throw new IllegalArgumentException("Node ids can't be negative: " + nodeId);
+    }
+    lock.writeLock().lock();
+    try {
+      if (2 * (size + 1) > ids.capacity()) {
+        resize(2 * ids.capacity());
+      }
+      int slot = find(nodeId);
+      if (ids.get(slot) == EMPTY) {
+        ids.put(slot, nodeId);
+        size++;
+      }
+      coords.put(2 * slot, lat);
+      coords.put(2 * slot + 1, lon);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+  * @param nodeId A node id
+  * @param latLon Where to put the node's latitude and longitude, if it has them
+  * @return true if the node has coordinates
+  */
+  public boolean get(long nodeId, double[] latLon) {
+    lock.readLock().lock();
+    try {
+      int slot = find(nodeId);
+      if (ids.get(slot) == EMPTY) {
+        return false;
+      }
+      latLon[0] = coords.get(2 * slot);
+      latLon[1] = coords.get(2 * slot + 1);
+      return true;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+  * Forget a node's coordinates.
+  * @param nodeId A node id
+  * @return true if the node had coordinates
+  */
+  public boolean remove(long nodeId) {
+    lock.writeLock().lock();
+    try {
+      int slot = find(nodeId);
+      if (ids.get(slot) == EMPTY) {
+        return false;
+      }
+      // shift later entries of the probe run back, so none is cut off from its home slot.
+      int gap = slot;
+      for (int next = (gap + 1) & mask; ids.get(next) != EMPTY; next = (next + 1) & mask) {
+        int home = hash(ids.get(next)) & mask;
+        // move it unless its home lies cyclically in (gap, next].
+        if (((next - home) & mask) >= ((next - gap) & mask)) {
+          ids.put(gap, ids.get(next));
+          coords.put(2 * gap, coords.get(2 * next));
+          coords.put(2 * gap + 1, coords.get(2 * next + 1));
+          gap = next;
+        }
+      }
+      ids.put(gap, EMPTY);
+      size--;
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  // the slot holding nodeId, or the empty slot where it would go.
+  private int find(long nodeId) {
+    int slot = hash(nodeId) & mask;
+    long id;
+    while ((id = ids.get(slot)) != EMPTY && id != nodeId) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void resize(int capacity) {
+    LongBuffer oldIds = ids;
+    DoubleBuffer oldCoords = coords;
+    allocate(capacity);
+    for (int slot = 0; slot < oldIds.capacity(); slot++) {
+      long id = oldIds.get(slot);
+      if (id != EMPTY) {
+        int newSlot = find(id);
+        ids.put(newSlot, id);
+        coords.put(2 * newSlot, oldCoords.get(2 * slot));
+        coords.put(2 * newSlot + 1, oldCoords.get(2 * slot + 1));
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    if (offHeap) {
+      ids = ByteBuffer.allocateDirect(8 * capacity).order(ByteOrder.nativeOrder()).asLongBuffer();
+      coords = ByteBuffer.allocateDirect(16 * capacity).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    } else {
+      ids = LongBuffer.allocate(capacity);
+      coords = DoubleBuffer.allocate(2 * capacity);
+    }
+    for (int slot = 0; slot < capacity; slot++) {
+      ids.put(slot, EMPTY);
+    }
+    mask = capacity - 1;
+  }
+
+  // node ids are dense, so spread their bits before masking.
+  private static int hash(long id) {
+    id ^= id >>> 33;
+    id *= 0xff51afd7ed558ccdL;
+    id ^= id >>> 33;
+    return (int)id;
+  }
+}
@@ -0,0 +1,169 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+import java.util.logging.*;
+
+/**
+* The coordinate tables for one database, one per index.
+* <p>A table is loaded the first time it's asked for, from the lat and lon values the index
+  holds, and coordinates indexed through this plugin afterwards go straight into it, so
+  radius checks never have to load a node to find out where it is.</p>
+*/
+public class Coordinates {
+
+  private static final Logger log = Logger.getLogger(Coordinates.class.getName());
+  private static final Map<GraphDatabaseService, Coordinates> registry = new WeakHashMap<GraphDatabaseService, Coordinates>();
+
+  private final ConcurrentMap<String, CoordinateTable> tables = new ConcurrentHashMap<String, CoordinateTable>();
+  private volatile boolean offHeap = false;
+
+  private Coordinates() {}
+
+  /**
+  * @param db A database
+  * @return the coordinate tables for that database
+  */
+  public static synchronized Coordinates forDatabase(GraphDatabaseService db) {
+    Coordinates coordinates = registry.get(db);
+    if (coordinates == null) {
+      coordinates = new Coordinates();
+      registry.put(db, coordinates);
+    }
+    return coordinates;
+  }
+
+  /**
+  * @param offHeap true to keep tables loaded from now on outside the heap
+  */
+  public void setOffHeap(boolean offHeap) {
+    this.offHeap = offHeap;
+  }
+
+  /**
+  * Get the coordinate table for an index, loading it from the index if there isn't one yet.
+  * @param index The index
+  * @param indexName The index's name
+  * @return the table
+  * @throws IOException if the index can't be read
+  */
+  public CoordinateTable get(Index<Node> index, String indexName) throws IOException {
+    CoordinateTable table = tables.get(indexName);
+    if (table != null) {
+      return table;
+    }
+    synchronized (this) {
+      table = tables.get(indexName);
+      if (table == null) {
+        long start = System.currentTimeMillis();
+        table = new CoordinateTable(offHeap);
+        load(index, table);
+        tables.put(indexName, table);
+        log.info("Loaded " + table.size() + " coordinates for " + indexName + " in "
+          + (System.currentTimeMillis() - start) + "ms" + (offHeap ? ", off heap" : ""));
+      }
+    }
+    return table;
+  }
+
+  /**
+  * Record newly indexed coordinates in the index's table, if it has been loaded. If it's
+    being loaded, this waits for that to finish.
+  * @param indexName The index's name
+  * @param nodeId The node that was indexed
+  * @param lat Its latitude
+  * @param lon Its longitude
+  */
+  public synchronized void indexed(String indexName, long nodeId, double lat, double lon) {
+    CoordinateTable table = tables.get(indexName);
+    if (table != null) {
+      table.put(nodeId, lat, lon);
+    }
+  }
+
+  /**
+  * Forget a node's coordinates in the index's table, if it has been loaded.
+  * @param indexName The index's name
+  * @param nodeId The node whose coordinates were removed from the index
+  */
+  public synchronized void removed(String indexName, long nodeId) {
+    CoordinateTable table = tables.get(indexName);
+    if (table != null) {
+      table.remove(nodeId);
+    }
+  }
+
+  /**
+  * Forget the table for an index, so it's loaded again when next asked for.
+  * @param indexName The index's name
+  */
+  public synchronized void invalidate(String indexName) {
+    tables.remove(indexName);
+  }
+
+  // every node in the index with both a lat and a lon.
+  private static void load(Index<Node> index, CoordinateTable table) throws IOException {
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return;
+      }
+      List<IndexReader> segments = new ArrayList<IndexReader>();
+      ReaderUtil.gatherSubReaders(segments, capture.getSearcher().getIndexReader());
+      for (IndexReader segment : segments) {
+        loadSegment(segment, table);
+      }
+    } finally {
+      capture.release();
+    }
+  }
+
+  private static void loadSegment(IndexReader segment, CoordinateTable table) throws IOException {
+    // the same cache entries the distance filter reads, so loading warms those too.
+    double[] lats = FieldCache.DEFAULT.getDoubles(segment, QueryBuilder.LAT_KEY);
+    double[] lons = FieldCache.DEFAULT.getDoubles(segment, QueryBuilder.LON_KEY);
+    Bits hasLat = FieldCache.DEFAULT.getDocsWithField(segment, QueryBuilder.LAT_KEY);
+    Bits hasLon = FieldCache.DEFAULT.getDocsWithField(segment, QueryBuilder.LON_KEY);
+    TermEnum ids = segment.terms(new Term(CapturingQuery.DOC_ID_KEY, ""));
+    TermDocs docs = segment.termDocs();
+    try {
+      do {
+        Term id = ids.term();
+        if (id == null || !id.field().equals(CapturingQuery.DOC_ID_KEY)) {
+          break;
+        }
+        docs.seek(ids);
+        while (docs.next()) {
+          int doc = docs.doc();
+          if (hasLat.get(doc) && hasLon.get(doc)) {
+            table.put(Long.parseLong(id.text()), lats[doc], lons[doc]);
+          }
+        }
+      } while (ids.next());
+    } finally {
+      docs.close();
+      ids.close();
+    }
+  }
+}
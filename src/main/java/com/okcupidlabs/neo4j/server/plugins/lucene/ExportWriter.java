@@ -0,0 +1,161 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.util.MinimalPrettyPrinter;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.index.Index;
+
+/**
+* Streams every node matching a query as newline-delimited JSON, one
+  <code>{"id": $NODE_ID, "fields": {$KEY: $VALUE ...}}</code> object per line, without scoring
+  or sorting anything.
+* <p>The query is rewritten once against the whole index, so queries built from the index's
+  terms, like MLT, see all of them, then run as a filter over each segment, which only marks
+  matching documents. The node id of each match after the cursor is read from its stored id
+  field and set in a bit set. Matches are then written in node id order, which, unlike
+  document order, doesn't change when segments are merged between requests, so an export can
+  be resumed from the last id it wrote. The cost is in the number of matches, not the size
+  of the index, though every page reads the ids of all the matches after its cursor, and the
+  bit set takes a bit per node id up to the highest one matched.</p>
+* <p>The last line is <code>{"cursor": $LAST_ID, "count": $COUNT, "done": $DONE}</code>. When
+  done is false, the export stopped at its size limit, and passing the cursor back carries on
+  after the last id.</p>
+*/
+public class ExportWriter implements StreamingOutput {
+
+  /** The media type of the response. */
+  public static final String MEDIA_TYPE = "application/x-ndjson";
+  // push lines out to the client every so often, rather than only when the buffer fills.
+  private static final int FLUSH_EVERY = 1000;
+  // only a match's node id is read.
+  private static final FieldSelector ID_ONLY = new MapFieldSelector(CapturingQuery.DOC_ID_KEY);
+
+  private final GraphDatabaseService db;
+  private final Index<Node> index;
+  private final Query query;
+  private final List<String> fields;
+  private final long cursor;
+  private final int size;
+
+  /**
+  * @param db The database the index belongs to
+  * @param index The index to export from
+  * @param query Which documents to export
+  * @param fields The node properties to project. Missing properties are skipped.
+  * @param cursor The id to carry on after, or -1 to start at the beginning
+  * @param size The most ids to write, or 0 for all of them
+  */
+  ExportWriter(GraphDatabaseService db, Index<Node> index, Query query, List<String> fields, long cursor, int size) {
+    this.db = db;
+    this.index = index;
+    this.query = query;
+    this.fields = fields;
+    this.cursor = cursor;
+    this.size = size;
+  }
+
+  public void write(OutputStream out) throws IOException {
+    JsonGenerator gen = WireFormat.JSON.getFactory().createJsonGenerator(out);
+    // one object per line.
+    gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    try {
+      index.query(capture).close();
+      String last = (cursor < 0) ? null : Long.toString(cursor);
+      int count = 0;
+      boolean done = true;
+      if (capture.getSearcher() != null) {
+        IndexSearcher searcher = capture.getSearcher();
+        OpenBitSet ids = matches(searcher.getIndexReader(), searcher.rewrite(query));
+        for (long id = ids.nextSetBit(cursor + 1); id >= 0; id = ids.nextSetBit(id + 1)) {
+          if (size > 0 && count == size) {
+            done = false;
+            break;
+          }
+          writeLine(gen, id);
+          last = Long.toString(id);
+          if (++count % FLUSH_EVERY == 0) {
+            gen.flush();
+          }
+        }
+      }
+      gen.writeStartObject();
+      gen.writeStringField("cursor", last);
+      gen.writeNumberField("count", count);
+      gen.writeBooleanField("done", done);
+      gen.writeEndObject();
+      gen.writeRaw('\n');
+    } finally {
+      capture.release();
+      gen.close();
+    }
+  }
+
+  // mark the node id of every document the rewritten query matches, after the cursor.
+  private OpenBitSet matches(IndexReader reader, Query rewritten) throws IOException {
+    OpenBitSet ids = new OpenBitSet();
+    // the filter rewrites against each segment it's given, which is a no-op once it's rewritten.
+    QueryWrapperFilter filter = new QueryWrapperFilter(rewritten);
+    List<IndexReader> segments = new ArrayList<IndexReader>();
+    ReaderUtil.gatherSubReaders(segments, reader);
+    for (IndexReader segment : segments) {
+      DocIdSet docIds = filter.getDocIdSet(segment);
+      DocIdSetIterator it = (docIds == null) ? null : docIds.iterator();
+      if (it != null) {
+        int doc;
+        while ((doc = it.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          long id = Long.parseLong(segment.document(doc, ID_ONLY).get(CapturingQuery.DOC_ID_KEY));
+          if (id > cursor) {
+            ids.set(id);
+          }
+        }
+      }
+    }
+    return ids;
+  }
+
+  private void writeLine(JsonGenerator gen, long nodeId) throws IOException {
+    gen.writeStartObject();
+    gen.writeNumberField("id", nodeId);
+    if (!fields.isEmpty()) {
+      gen.writeObjectFieldStart("fields");
+      try {
+        Node node = db.getNodeById(nodeId);
+        for (String field : fields) {
+          Object value = node.getProperty(field, null);
+          if (value != null) {
+            gen.writeFieldName(field);
+            LeanResultWriter.writeValue(gen, value);
+          }
+        }
+      } catch (NotFoundException e) {
+        // deleted since it was indexed; its id is still worth having.
+      }
+      gen.writeEndObject();
+    }
+    gen.writeEndObject();
+  }
+}
@@ -0,0 +1,143 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.function.CustomScoreProvider;
+import org.apache.lucene.search.function.CustomScoreQuery;
+
+/**
+* Combines the score of a query with {@link ScoreFunction}s of numeric index fields, so
+  popularity and recency can be part of the ranking instead of a re-ranking afterwards.
+* <p>The functions that have a value for a document are combined with each other by the
+  score mode, and that is combined with the query's score by the boost mode. Field values
+  come from the field cache of each segment as it is searched.</p>
+*/
+public class FunctionScoreQuery extends CustomScoreQuery {
+
+  /** How the function values for a document are combined with each other. */
+  public enum ScoreMode {
+    MULTIPLY, SUM, MAX, MIN
+  }
+
+  /** How the combined function value is combined with the query score. */
+  public enum BoostMode {
+    MULTIPLY, SUM, REPLACE
+  }
+
+  private final List<ScoreFunction> functions;
+  private final ScoreMode scoreMode;
+  private final BoostMode boostMode;
+
+  /**
+  * @param subQuery The query to match and score documents with
+  * @param functions The functions to adjust its scores with
+  * @param scoreMode How to combine the functions
+  * @param boostMode How to combine the functions with the query score
+  */
+  public FunctionScoreQuery(Query subQuery, List<ScoreFunction> functions, ScoreMode scoreMode, BoostMode boostMode) {
+    super(subQuery);
+    this.functions = new ArrayList<ScoreFunction>(functions);
+    this.scoreMode = scoreMode;
+    this.boostMode = boostMode;
+  }
+
+  @Override
+  protected CustomScoreProvider getCustomScoreProvider(IndexReader reader) throws IOException {
+    final List<ScoreFunction.SegmentValues> segmentValues = new ArrayList<ScoreFunction.SegmentValues>();
+    for (ScoreFunction function : functions) {
+      segmentValues.add(function.forSegment(reader));
+    }
+    return new CustomScoreProvider(reader) {
+      @Override
+      public float customScore(int doc, float subQueryScore, float valSrcScore) {
+        return combine(doc, subQueryScore, segmentValues);
+      }
+
+      @Override
+      public Explanation customExplain(int doc, Explanation subQueryExpl, Explanation valSrcExpl) {
+        float score = combine(doc, subQueryExpl.getValue(), segmentValues);
+        Explanation explanation = new Explanation(score, name() + ", score_mode=" + scoreMode + ", boost_mode=" + boostMode);
+        explanation.addDetail(subQueryExpl);
+        for (int i = 0; i < functions.size(); i++) {
+          ScoreFunction.SegmentValues values = segmentValues.get(i);
+          if (values.has(doc)) {
+            explanation.addDetail(new Explanation((float)values.apply(doc),
+                                                  functions.get(i) + " of " + values.valueOf(doc)));
+          }
+        }
+        return explanation;
+      }
+    };
+  }
+
+  private float combine(int doc, float subQueryScore, List<ScoreFunction.SegmentValues> segmentValues) {
+    double combined = 0;
+    boolean any = false;
+    for (ScoreFunction.SegmentValues values : segmentValues) {
+      if (!values.has(doc)) {
+        continue;
+      }
+      double value = values.apply(doc);
+      if (!any) {
+        combined = value;
+        any = true;
+        continue;
+      }
+      switch (scoreMode) {
+        case SUM:
+          combined += value;
+          break;
+        case MAX:
+          combined = Math.max(combined, value);
+          break;
+        case MIN:
+          combined = Math.min(combined, value);
+          break;
+        default:
+          combined *= value;
+      }
+    }
+    if (!any) {
+      // no function applies to this document, so leave its score alone.
+      return subQueryScore;
+    }
+    switch (boostMode) {
+      case SUM:
+        return (float)(subQueryScore + combined);
+      case REPLACE:
+        return (float)combined;
+      default:
+        return (float)(subQueryScore * combined);
+    }
+  }
+
+  @Override
+  public String name() {
+    return "function_score";
+  }
+
+  @Override
+  public String toString(String field) {
+    return name() + "(" + super.toString(field) + ", " + functions + ", " + scoreMode + ", " + boostMode + ")";
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!super.equals(o)) {
+      return false;
+    }
+    FunctionScoreQuery other = (FunctionScoreQuery)o;
+    return functions.toString().equals(other.functions.toString())
+      && scoreMode == other.scoreMode && boostMode == other.boostMode;
+  }
+
+  @Override
+  public int hashCode() {
+    return super.hashCode() ^ functions.toString().hashCode() ^ scoreMode.hashCode() ^ boostMode.hashCode();
+  }
+}
@@ -0,0 +1,53 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+/**
+* Lets an index name stand for a different index, so a rebuilt index can take over an old
+  one's name.
+* <p>neo4j can't rename an index, so the name callers use stays on the old index and its
+  config records the index that replaced it. Every endpoint looks names up here before
+  using them. Switching is a single config write, so a search sees either the old index or
+  the new one, never a mix.</p>
+*/
+public class IndexAliases {
+
+  /** The index config key naming the index that stands in for this one. */
+  public static final String ALIAS_KEY = "alias_for";
+
+  private IndexAliases() {}
+
+  /**
+  * @param db A database
+  * @param indexName A node index name, as callers give it
+  * @return the name of the index that answers for it: the index it was switched to, if
+            it has been rebuilt, and otherwise the name itself
+  */
+  public static String resolve(GraphDatabaseService db, String indexName) {
+    if (indexName == null || !db.index().existsForNodes(indexName)) {
+      return indexName;
+    }
+    Map<String, String> config = db.index().getConfiguration(db.index().forNodes(indexName));
+    String target = config.get(ALIAS_KEY);
+    return (target == null) ? indexName : target;
+  }
+
+  /**
+  * Point an index name at another index.
+  * @param db A database
+  * @param indexName The name callers use. The index must exist.
+  * @param target The index to answer for it from now on
+  */
+  public static void switchTo(GraphDatabaseService db, String indexName, String target) {
+    Index<Node> index = db.index().forNodes(indexName);
+    if (indexName.equals(target)) {
+      db.index().removeConfiguration(index, ALIAS_KEY);
+    } else {
+      db.index().setConfiguration(index, ALIAS_KEY, target);
+    }
+  }
+}
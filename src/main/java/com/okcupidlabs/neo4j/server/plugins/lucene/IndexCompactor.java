@@ -0,0 +1,192 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.io.IOException;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.ValueContext;
+
+import java.util.logging.*;
+
+/**
+* Purges the stale values that used to pile up for numeric and geo keys, back when indexing
+  a new value added to the old ones instead of replacing them.
+* <p>neo4j keeps one document per node, with the values for a key stored in the order they
+  were added, so the last stored value of a key is its current one. Each node with more than
+  one value for a key has the key removed and its last value indexed again, with the key's
+  numeric type.</p>
+* <p>The scan only finds which nodes have stale values. Each batch of them is rewritten in one
+  transaction that holds the nodes' write locks, which numeric and geo writes take too, and
+  reads their values again from the index as last committed, so a write that lands while
+  the compactor runs is kept rather than overwritten. Only a batch is held in memory.</p>
+*/
+public class IndexCompactor {
+
+  private static final Logger log = Logger.getLogger(IndexCompactor.class.getName());
+  // rewrite this many entries per transaction.
+  private static final int BATCH_SIZE = 1000;
+
+  // a node's key that had stale values when the index was scanned.
+  private static class Entry {
+    final long nodeId;
+    final String key;
+
+    Entry(long nodeId, String key) {
+      this.nodeId = nodeId;
+      this.key = key;
+    }
+  }
+
+  private IndexCompactor() {}
+
+  /**
+  * @param db A database
+  * @param index One of its indexes
+  * @return the keys compacted by default: lat, lon and every key with a recorded numeric type
+  */
+  public static List<String> defaultKeys(GraphDatabaseService db, Index<Node> index) {
+    List<String> keys = new ArrayList<String>();
+    keys.add(QueryBuilder.LAT_KEY);
+    keys.add(QueryBuilder.LON_KEY);
+    keys.addAll(NumericFields.forIndex(db, index).keys());
+    return keys;
+  }
+
+  /**
+  * Leave each node with only its current value for each of the keys.
+  * @param db A database
+  * @param index The index to compact
+  * @param keys The numeric keys to compact
+  * @return how many documents were scanned, and how many entries were rewritten and dropped
+  * @throws IOException if the index can't be read
+  */
+  public static Map<String, Object> compact(GraphDatabaseService db, Index<Node> index, Collection<String> keys)
+      throws IOException
+  {
+    long start = System.currentTimeMillis();
+    Map<String, Object> result = new HashMap<String, Object>();
+    int[] counts = scan(db, index, keys);
+    // the coordinate table may have loaded stale values, so it's reloaded when next needed.
+    if (keys.contains(QueryBuilder.LAT_KEY) || keys.contains(QueryBuilder.LON_KEY)) {
+      Coordinates.forDatabase(db).invalidate(index.getName());
+    }
+    result.put("documents", counts[0]);
+    result.put("rewritten", counts[1]);
+    result.put("dropped", counts[2]);
+    result.put("elapsed_ms", System.currentTimeMillis() - start);
+    log.info("Compacted " + index.getName() + " " + keys + ": " + result);
+    return result;
+  }
+
+  // find the keys with stale values, rewriting them a batch at a time. returns {documents, rewritten, dropped}.
+  private static int[] scan(GraphDatabaseService db, Index<Node> index, Collection<String> keys) throws IOException {
+    int documents = 0;
+    int[] rewritten = {0, 0};
+    NumericFields numerics = NumericFields.forIndex(db, index);
+    List<String> fields = new ArrayList<String>(keys);
+    fields.add(CapturingQuery.DOC_ID_KEY);
+    MapFieldSelector selector = new MapFieldSelector(fields);
+    List<Entry> stale = new ArrayList<Entry>(BATCH_SIZE);
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return new int[] {0, 0, 0};
+      }
+      List<IndexReader> segments = new ArrayList<IndexReader>();
+      ReaderUtil.gatherSubReaders(segments, capture.getSearcher().getIndexReader());
+      for (IndexReader segment : segments) {
+        for (int doc = 0; doc < segment.maxDoc(); doc++) {
+          if (segment.isDeleted(doc)) {
+            continue;
+          }
+          documents++;
+          Document document = segment.document(doc, selector);
+          for (String key : keys) {
+            if (document.getValues(key).length > 1) {
+              stale.add(new Entry(Long.parseLong(document.get(CapturingQuery.DOC_ID_KEY)), key));
+            }
+          }
+          if (stale.size() >= BATCH_SIZE) {
+            rewrite(db, index, numerics, selector, stale, rewritten);
+            stale.clear();
+          }
+        }
+      }
+      rewrite(db, index, numerics, selector, stale, rewritten);
+    } finally {
+      capture.release();
+    }
+    return new int[] {documents, rewritten[0], rewritten[1]};
+  }
+
+  // rewrite a batch as it is now, adding to {rewritten, dropped}.
+  private static void rewrite(GraphDatabaseService db, Index<Node> index, NumericFields numerics,
+                              MapFieldSelector selector, List<Entry> entries, int[] counts)
+      throws IOException
+  {
+    if (entries.isEmpty()) {
+      return;
+    }
+    int rewritten = 0, dropped = 0;
+    Transaction tx = db.beginTx();
+    try {
+      Map<Long, Node> nodes = new HashMap<Long, Node>();
+      for (Entry entry : entries) {
+        if (!nodes.containsKey(entry.nodeId)) {
+          try {
+            Node node = db.getNodeById(entry.nodeId);
+            tx.acquireWriteLock(node);
+            nodes.put(entry.nodeId, node);
+          } catch (NotFoundException e) {
+            log.warning("Skipping deleted node " + entry.nodeId + " while compacting " + index.getName());
+            nodes.put(entry.nodeId, null);
+          }
+        }
+      }
+      // with the nodes locked, nothing else can write their values until we're done.
+      CapturingQuery current = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+      try {
+        index.query(current).close();
+        for (Entry entry : entries) {
+          Node node = nodes.get(entry.nodeId);
+          int doc = current.findDocument(entry.nodeId);
+          if (node == null || doc < 0) {
+            continue;
+          }
+          String[] values = current.getSearcher().doc(doc, selector).getValues(entry.key);
+          if (values.length < 2) {
+            continue;
+          }
+          index.remove(node, entry.key);
+          index.add(node, entry.key, ValueContext.numeric(numerics.typeOf(entry.key).parse(values[values.length - 1])));
+          rewritten++;
+          dropped += values.length - 1;
+        }
+      } finally {
+        current.release();
+      }
+      tx.success();
+    } finally {
+      tx.finish();
+    }
+    counts[0] += rewritten;
+    counts[1] += dropped;
+  }
+}
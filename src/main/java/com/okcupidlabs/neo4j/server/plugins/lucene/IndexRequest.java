@@ -0,0 +1,138 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.util.LinkedHashSet;
+
+/**
+* A decoded body for the /index/* endpoints. Instances are filled in directly by
+* {@link RequestDecoder} as it streams through the request.
+*/
+public class IndexRequest {
+
+  private final Set<String> receivedParameters = new LinkedHashSet<String>();
+  private final PropertyMap<String, Object> coords = new PropertyMap<String, Object>();
+  private String indexName = null;
+  private String indexKey = null;
+  private Object indexValue = null;
+  private long nodeId = 0;
+  private String numericType = null;
+  private Boolean async = null;
+  private int ngram = 0;
+
+  /**
+  * @return the name of the node index to write to, or null if none was given
+  */
+  public String getIndexName() {
+    return indexName;
+  }
+
+  void setIndexName(String indexName) {
+    this.indexName = indexName;
+  }
+
+  /**
+  * @return the index key to write to, or null if none was given
+  */
+  public String getIndexKey() {
+    return indexKey;
+  }
+
+  void setIndexKey(String indexKey) {
+    this.indexKey = indexKey;
+  }
+
+  /**
+  * @return the value to index, exactly as it was decoded, or null if none was given
+  */
+  public Object getIndexValue() {
+    return indexValue;
+  }
+
+  void setIndexValue(Object indexValue) {
+    this.indexValue = indexValue;
+  }
+
+  /**
+  * @return the id of the node to index
+  */
+  public long getNodeId() {
+    return nodeId;
+  }
+
+  void setNodeId(long nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  /**
+  * @return the name of the numeric type to index index_value as, or null if none was given
+  */
+  public String getNumericType() {
+    return numericType;
+  }
+
+  void setNumericType(String numericType) {
+    this.numericType = numericType;
+  }
+
+  /**
+  * @return true to queue the write for the write-behind writer, false to commit it before
+            answering, or null if the request didn't say
+  */
+  public Boolean getAsync() {
+    return async;
+  }
+
+  void setAsync(Boolean async) {
+    this.async = async;
+  }
+
+  /**
+  * @return the size of the character n-grams to write for the key's text, or 0 if none was given
+  */
+  public int getNgram() {
+    return ngram;
+  }
+
+  void setNgram(int ngram) {
+    this.ngram = ngram;
+  }
+
+  /**
+  * @return whatever lat and lon values were given. These are not validated;
+            use {@link PropertyMap#getCoords} for that.
+  */
+  public PropertyMap<String, Object> getCoords() {
+    return coords;
+  }
+
+  /**
+  * @return the names of all non-null top-level parameters, in the order they were read
+  */
+  public Set<String> getReceivedParameters() {
+    return receivedParameters;
+  }
+
+  /**
+  * @param keys The parameters to look for
+  * @return true if every one of {@code keys} was given a non-null value
+  */
+  public boolean hasParameters(String ... keys) {
+    for (String key : keys) {
+      if (!receivedParameters.contains(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void addReceivedParameter(String key) {
+    receivedParameters.add(key);
+  }
+
+  @Override
+  public String toString() {
+    return "{index_name=" + indexName + ", node_id=" + nodeId + ", index_key=" + indexKey
+      + ", index_value=" + indexValue + ", numeric_type=" + numericType
+      + ", async=" + async + (ngram > 0 ? ", ngram=" + ngram : "") + ", coords=" + coords + "}";
+  }
+}
@@ -0,0 +1,323 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Version;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+import java.util.logging.*;
+
+/**
+* Read-only copies of node indexes, for searches that would rather be out of the way of
+  writes than up to date.
+* <p>Every so often, each index named in the snapshot_indexes setting is copied, as of its
+  latest commit, into one segment in a directory of its own, and opened read-only through
+  memory mapping, so its pages live in the OS page cache rather than on the heap and are
+  shared with anything else reading them. Low-priority searches of the index are run on
+  that copy with its own searcher, so long scans don't hold neo4j's readers or compete with
+  its writer. Indexes that haven't been written to since their last snapshot aren't copied
+  again. Aliases are resolved each time, so a snapshot follows its alias, and the snapshot of
+  the index it stood for before is let go.</p>
+* <p>Copying isn't cheap. The files of neo4j's latest commit can be deleted by its writer
+  while they're being copied, so instead a snapshot is made by adding neo4j's reader to a new
+  index, which reads and re-merges every document's postings and stored fields, about the
+  cost of optimizing the index, all while neo4j's reader, and any segments it has merged away
+  since, are held open. That's why snapshots are only retaken for indexes that have changed,
+  the interval defaults to an hour, and the thread runs at the lowest priority.</p>
+* <p>A snapshot is kept open until the searches using it are done, then deleted.</p>
+*/
+public class IndexSnapshots implements Runnable {
+
+  private static final Logger log = Logger.getLogger(IndexSnapshots.class.getName());
+  private static final Map<GraphDatabaseService, IndexSnapshots> registry = new WeakHashMap<GraphDatabaseService, IndexSnapshots>();
+
+  private final GraphDatabaseService db;
+  private final List<String> indexNames;
+  private final File dir;
+  private final long intervalMillis;
+  // index name, as resolved -> its latest snapshot
+  private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+  private volatile Thread thread = null;
+
+  IndexSnapshots(GraphDatabaseService db, SearchSettings settings) {
+    this.db = db;
+    this.indexNames = settings.getSnapshotIndexes();
+    this.dir = new File(settings.getSnapshotDir());
+    this.intervalMillis = settings.getSnapshotIntervalMillis();
+  }
+
+  /**
+  * Register snapshots for a database, replacing any earlier ones, and clear out the snapshot
+    directory. None are taken until asked.
+  * @param db A database
+  * @param settings Where to find the snapshot settings
+  * @return the snapshots
+  */
+  public static synchronized IndexSnapshots register(GraphDatabaseService db, SearchSettings settings) {
+    IndexSnapshots previous = registry.get(db);
+    if (previous != null) {
+      previous.stop();
+    }
+    IndexSnapshots snapshots = new IndexSnapshots(db, settings);
+    deleteRecursively(snapshots.dir);
+    registry.put(db, snapshots);
+    return snapshots;
+  }
+
+  /**
+  * @param db A database
+  * @return the database's snapshots, or null if it doesn't keep any
+  */
+  public static synchronized IndexSnapshots forDatabase(GraphDatabaseService db) {
+    return registry.get(db);
+  }
+
+  /**
+  * Register snapshots for a database and take them in the background, every snapshot_interval_ms.
+  * @param db A database
+  * @param settings Where to find the snapshot settings
+  * @return the snapshots
+  */
+  public static IndexSnapshots start(GraphDatabaseService db, SearchSettings settings) {
+    IndexSnapshots snapshots = register(db, settings);
+    Thread thread = new Thread(snapshots, "lucene-search-snapshots");
+    thread.setDaemon(true);
+    thread.setPriority(Thread.MIN_PRIORITY);
+    snapshots.thread = thread;
+    thread.start();
+    return snapshots;
+  }
+
+  /**
+  * Stop taking snapshots, and let go of the ones taken. Searches already using one can finish.
+  */
+  public void stop() {
+    Thread running = thread;
+    if (running != null) {
+      running.interrupt();
+    }
+    List<Snapshot> retired;
+    synchronized (this) {
+      retired = new ArrayList<Snapshot>(snapshots.values());
+      snapshots.clear();
+    }
+    for (Snapshot snapshot : retired) {
+      snapshot.release();
+    }
+  }
+
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        refreshAll();
+        Thread.sleep(intervalMillis);
+      }
+    } catch (InterruptedException e) {
+      // stopped.
+    } finally {
+      thread = null;
+    }
+  }
+
+  /**
+  * Snapshot every index that has changed since its last snapshot. A failure with one index
+    is logged, and its last snapshot kept.
+  */
+  public void refreshAll() {
+    releaseRetired();
+    for (String indexName : indexNames) {
+      try {
+        refresh(indexName);
+      } catch (IOException e) {
+        log.warning("Failed to snapshot " + indexName + ": " + e.getMessage());
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Failed to snapshot " + indexName, e);
+      }
+    }
+  }
+
+  // let go of snapshots of indexes no name resolves to any more, as once a rebuild is switched in.
+  private void releaseRetired() {
+    Set<String> current = new HashSet<String>();
+    for (String indexName : indexNames) {
+      current.add(IndexAliases.resolve(db, indexName));
+    }
+    List<Snapshot> retired = new ArrayList<Snapshot>();
+    synchronized (this) {
+      Iterator<Map.Entry<String, Snapshot>> entries = snapshots.entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<String, Snapshot> entry = entries.next();
+        if (!current.contains(entry.getKey())) {
+          retired.add(entry.getValue());
+          entries.remove();
+        }
+      }
+    }
+    for (Snapshot snapshot : retired) {
+      snapshot.release();
+    }
+  }
+
+  /**
+  * Snapshot an index, unless it hasn't changed since its last snapshot.
+  * @param indexName The index, or an alias for it
+  * @return true if a snapshot was taken
+  * @throws IOException if the index couldn't be copied
+  */
+  public boolean refresh(String indexName) throws IOException {
+    String resolved = IndexAliases.resolve(db, indexName);
+    if (!db.index().existsForNodes(resolved)) {
+      return false;
+    }
+    Index<Node> index = db.index().forNodes(resolved);
+    // neo4j doesn't hand out its readers, so borrow the one a cheap query runs on.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    File target;
+    long version;
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return false;
+      }
+      IndexReader live = capture.getSearcher().getIndexReader();
+      version = live.getVersion();
+      synchronized (this) {
+        Snapshot current = snapshots.get(resolved);
+        if (current != null && current.version == version) {
+          return false;
+        }
+      }
+      long start = System.currentTimeMillis();
+      target = new File(new File(dir, resolved), version + "." + start);
+      copy(live, target, LuceneSearch.indexAnalyzer(db, index));
+      log.info("Snapshot of " + resolved + " at version " + version + " took " + (System.currentTimeMillis() - start) + "ms");
+    } finally {
+      capture.release();
+    }
+
+    Snapshot fresh = new Snapshot(IndexReader.open(new MMapDirectory(target), true), target, version);
+    Snapshot previous;
+    synchronized (this) {
+      previous = snapshots.put(resolved, fresh);
+    }
+    if (previous != null) {
+      previous.release();
+    }
+    return true;
+  }
+
+  // write what the reader sees, deletions applied, into a new index of one segment. reads every document.
+  private static void copy(IndexReader reader, File target, Analyzer analyzer)
+      throws IOException {
+    Directory directory = FSDirectory.open(target);
+    boolean copied = false;
+    try {
+      IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_35, analyzer)
+                                                        .setOpenMode(IndexWriterConfig.OpenMode.CREATE));
+      try {
+        writer.addIndexes(reader);
+      } finally {
+        writer.close();
+      }
+      copied = true;
+    } finally {
+      directory.close();
+      if (!copied) {
+        deleteRecursively(target);
+      }
+    }
+  }
+
+  /**
+  * Borrow the latest snapshot of an index. It stays open until released.
+  * @param indexName The index, as resolved from any alias
+  * @return the snapshot, or null if there isn't one yet
+  */
+  public synchronized Snapshot acquire(String indexName) {
+    Snapshot snapshot = snapshots.get(indexName);
+    if (snapshot != null) {
+      snapshot.reader.incRef();
+    }
+    return snapshot;
+  }
+
+  private static void deleteRecursively(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      log.warning("Failed to delete old snapshot file " + file);
+    }
+  }
+
+  /**
+  * One index, as it was when it was copied.
+  */
+  public static class Snapshot {
+    private final IndexReader reader;
+    private final IndexSearcher searcher;
+    private final File dir;
+    private final long version;
+    private final long takenMillis = System.currentTimeMillis();
+
+    Snapshot(IndexReader reader, File dir, long version) {
+      this.reader = reader;
+      this.searcher = new IndexSearcher(reader);
+      this.dir = dir;
+      this.version = version;
+    }
+
+    /**
+    * @return a searcher on the snapshot
+    */
+    public IndexSearcher getSearcher() {
+      return searcher;
+    }
+
+    /**
+    * @return when the snapshot was taken
+    */
+    public long getTakenMillis() {
+      return takenMillis;
+    }
+
+    /**
+    * Let go of the snapshot. Once nothing holds it, it's closed and deleted.
+    */
+    public void release() {
+      try {
+        reader.decRef();
+      } catch (IOException e) {
+        log.warning("Failed to close snapshot in " + dir + ": " + e.getMessage());
+      }
+      if (reader.getRefCount() == 0) {
+        deleteRecursively(dir);
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+
+import javax.ws.rs.core.StreamingOutput;
+
+import org.codehaus.jackson.JsonGenerator;
+import org.neo4j.graphdb.Node;
+
+/**
+* Streams search hits as a compact list of
+  <code>{"id": $NODE_ID, "score": $SCORE, "fields": {$KEY: $VALUE ...}}</code>
+  objects, instead of full node representations with their URLs.
+* <p>Only the node properties named in {@code fields} are read, and the "fields" object is
+  left out entirely when none were asked for.</p>
+* <p>When the search was profiled, the list is written as the "results" of an object that
+  also holds the "profile".</p>
+*/
+public class LeanResultWriter implements StreamingOutput {
+
+  private final List<ScoredNode> hits;
+  private final List<String> fields;
+  private final WireFormat format;
+  private final QueryProfile profile;
+
+  /**
+  * @param hits The hits to write, in order
+  * @param fields The node properties to project. Missing properties are skipped.
+  * @param format The encoding to write
+  */
+  LeanResultWriter(List<ScoredNode> hits, List<String> fields, WireFormat format) {
+    this(hits, fields, format, null);
+  }
+
+  /**
+  * @param hits The hits to write, in order
+  * @param fields The node properties to project. Missing properties are skipped.
+  * @param format The encoding to write
+  * @param profile A profile of the search to write along with the hits, or null
+  */
+  LeanResultWriter(List<ScoredNode> hits, List<String> fields, WireFormat format, QueryProfile profile) {
+    this.hits = hits;
+    this.fields = fields;
+    this.format = format;
+    this.profile = profile;
+  }
+
+  public void write(OutputStream out) throws IOException {
+    JsonGenerator gen = format.getFactory().createJsonGenerator(out);
+    try {
+      if (profile != null) {
+        gen.writeStartObject();
+        gen.writeFieldName("results");
+      }
+      gen.writeStartArray();
+      for (ScoredNode hit : hits) {
+        Node node = hit.getNode();
+        gen.writeStartObject();
+        gen.writeNumberField("id", node.getId());
+        gen.writeNumberField("score", hit.getScore());
+        if (!fields.isEmpty()) {
+          gen.writeObjectFieldStart("fields");
+          for (String field : fields) {
+            Object value = node.getProperty(field, null);
+            if (value != null) {
+              gen.writeFieldName(field);
+              writeValue(gen, value);
+            }
+          }
+          gen.writeEndObject();
+        }
+        gen.writeEndObject();
+      }
+      gen.writeEndArray();
+      if (profile != null) {
+        gen.writeFieldName("profile");
+        writeValue(gen, profile.toMap());
+        gen.writeEndObject();
+      }
+    } finally {
+      gen.close();
+    }
+  }
+
+  // node properties are primitives, strings, or arrays of those. profiles are maps and lists of them.
+  static void writeValue(JsonGenerator gen, Object value) throws IOException {
+    if (value instanceof Map) {
+      gen.writeStartObject();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+        gen.writeFieldName(String.valueOf(entry.getKey()));
+        writeValue(gen, entry.getValue());
+      }
+      gen.writeEndObject();
+    } else if (value instanceof List) {
+      gen.writeStartArray();
+      for (Object item : (List<?>)value) {
+        writeValue(gen, item);
+      }
+      gen.writeEndArray();
+    } else if (value instanceof String || value instanceof Character) {
+      gen.writeString(value.toString());
+    } else if (value instanceof Double || value instanceof Float) {
+      gen.writeNumber(((Number)value).doubleValue());
+    } else if (value instanceof Number) {
+      gen.writeNumber(((Number)value).longValue());
+    } else if (value instanceof Boolean) {
+      gen.writeBoolean((Boolean)value);
+    } else if (value.getClass().isArray()) {
+      gen.writeStartArray();
+      int length = Array.getLength(value);
+      for (int i = 0; i < length; i++) {
+        writeValue(gen, Array.get(value, i));
+      }
+      gen.writeEndArray();
+    } else {
+      gen.writeString(value.toString());
+    }
+  }
+}
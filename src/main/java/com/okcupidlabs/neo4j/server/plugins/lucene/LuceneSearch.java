@@ -3,11 +3,25 @@ package com.okcupidlabs.neo4j.server.plugins.lucene;
 import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.net.URI;
 import java.io.IOException;
 import java.io.StringReader;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.DigestInputStream;
 
+import javax.ws.rs.GET;
 import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.HeaderParam;
@@ -26,10 +40,23 @@ import org.neo4j.server.rest.repr.*;
 import org.neo4j.server.rest.web.DatabaseActions;
 import org.neo4j.server.rest.web.PropertyValueException;
 import org.neo4j.index.lucene.ValueContext;
+import org.neo4j.index.lucene.QueryContext;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.WhitespaceAnalyzer;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.MapFieldSelector;
+
+import org.apache.commons.configuration.Configuration;
 
 import org.apache.lucene.spatial.DistanceUtils;
 
@@ -45,27 +72,44 @@ public class LuceneSearch {
     private static final String[] REQUIRED_SEARCH_PARAMETERS = {"query_spec", "index_name"};
     private static final String[] REQUIRED_GEO_INDEX_PARAMETERS = {"index_name", "node_id", QueryBuilder.LAT_KEY, QueryBuilder.LON_KEY};
     private static final String[] REQUIRED_NUM_INDEX_PARAMETERS = {"index_name", "node_id", "index_key", "index_value"};
+    private static final String[] REQUIRED_TEXT_INDEX_PARAMETERS = {"index_name", "node_id", "index_key", "index_value"};
+    private static final String[] REQUIRED_SUGGEST_PARAMETERS = {"index_name", "index_key", "prefix"};
+    private static final String[] REQUIRED_REMOVE_PARAMETERS = {"index_name", "node_id"};
+    private static final String[] REQUIRED_COMPACT_PARAMETERS = {"index_name"};
+    private static final String[] REQUIRED_REBUILD_PARAMETERS = {"index_name"};
     private static final Class defaultAnalyzerClass = WhitespaceAnalyzer.class; // don't instantiate
 
     private final Logger log = Logger.getLogger(LuceneSearch.class.getName());
+    // identical searches running at the same time share one execution.
+    private static final SingleFlight<String, List<ScoredNode>> inFlightSearches = new SingleFlight<String, List<ScoredNode>>();
 
 
     private final UriInfo uriInfo;
-    private final InputFormat input;
     private final OutputFormat output;
     private final DatabaseActions actions;
     private final GraphDatabaseService service;
     private final PropertySettingStrategy propertySetter;
+    private final SearchSettings settings;
+    private final SlowQueryLog slowQueryLog;
+
+    public LuceneSearch(@Context UriInfo uriInfo, @Context OutputFormat output, 
+                              @Context DatabaseActions actions, @Context GraphDatabaseService service)
+    {
+        this(uriInfo, output, actions, service, null);
+    }
 
-    public LuceneSearch(@Context UriInfo uriInfo, @Context InputFormat input,
-                              @Context OutputFormat output, @Context DatabaseActions actions,
-                              @Context GraphDatabaseService service)
+    // NOTE: no InputFormat here. Request bodies are decoded by RequestDecoder, and asking 
+    // for one makes neo4j refuse any body that isn't JSON before we ever see it.
+    public LuceneSearch(@Context UriInfo uriInfo, @Context OutputFormat output, 
+                              @Context DatabaseActions actions, @Context GraphDatabaseService service,
+                              @Context Configuration config)
     {
         this.uriInfo = uriInfo;
-        this.input = input;
         this.output = output;
         this.actions = actions;
         this.service = service;
+        this.settings = new SearchSettings(config);
+        this.slowQueryLog = new SlowQueryLog(settings);
         // NOTE: This is ugly as hell.  I don't want to depend on this cast but I do want
         // the PropertySettingStrategy instead of re-implementing that functionality.
         // WHATCHAGONNADO.
@@ -79,80 +123,112 @@ public class LuceneSearch {
      * @param force Force mode for transaction, normally used internally.
      * @param body JSON encoded parameters.
      *             Required:
-     *             - index_name: Name of index to use for lookup
+     *             - index_name: Name of index to use for lookup, or a list of names to search them all
+     *               concurrently and merge their hits into one list, cut to the limit. Optionally
+     *               with score_merge: raw (the default) or normalize, to scale each index's scores
+     *               so its best hit scores 1 before merging. Scores aren't comparable across
+     *               indexes either way; see {@link ScatterGather}.
+     *             - collapse_on: Optional index key to keep only the best hit of each value of, such as an
+     *               author id, so no one value fills the page. Applied while collecting, before the limit.
+     *             - sample: Optional number of matches to pick at random, rather than the best ones, from
+     *               one index. Matches aren't scored unless there's a min_score. Optionally with seed, an
+     *               integer, to get the same sample again.
      *             - index_key: Index key to utilize for lookup
      *             - index_value: Index value to utilize for lookup.  Should be unique per index/key.
      *             - properties: Map of node properties to insert/merge
      *
+     *             - priority: Optional, normal or low. Low-priority searches run on a snapshot of the index, if
+     *               one is kept, out of the way of writes. See {@link IndexSnapshots}.
+     *
+     *             Results carry an ETag, unless they're a profile, low-priority or an unseeded sample. Sending it back in
+     *             If-None-Match gets a 304 without searching, until the graph or its indexes are written to.
+     *             See {@link ResultTags}. Results are compressed for callers sending Accept-Encoding.
+     *
      * @return JSON representation of node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
      */
     @POST
     @Path("/search")
     public Response search(
                 final @HeaderParam("Transaction") ForceMode force,
-                final String body)
+                final @HeaderParam("Content-Type") String contentType,
+                final @HeaderParam("Accept") String accept,
+                final @HeaderParam("Accept-Encoding") String acceptEncoding,
+                final @HeaderParam("If-None-Match") String ifNoneMatch,
+                final InputStream body)
     {
-        final PropertyMap<String, Object> properties;
+        final SearchTrace trace = new SearchTrace();
+        final SearchRequest request;
+        // hashed as it's decoded, since the bytes as sent are what an ETag is made of.
+        final DigestInputStream digesting = ResultTags.digesting(body);
         try {
-            log.fine("Reading properties map from " + body);
-            properties = new PropertyMap<String, Object>(input.readMap(body));
+            request = RequestDecoder.readSearchRequest(digesting, WireFormat.forContentType(contentType));
+            digesting.close();
+            log.fine("Decoded search request " + request);
+            if (request.isProfile()) {
+              trace.setProfile(new QueryProfile("search"));
+            }
+            trace.mark("decode");
         } catch (BadInputException e) {
-            log.warning("Broken input! Failed to decode " + body + ": " + e.getMessage());
+            log.warning("Broken input! Failed to decode search request: " + e.getMessage());
+            return output.badRequest(e);
+        } catch (IOException e) {
+            log.warning("Failed to read search request: " + e.getMessage());
             return output.badRequest(e);
         }
 
-        if(!ensureRequiredParameters(properties, REQUIRED_SEARCH_PARAMETERS)) {
-            return missingParameters(properties, REQUIRED_SEARCH_PARAMETERS);
+        if(!request.hasParameters(REQUIRED_SEARCH_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_SEARCH_PARAMETERS);
         }
 
-        String indexName = null;
-        PropertyMap<String, Object> querySpec = null;
-        try {
-          indexName = (String)properties.get("index_name");
-          querySpec = new PropertyMap((HashMap)properties.get("query_spec"));
-        } catch (ClassCastException cce) {
-          return output.badRequest(cce);
-        }
+        List<String> indexNames = resolveAll(request.getIndexNames());
+        PropertyMap<String, Object> querySpec = request.getQuerySpec();
 
         // optionally trim off low-quality hits
-        float minScore = 0;
-        if (properties.containsKey("min_score")) {
-          try {
-            minScore = properties.getFloat("min_score");
-          } catch (IllegalArgumentException iae) {
-            log.warning("Ignoring illegal value for min_score: "+iae.getMessage());
-          }
-        }
+        float minScore = request.getMinScore();
 
         // optionally use geo constraints.
-        // did the user try to set any?
-        PropertyMap<String, Double> searchRadius = null;
-        if (properties.containsKey(QueryBuilder.LAT_KEY) 
-          || properties.containsKey(QueryBuilder.LON_KEY) 
-          || properties.containsKey(QueryBuilder.DIST_KEY)) {
-          try {
-            searchRadius = properties.getSearchRadius(QueryBuilder.LAT_KEY, 
-                                                      QueryBuilder.LON_KEY, 
-                                                      QueryBuilder.DIST_KEY);
-          } catch (IllegalArgumentException iae) {
-            log.warning("Ignoring invalid geo constraints: "+iae.getMessage());
+        PropertyMap<String, Double> searchRadius = searchRadiusOf(request);
+
+        // can't search an absent index
+        for (String indexName : indexNames) {
+          if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+              new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
           }
         }
 
-        // can't search an absent index
-        if (!this.service.index().existsForNodes(indexName)) {
-          return output.badRequest(
-            new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        // read before searching, so a write while we search makes the tag out of date, not the results.
+        WireFormat responseFormat = WireFormat.forAccept(accept);
+        String etag = null;
+        String generation = ResultTags.generation(this.service);
+        // snapshots change when they're refreshed, not when the index is written, so their results aren't tagged.
+        boolean repeatable = !request.isProfile() && !request.isLowPriority() 
+          && (request.getSample() == 0 || request.getSeed() != null);
+        if (generation != null && repeatable) {
+          etag = ResultTags.tag(digesting, responseFormat, indexNames, generation);
+          if (ResultTags.matches(ifNoneMatch, etag)) {
+            return Response.notModified().header("ETag", etag).build();
+          }
         }
 
         List<ScoredNode> searchResult = null;
         try {
-          searchResult = indexQuery(indexName, querySpec, minScore, searchRadius);
+          searchResult = searchIndexes(indexNames, querySpec, minScore, searchRadius, request.getWithinHops(), 
+                                       request.getLimit(), request.getCollapseOn(), request.getSample(), request.getSeed(), 
+                                       request.getScoreMerge(), request.isLowPriority(), generation, trace);
         } catch (IllegalArgumentException iae) {
           return output.badRequest(iae);
         }
         
         // if we got here then search result is populated.
+        // binary callers get just ids, scores and the fields they asked for.
+        if (responseFormat != WireFormat.JSON) {
+          logIfSlow(request, trace);
+          return tagAndEncode(Response.ok(new LeanResultWriter(searchResult, request.getFields(), responseFormat, 
+                                                               trace.getProfile()), 
+                                          responseFormat.getMediaType()).build(), etag, acceptEncoding);
+        }
+
         // build up a representation to be returned (there's got to be a better way!)
         List<ScoredNodeRepresentation> reprList = new ArrayList<ScoredNodeRepresentation>();
         for (ScoredNode sn : searchResult) {
@@ -161,13 +237,175 @@ public class LuceneSearch {
                                                                   sn.getScore());
           reprList.add(repr);
         }
-        ListRepresentation reprListRepr = new ListRepresentation("org.neo4j.server.rest.repr.ScoredNodeRepresentation", reprList);
+        final ListRepresentation reprListRepr = new ListRepresentation("org.neo4j.server.rest.repr.ScoredNodeRepresentation", reprList);
 
-        return output.ok(reprListRepr);
+        Response response;
+        if (trace.getProfile() == null) {
+          response = output.ok(reprListRepr);
+        } else {
+          // profiled searches get {"results": [...], "profile": {...}}
+          final QueryProfile profile = trace.getProfile();
+          response = output.ok(new MappingRepresentation("search_profile") {
+            @Override
+            protected void serialize(MappingSerializer serializer) {
+              serializer.putList("results", reprListRepr);
+              serializer.putMapping("profile", new MapRepresentation(profile.toMap()));
+            }
+          });
+        }
+        trace.mark("render");
+        logIfSlow(request, trace);
+        return tagAndEncode(response, etag, acceptEncoding);
+    }
+
+    private Response tagAndEncode(Response response, String etag, String acceptEncoding) {
+        if (etag != null) {
+          response = Response.fromResponse(response).header("ETag", etag).build();
+        }
+        return ContentEncoding.encode(response, acceptEncoding, settings.getCompressionMinBytes());
     }
 
     /**
-     * Index the node with the provided id, using a numeric value which will always be converted to a double.
+     * Stream the id of every node matching a query, unscored, as newline-delimited JSON. See
+     * {@link ExportWriter} for the order ids come in and the format.
+     *
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of one index to export from. The index must exist.
+     *             - query_spec: The query to match, as for /search.
+     *             Optional:
+     *             - fields: Node properties to include with each id.
+     *             - within_hops: A graph neighborhood to restrict matches to, as for /search.
+     *             - limit: The most ids to export. The last line says where to carry on from.
+     *             - cursor: The last id of an earlier export of the same query, to carry on after.
+     *
+     * @return a stream of {"id": $NODE_ID} lines, then a {"cursor": $LAST_ID, "count": $COUNT, "done": $DONE} line.
+     */
+    @POST
+    @Path("/export")
+    public Response export(
+                final @HeaderParam("Content-Type") String contentType,
+                final @HeaderParam("Accept-Encoding") String acceptEncoding,
+                final InputStream body)
+    {
+        final SearchRequest request;
+        try {
+            request = RequestDecoder.readSearchRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded export request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode export request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_SEARCH_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_SEARCH_PARAMETERS);
+        }
+        if (request.getIndexNames().size() > 1) {
+          return output.badRequest(new IllegalArgumentException("Export reads one index at a time."));
+        }
+        if (!request.getGeoConstraints().isEmpty()) {
+          return output.badRequest(
+            new IllegalArgumentException("Export doesn't check distances; put a GEO query in the query_spec instead."));
+        }
+
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        if (!this.service.index().existsForNodes(indexName)) {
+          return output.badRequest(
+            new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+        Index<Node> index = this.service.index().forNodes(indexName);
+        long cursor = -1;
+        if (request.getCursor() != null) {
+          try {
+            cursor = Long.parseLong(request.getCursor());
+          } catch (NumberFormatException e) {
+            return output.badRequest(
+              new IllegalArgumentException("cursor must be a node id, but was " + request.getCursor()));
+          }
+        }
+
+        Query query;
+        try {
+          Map<String, String> config = this.service.index().getConfiguration(index);
+          query = QueryBuilder.buildQuery(getIndexAnalyzer(indexName), request.getQuerySpec(), null, 
+                                          new NumericFields(config), new NGramFields(config));
+          if (request.getWithinHops() != null) {
+            query = new FilteredQuery(query, NeighborhoodFilter.traverse(this.service, request.getWithinHops()));
+          }
+        } catch (IllegalArgumentException iae) {
+          return output.badRequest(iae);
+        }
+        return ContentEncoding.encode(
+          Response.ok(new ExportWriter(this.service, index, query, request.getFields(), cursor, 
+                                       request.getLimit()), ExportWriter.MEDIA_TYPE).build(), 
+          acceptEncoding, settings.getCompressionMinBytes());
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #export(String, String, InputStream)
+     */
+    public Response export(final String body) {
+        return export(null, null, toStream(body));
+    }
+
+    // the geo constraints, if the user tried to set any and they make sense.
+    private PropertyMap<String, Double> searchRadiusOf(SearchRequest request) {
+        PropertyMap<String, Object> geoConstraints = request.getGeoConstraints();
+        if (geoConstraints.isEmpty()) {
+          return null;
+        }
+        try {
+          return geoConstraints.getSearchRadius(QueryBuilder.LAT_KEY, 
+                                                QueryBuilder.LON_KEY, 
+                                                QueryBuilder.DIST_KEY);
+        } catch (IllegalArgumentException iae) {
+          log.warning("Ignoring invalid geo constraints: "+iae.getMessage());
+          return null;
+        }
+    }
+
+    /**
+     * Run a decoded search the way /search would, without rendering the hits. Warm-up uses this
+     * to exercise the same code as real searches.
+     *
+     * @param request A search request with a query_spec and the name of an existing index
+     * @return the hits
+     * @throws IllegalArgumentException if the request is incomplete, or its query spec is invalid
+     */
+    List<ScoredNode> run(SearchRequest request) throws IllegalArgumentException {
+        if (!request.hasParameters(REQUIRED_SEARCH_PARAMETERS)) {
+          throw new IllegalArgumentException("Search needs " + Arrays.toString(REQUIRED_SEARCH_PARAMETERS));
+        }
+        List<String> indexNames = resolveAll(request.getIndexNames());
+        for (String indexName : indexNames) {
+          if (!this.service.index().existsForNodes(indexName)) {
+            throw new IllegalArgumentException("Index with index_name: " + indexName + " does not exist.");
+          }
+        }
+        return searchIndexes(indexNames, request.getQuerySpec(), request.getMinScore(), searchRadiusOf(request),
+                             request.getWithinHops(), request.getLimit(), request.getCollapseOn(), request.getSample(),
+                             request.getSeed(), request.getScoreMerge(), request.isLowPriority(),
+                             ResultTags.generation(this.service), new SearchTrace());
+    }
+
+    private void logIfSlow(SearchRequest request, SearchTrace trace) {
+        if (slowQueryLog.isSlow(trace)) {
+          slowQueryLog.record(request, trace);
+        }
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #search(ForceMode, String, String, String, String, InputStream)
+     */
+    public Response search(final ForceMode force, final String body) {
+        return search(force, null, null, null, null, toStream(body));
+    }
+
+    /**
+     * Index the node with the provided id, using a numeric value of the key's numeric type in place of any
+     * value it had for the key.
      *
      * @param force Force mode for transaction, normally used internally.
      * @param body JSON encoded parameters.
@@ -175,7 +413,12 @@ public class LuceneSearch {
      *             - node_id: The node to index
      *             - index_name: Name of index to put it in
      *             - index_key: Index key to use
-     *             - index_value: The numeric value we want to index. Any provided value will be cast to a double.
+     *             - index_value: The numeric value we want to index. It will be cast to the key's numeric type.
+     *             Optional:
+     *             - numeric_type: int, long, float or double. Recorded for the key the first time it's
+     *               given; keys with none recorded are doubles.
+     *             - async: true to queue the write for the write-behind writer and answer 202 straight
+     *               away, false to commit it first. Defaults to the write_behind setting.
      *
      * @return JSON representation of indexed node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
      */
@@ -183,34 +426,31 @@ public class LuceneSearch {
     @Path("/index/numeric")
     public Response numericIndex(
                 final @HeaderParam("Transaction") ForceMode force,
-                final String body)
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
     {
-        final PropertyMap<String, Object> properties;
+        final IndexRequest request;
         try {
-            log.fine("Reading properties map from " + body);
-            properties = new PropertyMap<String, Object>(input.readMap(body));
+            request = RequestDecoder.readIndexRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded numeric index request " + request);
         } catch (BadInputException e) {
-            log.warning("Broken input! Failed to decode " + body + ": " + e.getMessage());
+            log.warning("Broken input! Failed to decode numeric index request: " + e.getMessage());
             return output.badRequest(e);
         }
 
-        if(!ensureRequiredParameters(properties, REQUIRED_NUM_INDEX_PARAMETERS)) {
-            return missingParameters(properties, REQUIRED_NUM_INDEX_PARAMETERS);
+        if(!request.hasParameters(REQUIRED_NUM_INDEX_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_NUM_INDEX_PARAMETERS);
         }
         
-        // need an index_name, node, and coordinates.
-        String indexName = null;
-        long nodeId = 0;
-        String indexKey = null;
-        double indexValue = 0;
-        try {
-          indexName = (String)properties.get("index_name");
-          indexKey = (String)properties.get("index_key");
-          indexValue = properties.getDouble("index_value");
-          nodeId = properties.getInt("node_id");
-        } catch (ClassCastException cce) {
-          return output.badRequest(cce);
+        // need an index_name, node, key and value.
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        long nodeId = request.getNodeId();
+        String indexKey = request.getIndexKey();
+        if (!(request.getIndexValue() instanceof Number)) {
+          return output.badRequest(
+            new IllegalArgumentException("index_value must be numeric, but was " + request.getIndexValue()));
         }
+        Number indexValue = (Number)request.getIndexValue();
         
         // get the named index
         // INDEX MUST EXIST.
@@ -220,17 +460,55 @@ public class LuceneSearch {
         }
         Index<Node> index = this.service.index().forNodes(indexName);
         
+        if (!isAsync(request)) {
+          // a queued write for the key would overwrite this one when it's committed.
+          WriteQueue.cancel(this.service, request.getIndexName(), nodeId, indexKey);
+        }
+        // a rebuild of the index can't be switched in until this is written to both.
+        ReadWriteLock switching = RebuildJob.switchLock(this.service, request.getIndexName());
+        switching.readLock().lock();
         Node node = null;
+        NumericType type = null;
         try {
-          node = numericIndex(this.service, index, nodeId, indexKey, indexValue);
+          // so the name resolves the same until we're done.
+          indexName = IndexAliases.resolve(this.service, request.getIndexName());
+          index = this.service.index().forNodes(indexName);
+          type = NumericFields.declare(this.service, index, indexKey, request.getNumericType());
+          if (!isAsync(request)) {
+            node = numericIndex(this.service, index, nodeId, indexKey, indexValue, type);
+            Index<Node> rebuilding = RebuildJob.runningTarget(this.service, request.getIndexName());
+            if (rebuilding != null) {
+              numericIndex(this.service, rebuilding, nodeId, indexKey, indexValue,
+                           NumericFields.declareIfAbsent(this.service, rebuilding, indexKey, type));
+            }
+          }
+        } catch (IllegalArgumentException e) {
+          return output.badRequest(e);
         } catch (NotFoundException e) {
           return output.badRequest(e);
+        } finally {
+          switching.readLock().unlock();
+        }
+        if (isAsync(request)) {
+          // queued without the switch lock: waiting for room with it held would keep the writer,
+          // which takes it to commit, from ever making any once a rebuild is waiting to switch.
+          try {
+            node = this.service.getNodeById(nodeId);
+            WriteQueue.forDatabase(this.service, settings).numericIndex(request.getIndexName(), nodeId, indexKey,
+                                                                        indexValue, type);
+          } catch (NotFoundException e) {
+            return output.badRequest(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return output.serverError(e);
+          }
+          return accepted(node);
         }
         return output.ok(new NodeRepresentation(node));
     }
     
     /**
-     * Index the node with the provided id, using the provided latitude and longitude.
+     * Index the node with the provided id, using the provided latitude and longitude in place of any it had.
      *
      * @param force Force mode for transaction, normally used internally.
      * @param body JSON encoded parameters.
@@ -239,6 +517,9 @@ public class LuceneSearch {
      *             - index_name: Name of index to put it in
      *             - lat: The latitude for this node
      *             - lon: The longitude for this node
+     *             Optional:
+     *             - async: true to queue the write for the write-behind writer and answer 202 straight
+     *               away, false to commit it first. Defaults to the write_behind setting.
      *
      * @return JSON representation of indexed node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
      */
@@ -246,32 +527,29 @@ public class LuceneSearch {
     @Path("/index/geo")
     public Response geoIndex(
                 final @HeaderParam("Transaction") ForceMode force,
-                final String body)
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
     {
-        final PropertyMap<String, Object> properties;
+        final IndexRequest request;
         try {
-            log.fine("Reading properties map from " + body);
-            properties = new PropertyMap<String, Object>(input.readMap(body));
+            request = RequestDecoder.readIndexRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded geo index request " + request);
         } catch (BadInputException e) {
-            log.warning("Broken input! Failed to decode " + body + ": " + e.getMessage());
+            log.warning("Broken input! Failed to decode geo index request: " + e.getMessage());
             return output.badRequest(e);
         }
 
-        if(!ensureRequiredParameters(properties, REQUIRED_GEO_INDEX_PARAMETERS)) {
-            return missingParameters(properties, REQUIRED_GEO_INDEX_PARAMETERS);
+        if(!request.hasParameters(REQUIRED_GEO_INDEX_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_GEO_INDEX_PARAMETERS);
         }
         
         // need an index_name, node, and coordinates from the caller
-        String indexName = null;
-        long nodeId = 0;
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        long nodeId = request.getNodeId();
         PropertyMap<String, Double> coords = null;
         try {
-          indexName = (String)properties.get("index_name");
-          coords = properties.getCoords(QueryBuilder.LAT_KEY, 
-                                        QueryBuilder.LON_KEY);
-          nodeId = properties.getInt("node_id");
-        } catch (ClassCastException cce) {
-          return output.badRequest(cce);
+          coords = request.getCoords().getCoords(QueryBuilder.LAT_KEY, 
+                                                 QueryBuilder.LON_KEY);
         } catch (IllegalArgumentException iae) {
           return output.badRequest(iae);
         }
@@ -285,16 +563,472 @@ public class LuceneSearch {
         Index<Node> index = this.service.index().forNodes(indexName);
         
         Node node = null;
+        if (isAsync(request)) {
+          // the writer resolves the name when it commits, so there's no need for the switch lock,
+          // and waiting for room with it held would keep the writer from ever making any.
+          try {
+            node = this.service.getNodeById(nodeId);
+            WriteQueue.forDatabase(this.service, settings).geoIndex(request.getIndexName(), nodeId, 
+                                                                    coords.get(QueryBuilder.LAT_KEY), coords.get(QueryBuilder.LON_KEY));
+          } catch (NotFoundException e) {
+            return output.badRequest(e);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return output.serverError(e);
+          }
+          return accepted(node);
+        }
+        // queued coordinates would overwrite these when they're committed.
+        WriteQueue.cancel(this.service, request.getIndexName(), nodeId, QueryBuilder.LAT_KEY);
+        // a rebuild of the index can't be switched in until this is written to both.
+        ReadWriteLock switching = RebuildJob.switchLock(this.service, request.getIndexName());
+        switching.readLock().lock();
         try {
+          // so the name resolves the same until we're done.
+          indexName = IndexAliases.resolve(this.service, request.getIndexName());
+          index = this.service.index().forNodes(indexName);
           node = geoIndex(this.service, index, nodeId, coords.get(QueryBuilder.LAT_KEY), coords.get(QueryBuilder.LON_KEY));
+          Index<Node> rebuilding = RebuildJob.runningTarget(this.service, request.getIndexName());
+          if (rebuilding != null) {
+            geoIndex(this.service, rebuilding, nodeId, coords.get(QueryBuilder.LAT_KEY), coords.get(QueryBuilder.LON_KEY));
+          }
         } catch (NotFoundException e) {
           return output.badRequest(e);
+        } finally {
+          switching.readLock().unlock();
         }
         return output.ok(new NodeRepresentation(node));
     }
     
+    /**
+     * Index a string value for a node, and count its terms in any suggester for that index key.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index to use. The index must exist.
+     *             - node_id: ID of node that we want to index.
+     *             - index_key: Key at which we'll index the value.
+     *             - index_value: The string to index. It is analyzed by the index's analyzer, if it has one.
+     *             Optional:
+     *             - ngram: Also write the character n-grams of each term, of this size, for FUZZY queries.
+     *               Recorded for the key the first time it's given, and used for every later write to it.
+     *
+     * @return JSON representation of indexed node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
+     */
+    @POST
+    @Path("/index/text")
+    public Response textIndex(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
+    {
+        final IndexRequest request;
+        try {
+            request = RequestDecoder.readIndexRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded text index request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode text index request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_TEXT_INDEX_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_TEXT_INDEX_PARAMETERS);
+        }
+
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        String indexKey = request.getIndexKey();
+        if (!(request.getIndexValue() instanceof String)) {
+          return output.badRequest(
+            new IllegalArgumentException("index_value must be a string, but was " + request.getIndexValue()));
+        }
+        String indexValue = (String)request.getIndexValue();
+
+        // INDEX MUST EXIST.
+        if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+        Index<Node> index = this.service.index().forNodes(indexName);
+
+        // a rebuild of the index can't be switched in until this is written to both.
+        ReadWriteLock switching = RebuildJob.switchLock(this.service, request.getIndexName());
+        switching.readLock().lock();
+        Node node = null;
+        try {
+          // so the name resolves the same until we're done.
+          indexName = IndexAliases.resolve(this.service, request.getIndexName());
+          index = this.service.index().forNodes(indexName);
+          Index<Node> rebuilding = RebuildJob.runningTarget(this.service, request.getIndexName());
+          if (request.getNgram() > 0) {
+            NGramFields.declare(this.service, index, indexKey, request.getNgram());
+            if (rebuilding != null) {
+              NGramFields.declare(this.service, rebuilding, indexKey, request.getNgram());
+            }
+          }
+          node = textIndex(this.service, index, request.getNodeId(), indexKey, indexValue);
+          if (rebuilding != null) {
+            textIndex(this.service, rebuilding, request.getNodeId(), indexKey, indexValue);
+          }
+        } catch (IllegalArgumentException e) {
+          return output.badRequest(e);
+        } catch (NotFoundException e) {
+          return output.badRequest(e);
+        } finally {
+          switching.readLock().unlock();
+        }
+        Suggesters.forDatabase(this.service).added(indexName, indexKey, analyze(indexName, indexKey, indexValue));
+        return output.ok(new NodeRepresentation(node));
+    }
+
+    /**
+     * Suggest completions of a prefix from the terms of an index key, heaviest first.
+     * Terms are weighted by the number of nodes indexed with them.
+     *
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index whose terms to suggest. The index must exist.
+     *             - index_key: Key whose terms to suggest.
+     *             - prefix: What the user has typed so far.
+     *             Optional:
+     *             - size: The most completions to return. Defaults to 10.
+     *
+     * @return a JSON list of {"term": $TERM, "weight": $WEIGHT} objects.
+     */
+    @POST
+    @Path("/suggest")
+    public Response suggest(
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
+    {
+        final SuggestRequest request;
+        try {
+            request = RequestDecoder.readSuggestRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded suggest request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode suggest request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_SUGGEST_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_SUGGEST_PARAMETERS);
+        }
+
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+        Index<Node> index = this.service.index().forNodes(indexName);
+
+        List<PrefixSuggester.Suggestion> suggestions;
+        try {
+          suggestions = Suggesters.forDatabase(this.service)
+            .get(index, indexName, request.getIndexKey())
+            .complete(request.getPrefix(), request.getSize());
+        } catch (IOException e) {
+          return output.serverError(e);
+        }
+        List<Representation> reprList = new ArrayList<Representation>();
+        for (PrefixSuggester.Suggestion suggestion : suggestions) {
+          Map<String, Object> map = new HashMap<String, Object>();
+          map.put("term", suggestion.getTerm());
+          map.put("weight", suggestion.getWeight());
+          reprList.add(new MapRepresentation(map));
+        }
+        return output.ok(new ListRepresentation("suggestion", reprList));
+    }
+
+    /**
+     * Whether the plugin has finished warming up, for load balancer health checks.
+     *
+     * @return 200 once warm-up is done or if there isn't one, and 503 until then, with a JSON
+     *         object saying how far warm-up has got.
+     */
+    @GET
+    @Path("/ready")
+    public Response ready()
+    {
+        Warmup warmup = Warmup.forDatabase(this.service);
+        if (warmup == null) {
+          Map<String, Object> status = new HashMap<String, Object>();
+          status.put("ready", true);
+          return output.ok(new MapRepresentation(status));
+        }
+        if (warmup.isReady()) {
+          return output.ok(new MapRepresentation(warmup.getStatus()));
+        }
+        try {
+          return output.response(Response.Status.SERVICE_UNAVAILABLE, new MapRepresentation(warmup.getStatus()));
+        } catch (BadInputException e) {
+          return output.serverError(e);
+        }
+    }
+
+    /**
+     * Remove a node's values for one key from an index, or remove the node from the index entirely.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index to remove from. The index must exist.
+     *             - node_id: ID of node to remove.
+     *             Optional:
+     *             - index_key: The key whose values should be removed. Without one, every value
+     *               the node has in the index is removed.
+     *
+     * @return JSON representation of the node. (See: http://docs.neo4j.org/chunked/milestone/rest-api-node-properties.html)
+     */
+    @POST
+    @Path("/index/remove")
+    public Response removeFromIndex(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
+    {
+        final IndexRequest request;
+        try {
+            request = RequestDecoder.readIndexRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded index remove request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode index remove request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_REMOVE_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_REMOVE_PARAMETERS);
+        }
+
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+        Index<Node> index = this.service.index().forNodes(indexName);
+
+        // otherwise a queued write could put back what's removed.
+        WriteQueue.cancel(this.service, request.getIndexName(), request.getNodeId(), request.getIndexKey());
+        // a rebuild of the index can't be switched in until this is written to both.
+        ReadWriteLock switching = RebuildJob.switchLock(this.service, request.getIndexName());
+        switching.readLock().lock();
+        Node node = null;
+        try {
+          // so the name resolves the same until we're done.
+          indexName = IndexAliases.resolve(this.service, request.getIndexName());
+          index = this.service.index().forNodes(indexName);
+          node = removeFromIndex(this.service, index, request.getNodeId(), request.getIndexKey());
+          Index<Node> rebuilding = RebuildJob.runningTarget(this.service, request.getIndexName());
+          if (rebuilding != null) {
+            removeFromIndex(this.service, rebuilding, request.getNodeId(), request.getIndexKey());
+          }
+        } catch (NotFoundException e) {
+          return output.badRequest(e);
+        } finally {
+          switching.readLock().unlock();
+        }
+        return output.ok(new NodeRepresentation(node));
+    }
+
+    /**
+     * Purge stale values from an index's numeric and geo keys, left over from when indexing a new
+     * value for a node added to its old ones rather than replacing them. Only needs running once.
+     *
+     * @param force Force mode for transaction, normally used internally.
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index to compact. The index must exist.
+     *             Optional:
+     *             - index_key: The one key to compact. Defaults to lat, lon and every key with a
+     *               recorded numeric type.
+     *
+     * @return a JSON object with the number of documents scanned, entries rewritten, stale
+     *         values dropped and the time taken.
+     */
+    @POST
+    @Path("/index/compact")
+    public Response compactIndex(
+                final @HeaderParam("Transaction") ForceMode force,
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
+    {
+        final IndexRequest request;
+        try {
+            request = RequestDecoder.readIndexRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded index compact request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode index compact request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_COMPACT_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_COMPACT_PARAMETERS);
+        }
+
+        String indexName = IndexAliases.resolve(this.service, request.getIndexName());
+        if (!this.service.index().existsForNodes(indexName)) {
+            return output.badRequest(
+                    new IllegalArgumentException("Index with index_name: " + indexName + " does not exist."));
+        }
+        Index<Node> index = this.service.index().forNodes(indexName);
+        List<String> keys = (request.getIndexKey() == null)
+          ? IndexCompactor.defaultKeys(this.service, index)
+          : Arrays.asList(request.getIndexKey());
+
+        try {
+          return output.ok(new MapRepresentation(IndexCompactor.compact(this.service, index, keys)));
+        } catch (IOException e) {
+          return output.serverError(e);
+        }
+    }
+
+    /**
+     * Commit every queued index write, and wait until they're visible to searches.
+     *
+     * @return a JSON object of write queue metrics, as from GET /index/queue.
+     */
+    @POST
+    @Path("/index/flush")
+    public Response flushIndexWrites()
+    {
+        WriteQueue queue = WriteQueue.forDatabase(this.service, settings);
+        queue.flush();
+        return output.ok(new MapRepresentation(queue.getMetrics()));
+    }
+
+    /**
+     * Write queue metrics: how many writes are queued, have been coalesced away, written and
+     * failed, and how many transactions they took.
+     *
+     * @return a JSON object of write queue metrics.
+     */
+    @GET
+    @Path("/index/queue")
+    public Response indexQueue()
+    {
+        return output.ok(new MapRepresentation(WriteQueue.forDatabase(this.service, settings).getMetrics()));
+    }
+
+    /**
+     * Rebuild an index from node properties, in the background. The new index takes over the
+     * old one's name when it's done; until then searches keep using the old one, and writes go
+     * to both.
+     *
+     * @param body JSON encoded parameters.
+     *             Required:
+     *             - index_name: Name of index to rebuild. The index must exist.
+     *             Optional:
+     *             - geo: true to index the lat and lon properties as coordinates.
+     *             - numeric_keys: Numeric properties to index, as a list, or as an object of
+     *               property names to numeric types. Types default to the ones recorded for the old index.
+     *             - text_keys: A list of string properties to index with the new index's analyzer.
+     *             - config: Index config for the new index, over the old one's, e.g. a new analyzer.
+     *             - all_nodes: true to scan every node, rather than just the ones in the old index.
+     *             - threads: Worker threads to scan with. Defaults to 4.
+     *             - batch_size: Node ids scanned per transaction. Defaults to 10000.
+     *             - max_nodes_per_second: The most node ids to scan per second. Defaults to 0, for no limit.
+     *
+     * @return a JSON object describing the rebuild's progress.
+     */
+    @POST
+    @Path("/index/rebuild")
+    public Response rebuildIndex(
+                final @HeaderParam("Content-Type") String contentType,
+                final InputStream body)
+    {
+        final RebuildRequest request;
+        try {
+            request = RequestDecoder.readRebuildRequest(body, WireFormat.forContentType(contentType));
+            log.fine("Decoded index rebuild request " + request);
+        } catch (BadInputException e) {
+            log.warning("Broken input! Failed to decode index rebuild request: " + e.getMessage());
+            return output.badRequest(e);
+        }
+
+        if(!request.hasParameters(REQUIRED_REBUILD_PARAMETERS)) {
+            return missingParameters(request.getReceivedParameters(), REQUIRED_REBUILD_PARAMETERS);
+        }
+
+        try {
+          return output.ok(new MapRepresentation(RebuildJob.start(this.service, request).getProgress()));
+        } catch (IllegalArgumentException e) {
+          return output.badRequest(e);
+        }
+    }
+
+    /**
+     * The progress of the latest rebuild of each index.
+     *
+     * @return a JSON list of progress objects, as returned when each rebuild was started.
+     */
+    @GET
+    @Path("/index/rebuild")
+    public Response rebuildProgress()
+    {
+        List<Representation> reprList = new ArrayList<Representation>();
+        for (RebuildJob job : RebuildJob.forDatabase(this.service)) {
+          reprList.add(new MapRepresentation(job.getProgress()));
+        }
+        return output.ok(new ListRepresentation("rebuild", reprList));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #removeFromIndex(ForceMode, String, InputStream)
+     */
+    public Response removeFromIndex(final ForceMode force, final String body) {
+        return removeFromIndex(force, null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #compactIndex(ForceMode, String, InputStream)
+     */
+    public Response compactIndex(final ForceMode force, final String body) {
+        return compactIndex(force, null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #rebuildIndex(String, InputStream)
+     */
+    public Response rebuildIndex(final String body) {
+        return rebuildIndex(null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #textIndex(ForceMode, String, InputStream)
+     */
+    public Response textIndex(final ForceMode force, final String body) {
+        return textIndex(force, null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #suggest(String, InputStream)
+     */
+    public Response suggest(final String body) {
+        return suggest(null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #numericIndex(ForceMode, String, InputStream)
+     */
+    public Response numericIndex(final ForceMode force, final String body) {
+        return numericIndex(force, null, toStream(body));
+    }
+
+    /**
+     * Convenience for callers that already hold the request body as a String.
+     * @see #geoIndex(ForceMode, String, InputStream)
+     */
+    public Response geoIndex(final ForceMode force, final String body) {
+        return geoIndex(force, null, toStream(body));
+    }
+
     /** 
-    * Index a numeric value so that it can be searched by range.
+    * Index a numeric value so that it can be searched by range, replacing any the node had for the key.
     * @param db  A connection to the db where we'll index this
     * @param index The index to use
     * @param nodeId  The id of the node we want to index
@@ -302,10 +1036,29 @@ public class LuceneSearch {
     * @param value the value to index
     * @return The indexed node */
     public static Node numericIndex(GraphDatabaseService db, Index<Node> index, long nodeId, String key, double value) {
+      return numericIndex(db, index, nodeId, key, value, NumericType.DOUBLE);
+    }
+    
+    /** 
+    * Index a numeric value as the given type. NUMRANGE queries only find it if the type is
+    * recorded for the key; see {@link NumericFields}.
+    * @param db  A connection to the db where we'll index this
+    * @param index The index to use
+    * @param nodeId  The id of the node we want to index
+    * @param key The index field where we'll index the node
+    * @param value the value to index
+    * @param type the type to index it as
+    * @return The indexed node */
+    public static Node numericIndex(GraphDatabaseService db, Index<Node> index, long nodeId, String key, 
+                                    Number value, NumericType type) {
       Node node = db.getNodeById(nodeId);
-      ValueContext vc = ValueContext.numeric(value);
+      ValueContext vc = ValueContext.numeric(type.convert(value));
       Transaction tx = db.beginTx();
       try {
+        // the compactor locks the node while it rewrites its values.
+        tx.acquireWriteLock(node);
+        // replace the old value rather than adding to it.
+        index.remove(node, key);
         index.add(node, key, vc);
         tx.success();
       } finally {
@@ -315,7 +1068,69 @@ public class LuceneSearch {
     }
     
     /** 
-    * Index a node by latitude/longitude.
+    * Index a string value, which the index will analyze, and its n-grams if the key is n-gram indexed.
+    * @param db  A connection to the db where we'll index this
+    * @param index The index to use
+    * @param nodeId  The id of the node we want to index
+    * @param key The index field where we'll index the node
+    * @param value the value to index
+    * @return The indexed node */
+    public static Node textIndex(GraphDatabaseService db, Index<Node> index, long nodeId, String key, String value) {
+      Node node = db.getNodeById(nodeId);
+      int gramSize = NGramFields.forIndex(db, index).sizeOf(key);
+      Transaction tx = db.beginTx();
+      try {
+        index.add(node, key, value);
+        if (gramSize > 0) {
+          NGramFields.addGrams(index, node, key, value, indexAnalyzer(db, index), gramSize);
+        }
+        tx.success();
+      } finally {
+        tx.finish();
+      }
+      return node;
+    }
+    
+    /** 
+    * Remove a node's values for a key from an index, or all of its values. Anything kept in
+    * memory for them, like coordinates and suggestions, is updated to match.
+    * @param db  A connection to the db where the index is
+    * @param index The index to remove from
+    * @param nodeId  The id of the node to remove
+    * @param key The key to remove the node's values for, or null to remove the node entirely
+    * @return The node */
+    public static Node removeFromIndex(GraphDatabaseService db, Index<Node> index, long nodeId, String key) 
+        throws NotFoundException
+    {
+      Node node = db.getNodeById(nodeId);
+      Transaction tx = db.beginTx();
+      try {
+        if (key == null) {
+          index.remove(node);
+        } else {
+          index.remove(node, key);
+          if (NGramFields.forIndex(db, index).sizeOf(key) > 0) {
+            index.remove(node, NGramFields.fieldFor(key));
+          }
+        }
+        tx.success();
+      } finally {
+        tx.finish();
+      }
+      if (key == null || key.equals(QueryBuilder.LAT_KEY) || key.equals(QueryBuilder.LON_KEY)) {
+        Coordinates.forDatabase(db).removed(index.getName(), nodeId);
+      }
+      // removed terms can't be uncounted, so suggestions are rebuilt when next asked for.
+      if (key == null) {
+        Suggesters.forDatabase(db).invalidate(index.getName());
+      } else {
+        Suggesters.forDatabase(db).invalidate(index.getName(), key);
+      }
+      return node;
+    }
+    
+    /** 
+    * Index a node by latitude/longitude, replacing any coordinates it had.
     * @param db  A connection to the db where we'll index this
     * @param index The index to use
     * @param nodeId  The id of the node we want to index
@@ -333,31 +1148,190 @@ public class LuceneSearch {
       // fooling with the nodespace needs to be atomic
       Transaction tx = db.beginTx();
       try {
+        tx.acquireWriteLock(node);
+        // replace the old coordinates rather than adding to them.
+        index.remove(node, QueryBuilder.LAT_KEY);
+        index.remove(node, QueryBuilder.LON_KEY);
         index.add(node, QueryBuilder.LAT_KEY, latValue);
         index.add(node, QueryBuilder.LON_KEY, lonValue);
         tx.success();
       } finally {
         tx.finish();
       }
+      Coordinates.forDatabase(db).indexed(index.getName(), nodeId, lat, lon);
 
       // nothin' broke.
       return node;
     }
 
 
+    // the indexes that answer for the given names.
+    private List<String> resolveAll(List<String> indexNames) {
+        List<String> resolved = new ArrayList<String>(indexNames.size());
+        for (String indexName : indexNames) {
+          resolved.add(IndexAliases.resolve(this.service, indexName));
+        }
+        return resolved;
+    }
+
+    /**
+     * Search one or more indexes, sharing the work with any identical search already running.
+     * Profiled searches always run on their own, as each needs its own profile, and so do
+     * unseeded samples. Searches only share with those that read the same database generation
+     * before starting, so hits are never older than the generation their tag is made from.
+     * @see #runSearch
+     */
+    private List<ScoredNode> searchIndexes(
+            final List<String> indexNames,
+            final PropertyMap<String, Object> querySpec,
+            final float minScore,
+            final PropertyMap<String, Double> searchRadius,
+            final PropertyMap<String, Object> withinHops,
+            final int limit,
+            final String collapseOn,
+            final int sample,
+            final Long seed,
+            final String scoreMerge,
+            final boolean lowPriority,
+            final String generation,
+            final SearchTrace trace)
+      throws IllegalArgumentException
+    {
+        // an unseeded sample is meant to differ from one search to the next.
+        if (trace.getProfile() != null || !settings.isSingleFlight() || (sample > 0 && seed == null)) {
+          return runSearch(indexNames, querySpec, minScore, searchRadius, withinHops, limit, collapseOn, sample, seed, scoreMerge, 
+                           lowPriority, trace);
+        }
+        // everything that decides the hits, with spec keys sorted so key order doesn't matter.
+        String key = System.identityHashCode(this.service) + " " + indexNames + " " + SlowQueryLog.normalize(querySpec)
+          + " " + minScore + " " + SlowQueryLog.normalize(searchRadius) + " " + SlowQueryLog.normalize(withinHops) + " " + limit + " " + collapseOn + " " + sample + " " + seed + " " + scoreMerge + " " + lowPriority + " " + generation;
+        final boolean[] ran = {false};
+        List<ScoredNode> hits;
+        try {
+          hits = inFlightSearches.run(key, new Callable<List<ScoredNode>>() {
+            public List<ScoredNode> call() {
+              ran[0] = true;
+              return Collections.unmodifiableList(
+                runSearch(indexNames, querySpec, minScore, searchRadius, withinHops, limit, collapseOn, sample, seed, scoreMerge, 
+                          lowPriority, trace));
+            }
+          });
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while waiting for an identical search", e);
+        }
+        if (!ran[0]) {
+          trace.setHitCount(hits.size());
+          trace.mark("shared");
+        }
+        return hits;
+    }
+
+    /**
+     * Search one or more indexes. Several indexes are searched concurrently, each with its own
+     * analyzer, and their hits merged into one list, best first, and cut to the limit.
+     * @param scoreMerge  how to merge scores from several indexes; see {@link SearchRequest#getScoreMerge}
+     * @see #indexQuery
+     */
+    private List<ScoredNode> runSearch(
+            final List<String> indexNames,
+            final PropertyMap<String, Object> querySpec,
+            final float minScore,
+            final PropertyMap<String, Double> searchRadius,
+            final PropertyMap<String, Object> withinHops,
+            final int limit,
+            final String collapseOn,
+            final int sample,
+            final Long seed,
+            final String scoreMerge,
+            final boolean lowPriority,
+            final SearchTrace trace)
+      throws IllegalArgumentException
+    {
+        if (sample > 0 && collapseOn != null) {
+          throw new IllegalArgumentException("sample and collapse_on can't be used together.");
+        }
+        if (indexNames.size() == 1) {
+          return indexQuery(indexNames.get(0), querySpec, minScore, searchRadius, withinHops, limit, collapseOn, 
+                            sample, seed, lowPriority, trace);
+        }
+        if (sample > 0) {
+          throw new IllegalArgumentException("sample reads one index at a time.");
+        }
+        // each index gets its own trace, as traces aren't thread safe, and its own part of the profile.
+        List<Future<List<ScoredNode>>> searches = new ArrayList<Future<List<ScoredNode>>>();
+        final List<SearchTrace> traces = new ArrayList<SearchTrace>();
+        ExecutorService pool = ScatterGather.pool(settings);
+        for (final String indexName : indexNames) {
+          final SearchTrace indexTrace = new SearchTrace();
+          if (trace.getProfile() != null) {
+            indexTrace.setProfile(trace.getProfile().child("index:" + indexName));
+          }
+          traces.add(indexTrace);
+          searches.add(pool.submit(new Callable<List<ScoredNode>>() {
+            public List<ScoredNode> call() {
+              return indexQuery(indexName, querySpec, minScore, searchRadius, withinHops, limit, collapseOn, 0, null, 
+                                lowPriority, indexTrace);
+            }
+          }));
+        }
+        List<List<ScoredNode>> hits = new ArrayList<List<ScoredNode>>();
+        try {
+          for (Future<List<ScoredNode>> search : searches) {
+            hits.add(search.get());
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IllegalStateException("Interrupted while searching " + indexNames, e);
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IllegalArgumentException) {
+            throw (IllegalArgumentException)e.getCause();
+          }
+          throw new RuntimeException("Failed to search " + indexNames, e.getCause());
+        } finally {
+          for (Future<List<ScoredNode>> search : searches) {
+            search.cancel(true);
+          }
+        }
+        int hitCount = 0;
+        for (SearchTrace indexTrace : traces) {
+          hitCount += Math.max(0, indexTrace.getHitCount());
+        }
+        trace.setHitCount(hitCount);
+        trace.setQuery(traces.get(0).getQuery());
+        trace.mark("search");
+        List<ScoredNode> merged = ScatterGather.merge(hits, limit, SearchRequest.SCORE_MERGE_NORMALIZE.equals(scoreMerge));
+        trace.mark("merge");
+        return merged;
+    }
+
     /**
      * Search the named index, building a query as specified.
      * @param indexName     the name of the index to search
      * @param querySpec     a JSON representation of a query, which may be nested.
      * @param minScore  minimum similarity score to accept. 0 for no limit.
      * @param searchRadius an optional PropertyMap containing geo constraint information
+     * @param withinHops an optional PropertyMap describing the graph neighborhood to search in
+     * @param limit  the most hits to read, best first, or 0 to read them all
+     * @param collapseOn  an index key to keep only the best hit of each value of, or null to keep every hit
+     * @param sample  how many matches to pick at random instead of the best ones, or 0 to not sample
+     * @param seed  the seed to sample with, or null for a different sample each time
+     * @param lowPriority  true to search the index's snapshot, if it has one, rather than the index
+     * @param trace  where to record what the search did and how long it took
      * @return A list of nodes that match the query
      */
     private List<ScoredNode> indexQuery(
             final String indexName,
             final PropertyMap<String, Object> querySpec,
             final float minScore,
-            final PropertyMap<String, Double> searchRadius)
+            final PropertyMap<String, Double> searchRadius,
+            final PropertyMap<String, Object> withinHops,
+            final int limit,
+            final String collapseOn,
+            final int sample,
+            final Long seed,
+            final boolean lowPriority,
+            final SearchTrace trace)
       throws IllegalArgumentException
     {
         // make sure the index contains the desired key
@@ -365,12 +1339,137 @@ public class LuceneSearch {
         // is responsible for caring about whether it existed beforehand.
         Index<Node> index = this.service.index().forNodes(indexName);
         Analyzer analyzer = getIndexAnalyzer(indexName);
+        trace.mark("analyzer");
+        QueryProfile profile = trace.getProfile();
         // build query AFTER we get the index above, to ensure it has been created if it was absent.
-        Query query = QueryBuilder.buildQuery(analyzer, querySpec);
+        Map<String, String> config = this.service.index().getConfiguration(index);
+        Query query = QueryBuilder.buildQuery(analyzer, querySpec, profile, new NumericFields(config), new NGramFields(config));
+        trace.mark("build");
+        if (withinHops != null) {
+          // only documents for nodes in the neighborhood get scored at all.
+          Filter neighborhood = NeighborhoodFilter.traverse(this.service, withinHops);
+          if (profile != null) {
+            neighborhood = profile.child("within_hops").wrap(neighborhood);
+          }
+          query = new FilteredQuery(query, neighborhood);
+          trace.mark("traverse");
+        }
+        trace.setQuery(query);
+        // radius checks read coordinates from memory rather than from each hit's node.
+        CoordinateTable coordinates = null;
+        if (searchRadius != null) {
+          try {
+            coordinates = Coordinates.forDatabase(this.service).get(index, indexName);
+          } catch (IOException e) {
+            log.warning("Failed to load coordinates for " + indexName + ", reading them from nodes: " + e.getMessage());
+          }
+          trace.mark("coordinates");
+        }
         
-        // we'll need to make sure this doesn't have the query in it due to lucene weirdies.
-        IndexHits<Node> queryResults = index.query(query);
+        // low-priority searches run on the index's snapshot, if it has one, and never touch neo4j's searcher.
+        IndexSnapshots snapshots = lowPriority ? IndexSnapshots.forDatabase(this.service) : null;
+        IndexSnapshots.Snapshot snapshot = (snapshots == null) ? null : snapshots.acquire(indexName);
+        // hang on to the searcher if we might need to explain a slow query afterwards.
+        // collapsing and sampling need it to run the query on, so it only has to be captured, not run by neo4j.
+        boolean ownCollector = (collapseOn != null || sample > 0 || snapshot != null);
+        CapturingQuery capture = (snapshot != null) ? null : (ownCollector
+          ? new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, ""))) 
+          : (slowQueryLog.isEnabled() ? new CapturingQuery(query) : null));
+        QueryProfile radiusProfile = (profile == null || searchRadius == null) ? null : profile.child("radius_check");
         List<ScoredNode> resultsList = new ArrayList<ScoredNode>();
+        long start = System.nanoTime();
+        try {
+          if (ownCollector) {
+            // neo4j collects hits its own way, so run the query on its searcher (or the snapshot's) with a
+            // collector that either drops all but the best hit of each value as it goes, or picks a random sample.
+            IndexSearcher searcher;
+            if (snapshot != null) {
+              searcher = snapshot.getSearcher();
+            } else {
+              index.query(capture).close();
+              searcher = capture.getSearcher();
+            }
+            List<? extends ScoreDoc> docs = Collections.emptyList();
+            int hitCount = 0;
+            if (searcher != null && sample > 0) {
+              SamplingCollector collector = new SamplingCollector(sample, (seed == null) ? new Random() : new Random(seed), 
+                                                                  minScore);
+              searcher.search(query, collector);
+              hitCount = collector.getHitCount();
+              docs = collector.sample();
+            } else if (searcher != null && collapseOn != null) {
+              CollapsingCollector collector = new CollapsingCollector(collapseOn, minScore);
+              searcher.search(query, collector);
+              hitCount = collector.getHitCount();
+              docs = collector.top(limit);
+            } else if (searcher != null && limit > 0) {
+              TopDocs top = searcher.search(query, limit);
+              hitCount = top.totalHits;
+              docs = aboveMinScore(top.scoreDocs, minScore);
+            } else if (searcher != null) {
+              AllHitsCollector collector = new AllHitsCollector(minScore);
+              searcher.search(query, collector);
+              hitCount = collector.getHitCount();
+              docs = collector.hits();
+            }
+            trace.setHitCount(hitCount);
+            trace.mark(snapshot != null ? "snapshot_search" : "search");
+            collectDocs(searcher, docs, searchRadius, coordinates, resultsList, radiusProfile);
+            trace.mark("collect");
+          } else {
+            // we'll need to make sure this doesn't have the query in it due to lucene weirdies.
+            Query toRun = (capture == null) ? query : capture;
+            // with a limit, neo4j only collects the top hits instead of all of them.
+            IndexHits<Node> queryResults = index.query(limit > 0 ? new QueryContext(toRun).top(limit) : toRun);
+            trace.setHitCount(queryResults.size());
+            trace.mark("search");
+            collectHits(queryResults, minScore, searchRadius, coordinates, resultsList, radiusProfile);
+            trace.mark("collect");
+          }
+          if (profile != null) {
+            profile.addNanos(System.nanoTime() - start);
+            profile.addMatched(resultsList.size());
+          }
+          if (capture != null && slowQueryLog.isSlow(trace) && !resultsList.isEmpty()) {
+            trace.setTopHitExplanation(explain(capture, query, resultsList.get(0).getNode()));
+            trace.mark("explain");
+          }
+        } catch (IOException e) {
+          throw new RuntimeException("Failed to search " + indexName, e);
+        } finally {
+          if (capture != null) {
+            capture.release();
+          }
+          if (snapshot != null) {
+            snapshot.release();
+          }
+        }
+        return resultsList;
+    }
+
+    // hits from a plain top-n search that pass the min score. they come best first, so stop at the first that doesn't.
+    private static List<ScoreDoc> aboveMinScore(ScoreDoc[] hits, float minScore) {
+        List<ScoreDoc> passing = new ArrayList<ScoreDoc>(hits.length);
+        for (ScoreDoc hit : hits) {
+          if (hit.score < minScore) {
+            break;
+          }
+          passing.add(hit);
+        }
+        return passing;
+    }
+
+    // read hits into resultsList, dropping the ones that are too low-scoring or too far away.
+    // the radius check is charged to radiusProfile, if there is one.
+    private void collectHits(
+            final IndexHits<Node> queryResults,
+            final float minScore,
+            final PropertyMap<String, Double> searchRadius,
+            final CoordinateTable coordinates,
+            final List<ScoredNode> resultsList,
+            final QueryProfile radiusProfile)
+    {
+        double[] latLon = new double[2];
         for (Node n : queryResults) {
           // pack the similarity score into the node.
           float score = queryResults.currentScore();
@@ -380,27 +1479,97 @@ public class LuceneSearch {
           } 
           log.fine("Score " + score + " for node " + n + " passes threshold " + minScore);
           // are we checking distances?
-          if (searchRadius != null && n.hasProperty(QueryBuilder.LAT_KEY) && n.hasProperty(QueryBuilder.LON_KEY)) {
-            PropertyMap<String, Double> nodeCoords = null;
-            try {
-              nodeCoords = getNodeProps(n).getCoords(QueryBuilder.LAT_KEY, QueryBuilder.LON_KEY);
-              if (!inRadius ( searchRadius.get(QueryBuilder.LAT_KEY), 
-                              searchRadius.get(QueryBuilder.LON_KEY), 
-                              nodeCoords.get(QueryBuilder.LAT_KEY), 
-                              nodeCoords.get(QueryBuilder.LON_KEY), 
-                              searchRadius.get(QueryBuilder.DIST_KEY))) {
-                log.info("Dropping node that is too far away.");
-                continue;
-              }
-            } catch (IllegalArgumentException iae) {
-              log.warning("Node "+n+" has coordinates that appear to be invalid.");
-            }
+          if (searchRadius != null && !inSearchRadius(n, searchRadius, coordinates, latLon, radiusProfile)) {
+            log.info("Dropping node that is too far away.");
+            continue;
           }
           log.fine("Adding node " + n + " with score " + score);
           resultsList.add(new ScoredNode(n, score));
         }
         queryResults.close(); // must release the search result's resources.
-        return resultsList;
+    }
+
+    // read hits found by our own collectors into resultsList, dropping the ones that are too far away.
+    // min scores were already checked while collecting. collapsed hits keep their value.
+    private void collectDocs(
+            final IndexSearcher searcher,
+            final List<? extends ScoreDoc> docs,
+            final PropertyMap<String, Double> searchRadius,
+            final CoordinateTable coordinates,
+            final List<ScoredNode> resultsList,
+            final QueryProfile radiusProfile)
+      throws IOException
+    {
+        double[] latLon = new double[2];
+        FieldSelector idOnly = new MapFieldSelector(CapturingQuery.DOC_ID_KEY);
+        for (ScoreDoc doc : docs) {
+          Node n;
+          try {
+            n = this.service.getNodeById(Long.parseLong(searcher.doc(doc.doc, idOnly).get(CapturingQuery.DOC_ID_KEY)));
+          } catch (NotFoundException e) {
+            log.info("Dropping hit for a node that has been deleted.");
+            continue;
+          }
+          if (searchRadius != null && !inSearchRadius(n, searchRadius, coordinates, latLon, radiusProfile)) {
+            log.info("Dropping node that is too far away.");
+            continue;
+          }
+          String group = (doc instanceof CollapsingCollector.Group) ? ((CollapsingCollector.Group)doc).getValue() : null;
+          log.fine("Adding node " + n + " with score " + doc.score);
+          resultsList.add(new ScoredNode(n, doc.score, group));
+        }
+    }
+
+    // check a hit's distance from the search center, from memory if we can. latLon is scratch space.
+    private boolean inSearchRadius(
+            final Node n,
+            final PropertyMap<String, Double> searchRadius,
+            final CoordinateTable coordinates,
+            final double[] latLon,
+            final QueryProfile radiusProfile)
+    {
+        long start = System.nanoTime();
+        boolean near = (coordinates != null && coordinates.get(n.getId(), latLon))
+          ? inRadius(searchRadius.get(QueryBuilder.LAT_KEY), searchRadius.get(QueryBuilder.LON_KEY), 
+                     latLon[0], latLon[1], searchRadius.get(QueryBuilder.DIST_KEY))
+          : nodeInRadius(n, searchRadius);
+        if (radiusProfile != null) {
+          radiusProfile.addNanos(System.nanoTime() - start);
+          radiusProfile.addMatched(near ? 1 : 0);
+        }
+        return near;
+    }
+
+    // for nodes that weren't geo indexed, fall back to their lat and lon properties.
+    // nodes without valid coordinates can't be ruled out, so they count as in range.
+    private boolean nodeInRadius(Node n, PropertyMap<String, Double> searchRadius) {
+        if (!n.hasProperty(QueryBuilder.LAT_KEY) || !n.hasProperty(QueryBuilder.LON_KEY)) {
+          return true;
+        }
+        try {
+          PropertyMap<String, Double> nodeCoords = getNodeProps(n).getCoords(QueryBuilder.LAT_KEY, QueryBuilder.LON_KEY);
+          return inRadius ( searchRadius.get(QueryBuilder.LAT_KEY), 
+                            searchRadius.get(QueryBuilder.LON_KEY), 
+                            nodeCoords.get(QueryBuilder.LAT_KEY), 
+                            nodeCoords.get(QueryBuilder.LON_KEY), 
+                            searchRadius.get(QueryBuilder.DIST_KEY));
+        } catch (IllegalArgumentException iae) {
+          log.warning("Node "+n+" has coordinates that appear to be invalid.");
+          return true;
+        }
+    }
+
+    // explain the score of a hit using the searcher captured while running the query.
+    private Explanation explain(CapturingQuery capture, Query query, Node hit) {
+        try {
+          int doc = capture.findDocument(hit.getId());
+          if (doc >= 0) {
+            return capture.getSearcher().explain(query, doc);
+          }
+        } catch (IOException e) {
+          log.warning("Failed to explain score for node " + hit + ": " + e.getMessage());
+        }
+        return null;
     }
     
     private boolean inRadius(double lat1, double lon1, double lat2, double lon2, double maxDist) {
@@ -414,10 +1583,18 @@ public class LuceneSearch {
     }
     
     private Analyzer getIndexAnalyzer(String indexName) {
-      Index<Node> index = this.service.index().forNodes(indexName);
+      return indexAnalyzer(this.service, this.service.index().forNodes(indexName));
+    }
+
+    /**
+    * @param db  A database
+    * @param index One of its indexes
+    * @return an analyzer like the one the index analyzes values with, or null if it doesn't analyze them
+    */
+    static Analyzer indexAnalyzer(GraphDatabaseService db, Index<Node> index) {
       // we'll need an analyser of the same kind as the index. instantiation is hinky.
       // what helps is that all neo4j analyzers currently must be constructed with no args.
-      Map<String, String> indexConfig = this.service.index().getConfiguration(index);
+      Map<String, String> indexConfig = db.index().getConfiguration(index);
       final String indexAnalyzerClassname = indexConfig.get("analyzer");
       Analyzer analyzer = null;
       if (indexAnalyzerClassname != null) {
@@ -427,7 +1604,7 @@ public class LuceneSearch {
           analyzer = (Analyzer) analyzerClass.getConstructor().newInstance();
         } catch (Exception e) {
           // fail over to the default
-          log.warning("Failed to instantiate index analyzer type " + indexAnalyzerClassname 
+          Logger.getLogger(LuceneSearch.class.getName()).warning("Failed to instantiate index analyzer type " + indexAnalyzerClassname 
             + ":" + e.getMessage() + ". Using WhitespaceAnalyzer instead.");
           analyzer = new WhitespaceAnalyzer();
         }
@@ -435,24 +1612,24 @@ public class LuceneSearch {
       return analyzer;
     }
     
-    private class ScoredNode {
-      private Node node;
-      private float score;
-      
-      public Node getNode() {
-        return node;
+    // the terms an index will make of a value: tokens if it has an analyzer, otherwise the value itself.
+    private List<String> analyze(String indexName, String key, String value) {
+      List<String> tokens = new ArrayList<String>();
+      Analyzer analyzer = getIndexAnalyzer(indexName);
+      if (analyzer == null) {
+        tokens.add(value);
+        return tokens;
       }
-      
-      public float getScore() {
-        return score;
-      }
-
-      ScoredNode(Node n, float s) {
-        this.node = n;
-        this.score = s;
+      try {
+        for (Term term : QueryBuilder.extractTerms(analyzer, key, value)) {
+          tokens.add(term.text());
+        }
+      } catch (IOException e) {
+        log.warning("Failed to analyze " + value + " for suggestions: " + e.getMessage());
       }
+      return tokens;
     }
-    
+
     // get all of a node's properties as a PropertyMap for typed retrieval.
     private static PropertyMap<String, Object> getNodeProps(Node n) {
       PropertyMap<String, Object> props = new PropertyMap<String, Object>();
@@ -479,19 +1656,30 @@ public class LuceneSearch {
         return true;
     }
 
+    // whether to queue an index write rather than commit it.
+    private boolean isAsync(IndexRequest request) {
+        return (request.getAsync() == null) ? settings.isWriteBehind() : request.getAsync();
+    }
+
+    private Response accepted(Node node) {
+        try {
+          return output.response(Response.Status.ACCEPTED, new NodeRepresentation(node));
+        } catch (BadInputException e) {
+          return output.serverError(e);
+        }
+    }
+
     /**
      * Helper method for generating response when required parameters are missing
-     * @param properties Map containing supplied parameters to endpoint
+     * @param receivedParams Names of the parameters supplied to the endpoint
      * @return Response representing failed conditions on endpoint
      */
-    private Response missingParameters(Map<String, Object> properties, String ... requiredKeys)
+    private Response missingParameters(Collection<String> receivedParams, String ... requiredKeys)
     {
-        String[] receivedParams = properties.keySet().toArray(new String[0]);
-
         return Response.status( 400 )
                 .type(MediaType.TEXT_PLAIN)
                 .entity("Required parameters: " + implode(requiredKeys) + "\n"
-                      + "Received parameters: " + implode(receivedParams))
+                      + "Received parameters: " + implode(receivedParams.toArray(new String[0])))
                 .build();
     }
 
@@ -510,6 +1698,14 @@ public class LuceneSearch {
         return receivedParamString;
     }
 
+    private static InputStream toStream(String body) {
+        try {
+            return new ByteArrayInputStream(body.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("No UTF-8 support", e);
+        }
+    }
+
     private Response badJsonFormat(String body) {
         return Response.status( 400 )
                 .type( MediaType.TEXT_PLAIN )
@@ -0,0 +1,144 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.Term;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+/**
+* The size of the character n-grams written for each n-gram indexed key of an index, as
+  recorded in the index's config under "ngram.$KEY".
+* <p>Text written to such a key through this plugin is also broken into the n-grams of each of
+  its terms, which are indexed under {@link #fieldFor} the key. FUZZY queries look for terms
+  sharing n-grams with a misspelling there, rather than walking the whole term dictionary.
+  Terms shorter than n are indexed whole.</p>
+*/
+public class NGramFields {
+
+  public static final String SIZE_PREFIX = "ngram.";
+  /** Where a key's n-grams are indexed, after this prefix. */
+  public static final String FIELD_PREFIX = "_ngram_.";
+
+  private final Map<String, String> config;
+
+  /**
+  * @param config An index's config, as from IndexManager.getConfiguration
+  */
+  public NGramFields(Map<String, String> config) {
+    this.config = (config == null) ? new HashMap<String, String>() : config;
+  }
+
+  /**
+  * @param db A database
+  * @param index One of its indexes
+  * @return the n-gram keys recorded for the index
+  */
+  public static NGramFields forIndex(GraphDatabaseService db, Index<Node> index) {
+    return new NGramFields(db.index().getConfiguration(index));
+  }
+
+  /**
+  * @param key An index key
+  * @return the size of the n-grams written for the key, or 0 if none are
+  */
+  public int sizeOf(String key) {
+    String size = config.get(SIZE_PREFIX + key);
+    return (size == null) ? 0 : Integer.parseInt(size);
+  }
+
+  /**
+  * @param key An index key
+  * @return the index key its n-grams are written to
+  */
+  public static String fieldFor(String key) {
+    return FIELD_PREFIX + key;
+  }
+
+  /**
+  * Record that a key's text should be n-gram indexed, the first time it's asked for.
+  * @param db A database
+  * @param index The index being written to
+  * @param key The key being written to
+  * @param size The n-gram size asked for
+  * @throws IllegalArgumentException if the key already has a different size, or the size isn't positive
+  */
+  public static void declare(GraphDatabaseService db, Index<Node> index, String key, int size)
+      throws IllegalArgumentException {
+    if (size <= 0) {
+      throw new IllegalArgumentException("ngram must be a positive integer, but was " + size);
+    }
+    int recorded = forIndex(db, index).sizeOf(key);
+    if (recorded != 0 && recorded != size) {
+      throw new IllegalArgumentException("Key " + key + " is indexed with " + recorded + "-grams, not " + size + "-grams");
+    }
+    if (recorded == 0) {
+      db.index().setConfiguration(index, SIZE_PREFIX + key, Integer.toString(size));
+    }
+  }
+
+  /**
+  * Index the n-grams of a value written to a key. Call in the transaction that writes the value.
+  * @param index The index the value was written to
+  * @param node The node the value was written for
+  * @param key The key the value was written to
+  * @param value The value
+  * @param analyzer The analyzer the key is indexed with, or null if the value is indexed as it is
+  * @param size The n-gram size
+  */
+  public static void addGrams(Index<Node> index, Node node, String key, String value, Analyzer analyzer, int size) {
+    Set<String> grams = grams(analyzer, key, value, size);
+    if (!grams.isEmpty()) {
+      index.add(node, fieldFor(key), grams.toArray(new String[grams.size()]));
+    }
+  }
+
+  /**
+  * @param analyzer The analyzer the key is indexed with, or null if the value is indexed as it is
+  * @param key The key the value is for
+  * @param value The value
+  * @param size The n-gram size
+  * @return the n-grams of each of the value's terms, once each
+  */
+  public static Set<String> grams(Analyzer analyzer, String key, String value, int size) {
+    Set<String> grams = new LinkedHashSet<String>();
+    List<Term> terms;
+    try {
+      terms = QueryBuilder.extractTerms(analyzer, key, value);
+    } catch (IOException e) {
+      // reading from a string can't really fail.
+      terms = new ArrayList<Term>();
+      terms.add(new Term(key, value));
+    }
+    for (Term term : terms) {
+      grams.addAll(gramsOf(term.text(), size));
+    }
+    return grams;
+  }
+
+  /**
+  * @param term A term
+  * @param size The n-gram size
+  * @return the term's n-grams, in order, or the term itself if it's shorter than size
+  */
+  public static List<String> gramsOf(String term, int size) {
+    List<String> grams = new ArrayList<String>();
+    if (term.length() <= size) {
+      grams.add(term);
+      return grams;
+    }
+    for (int i = 0; i + size <= term.length(); i++) {
+      grams.add(term.substring(i, i + size));
+    }
+    return grams;
+  }
+}
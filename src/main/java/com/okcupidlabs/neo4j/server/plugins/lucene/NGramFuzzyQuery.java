@@ -0,0 +1,232 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Set;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.TreeMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+
+/**
+* Matches terms within a few edits of each term of a query, using the n-grams written for an
+  n-gram indexed key rather than walking every term in the index.
+* <p>When rewritten against an index, each query term is broken into n-grams. A term within k
+  edits of it shares all but at most k * n of them, so documents sharing fewer can't contain
+  one, and are never looked at. Of the documents that are left, the ones sharing the most
+  n-grams with the term are checked first, up to a limit: their values for the key are
+  analyzed, and each distinct term within k edits of the query term, checked exactly, becomes
+  part of the query: optional clauses like a SIM query's, boosted by how close each spelling
+  is.</p>
+* <p>A term with no more than k * n n-grams, which includes every term shorter than n, could
+  be within k edits of a term it shares none with, so the n-grams can't rule anything out.
+  Those terms are checked against every term of the key instead, as Lucene's own fuzzy query
+  does, keeping the closest spellings up to the same limit.</p>
+*/
+public class NGramFuzzyQuery extends Query {
+
+  /** How many edits a match may be away if the spec doesn't say. */
+  public static final int DEFAULT_MAX_EDITS = 2;
+  /** How many candidate documents, or spellings of short terms, to check for each term if the spec doesn't say. */
+  public static final int DEFAULT_MAX_CANDIDATES = 1000;
+
+  private final String key;
+  private final List<String> terms;
+  private final int gramSize;
+  private final int maxEdits;
+  private final int maxCandidates;
+  private final Analyzer analyzer;
+
+  /**
+  * @param key The n-gram indexed key to search
+  * @param terms The query's terms, once each
+  * @param gramSize The size of the n-grams written for the key
+  * @param maxEdits The most edits a match may be away from a query term
+  * @param maxCandidates The most documents to check for each query term, or spellings to keep for short ones
+  * @param analyzer The analyzer the key is indexed with, or null if values are indexed as they are
+  */
+  public NGramFuzzyQuery(String key, List<String> terms, int gramSize, int maxEdits, int maxCandidates,
+                         Analyzer analyzer) {
+    this.key = key;
+    this.terms = terms;
+    this.gramSize = gramSize;
+    this.maxEdits = maxEdits;
+    this.maxCandidates = maxCandidates;
+    this.analyzer = analyzer;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    BooleanQuery query = new BooleanQuery();
+    for (String term : terms) {
+      Map<String, Integer> spellings = spellingsOf(reader, term);
+      if (spellings.size() == 1) {
+        query.add(clause(term, spellings.keySet().iterator().next(), spellings.values().iterator().next()),
+                  BooleanClause.Occur.SHOULD);
+      } else if (!spellings.isEmpty()) {
+        // any one spelling of a term should score like the term, however many spellings there are.
+        BooleanQuery alternatives = new BooleanQuery(true);
+        for (Map.Entry<String, Integer> spelling : spellings.entrySet()) {
+          alternatives.add(clause(term, spelling.getKey(), spelling.getValue()), BooleanClause.Occur.SHOULD);
+        }
+        query.add(alternatives, BooleanClause.Occur.SHOULD);
+      }
+    }
+    query.setBoost(getBoost());
+    return query;
+  }
+
+  private TermQuery clause(String term, String spelling, int edits) {
+    TermQuery clause = new TermQuery(new Term(key, spelling));
+    clause.setBoost(1 - (float)edits / Math.max(term.length(), spelling.length()));
+    return clause;
+  }
+
+  // the terms of the key within maxEdits of term, and how many edits away each is.
+  private Map<String, Integer> spellingsOf(IndexReader reader, String term) throws IOException {
+    List<String> grams = new ArrayList<String>(new LinkedHashSet<String>(NGramFields.gramsOf(term, gramSize)));
+    int minShared = grams.size() - maxEdits * gramSize;
+    if (minShared < 1) {
+      return closest(allSpellingsOf(reader, term));
+    }
+    // each shared gram scores the same, so the best candidates share the most.
+    BooleanQuery candidates = new BooleanQuery(true);
+    for (String gram : grams) {
+      candidates.add(new ConstantScoreQuery(new TermQuery(new Term(NGramFields.fieldFor(key), gram))),
+                     BooleanClause.Occur.SHOULD);
+    }
+    candidates.setMinimumNumberShouldMatch(minShared);
+    TopDocs docs = new IndexSearcher(reader).search(candidates, maxCandidates);
+
+    Map<String, Integer> spellings = new TreeMap<String, Integer>();
+    Set<String> checked = new HashSet<String>();
+    MapFieldSelector valuesOnly = new MapFieldSelector(key);
+    for (ScoreDoc doc : docs.scoreDocs) {
+      for (String value : reader.document(doc.doc, valuesOnly).getValues(key)) {
+        for (Term candidate : QueryBuilder.extractTerms(analyzer, key, value)) {
+          String spelling = candidate.text();
+          if (checked.add(spelling)) {
+            int edits = editDistance(term, spelling, maxEdits);
+            if (edits <= maxEdits) {
+              spellings.put(spelling, edits);
+            }
+          }
+        }
+      }
+    }
+    return spellings;
+  }
+
+  // every term of the key within maxEdits of term.
+  private Map<String, Integer> allSpellingsOf(IndexReader reader, String term) throws IOException {
+    Map<String, Integer> spellings = new TreeMap<String, Integer>();
+    TermEnum terms = reader.terms(new Term(key, ""));
+    try {
+      do {
+        Term candidate = terms.term();
+        if (candidate == null || !candidate.field().equals(key)) {
+          break;
+        }
+        int edits = editDistance(term, candidate.text(), maxEdits);
+        if (edits <= maxEdits) {
+          spellings.put(candidate.text(), edits);
+        }
+      } while (terms.next());
+    } finally {
+      terms.close();
+    }
+    return spellings;
+  }
+
+  // the maxCandidates closest spellings, ties going to the first in term order.
+  private Map<String, Integer> closest(Map<String, Integer> spellings) {
+    if (spellings.size() <= maxCandidates) {
+      return spellings;
+    }
+    List<Map.Entry<String, Integer>> byEdits = new ArrayList<Map.Entry<String, Integer>>(spellings.entrySet());
+    // stable, so term order holds within each number of edits.
+    Collections.sort(byEdits, new Comparator<Map.Entry<String, Integer>>() {
+      public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+        return a.getValue().compareTo(b.getValue());
+      }
+    });
+    Map<String, Integer> kept = new TreeMap<String, Integer>();
+    for (Map.Entry<String, Integer> spelling : byEdits.subList(0, maxCandidates)) {
+      kept.put(spelling.getKey(), spelling.getValue());
+    }
+    return kept;
+  }
+
+  /**
+  * @param a A string
+  * @param b Another string
+  * @param max The most edits worth counting
+  * @return the Levenshtein distance between a and b, or max + 1 if it's more than max
+  */
+  static int editDistance(String a, String b, int max) {
+    if (Math.abs(a.length() - b.length()) > max) {
+      return max + 1;
+    }
+    int[] previous = new int[b.length() + 1];
+    int[] current = new int[b.length() + 1];
+    for (int j = 0; j <= b.length(); j++) {
+      previous[j] = j;
+    }
+    for (int i = 1; i <= a.length(); i++) {
+      current[0] = i;
+      int best = current[0];
+      for (int j = 1; j <= b.length(); j++) {
+        int substitute = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+        current[j] = Math.min(substitute, Math.min(previous[j], current[j - 1]) + 1);
+        best = Math.min(best, current[j]);
+      }
+      // every later row is at least as far as the closest cell of this one.
+      if (best > max) {
+        return max + 1;
+      }
+      int[] swap = previous;
+      previous = current;
+      current = swap;
+    }
+    return Math.min(previous[b.length()], max + 1);
+  }
+
+  @Override
+  public String toString(String field) {
+    return "fuzzy(" + key + ":" + terms + ", ngram=" + gramSize + ", max_edits=" + maxEdits + ")"
+      + (getBoost() != 1 ? "^" + getBoost() : "");
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof NGramFuzzyQuery)) {
+      return false;
+    }
+    NGramFuzzyQuery other = (NGramFuzzyQuery)o;
+    return key.equals(other.key) && terms.equals(other.terms) && gramSize == other.gramSize
+      && maxEdits == other.maxEdits && maxCandidates == other.maxCandidates && analyzer == other.analyzer
+      && getBoost() == other.getBoost();
+  }
+
+  @Override
+  public int hashCode() {
+    return key.hashCode() ^ terms.hashCode() ^ (31 * gramSize + maxEdits) ^ maxCandidates ^ Float.floatToIntBits(getBoost());
+  }
+}
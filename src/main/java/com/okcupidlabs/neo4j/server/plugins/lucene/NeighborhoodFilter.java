@@ -0,0 +1,130 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSet;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.DynamicRelationshipType;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.traversal.Evaluators;
+import org.neo4j.graphdb.traversal.TraversalDescription;
+import org.neo4j.kernel.Traversal;
+
+/**
+* Restricts a search to the nodes within a few hops of a start node.
+* <p>The neighborhood is traversed once, up front, into a bitset of node ids. Each index segment
+  then gets a doc id set holding just the documents for those nodes, found by looking up their
+  ids in neo4j's id field, so the query around it only scores documents in the neighborhood.</p>
+* <p>Built from a spec like
+  <code>{"start_node": $NODE_ID, "max_depth": $HOPS, "direction": "(OUTGOING|INCOMING|BOTH)",
+  "relationship_types": [$TYPE ...]}</code>, where direction defaults to BOTH and every
+  relationship type is followed if none are given. The start node itself is not included.</p>
+*/
+public class NeighborhoodFilter extends Filter {
+
+  private final OpenBitSet nodeIds;
+  private final String description;
+
+  /**
+  * @param nodeIds The ids of the nodes to let through
+  * @param description What the neighborhood is, for logs and profiles
+  */
+  public NeighborhoodFilter(OpenBitSet nodeIds, String description) {
+    this.nodeIds = nodeIds;
+    this.description = description;
+  }
+
+  /**
+  * Traverse the neighborhood described by a within_hops spec.
+  * @param db The database to traverse
+  * @param spec The neighborhood, as described above
+  * @return a filter for the nodes in the neighborhood
+  * @throws IllegalArgumentException if the spec is incomplete or the start node doesn't exist
+  */
+  public static NeighborhoodFilter traverse(GraphDatabaseService db, PropertyMap<String, Object> spec)
+      throws IllegalArgumentException
+  {
+    if (!spec.containsKey("start_node") || !spec.containsKey("max_depth")) {
+      throw new IllegalArgumentException("within_hops needs a start_node and a max_depth.");
+    }
+    long startId = spec.getLong("start_node");
+    int maxDepth = spec.getInt("max_depth");
+    if (maxDepth < 1) {
+      throw new IllegalArgumentException("within_hops max_depth must be at least 1, but was " + maxDepth);
+    }
+    Direction direction = Direction.BOTH;
+    if (spec.get("direction") != null) {
+      try {
+        direction = Enum.valueOf(Direction.class, (String)spec.get("direction"));
+      } catch (IllegalArgumentException iae) {
+        throw new IllegalArgumentException("within_hops direction must be OUTGOING|INCOMING|BOTH, but was " + spec.get("direction"));
+      }
+    }
+
+    TraversalDescription traversal = Traversal.description()
+      .breadthFirst()
+      .evaluator(Evaluators.excludeStartPosition())
+      .evaluator(Evaluators.toDepth(maxDepth));
+    // the decoder checked these are strings.
+    List<?> types = (List<?>)spec.get("relationship_types");
+    if (types == null || types.isEmpty()) {
+      traversal = traversal.expand(Traversal.expanderForAllTypes(direction));
+    } else {
+      for (Object type : types) {
+        traversal = traversal.relationships(DynamicRelationshipType.withName((String)type), direction);
+      }
+    }
+
+    Node start;
+    try {
+      start = db.getNodeById(startId);
+    } catch (NotFoundException nfe) {
+      throw new IllegalArgumentException("within_hops start_node " + startId + " does not exist.");
+    }
+    OpenBitSet nodeIds = new OpenBitSet();
+    for (Node node : traversal.traverse(start).nodes()) {
+      nodeIds.set(node.getId());
+    }
+    String description = "within_hops(" + startId + ", " + maxDepth + ", " + direction
+      + (types == null ? "" : ", " + types) + ": " + nodeIds.cardinality() + " nodes)";
+    return new NeighborhoodFilter(nodeIds, description);
+  }
+
+  /**
+  * @return the number of nodes in the neighborhood
+  */
+  public long size() {
+    return nodeIds.cardinality();
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    OpenBitSet docs = new OpenBitSet(reader.maxDoc());
+    TermDocs termDocs = reader.termDocs();
+    try {
+      for (long id = nodeIds.nextSetBit(0L); id >= 0; id = nodeIds.nextSetBit(id + 1)) {
+        termDocs.seek(new Term(CapturingQuery.DOC_ID_KEY, String.valueOf(id)));
+        while (termDocs.next()) {
+          docs.fastSet(termDocs.doc());
+        }
+      }
+    } finally {
+      termDocs.close();
+    }
+    return docs;
+  }
+
+  @Override
+  public String toString() {
+    return description;
+  }
+}
@@ -0,0 +1,152 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.NumericUtils;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+/**
+* The numeric type of each numerically indexed key of an index, as recorded in the index's
+  config under "numeric_type.$KEY".
+* <p>Keys with nothing recorded were indexed the way this plugin always used to: as doubles.</p>
+* <p>There's no precision step to choose: neo4j writes every numeric field with Lucene's
+  default step, and gives no way to write one with another, so range queries always search
+  with that step.</p>
+* <p>A type can only be recorded for a key before any values are indexed under it. Values
+  already there were indexed as doubles and couldn't be found as anything else; to change
+  the type of a key in use, rebuild the index with the key in numeric_keys.</p>
+*/
+public class NumericFields {
+
+  public static final String TYPE_PREFIX = "numeric_type.";
+  /** The step neo4j indexes every numeric field with. */
+  public static final int INDEXED_PRECISION_STEP = NumericUtils.PRECISION_STEP_DEFAULT;
+
+  private final Map<String, String> config;
+
+  /**
+  * @param config An index's config, as from IndexManager.getConfiguration
+  */
+  public NumericFields(Map<String, String> config) {
+    this.config = (config == null) ? new HashMap<String, String>() : config;
+  }
+
+  /**
+  * @param db A database
+  * @param index One of its indexes
+  * @return the numeric fields recorded for the index
+  */
+  public static NumericFields forIndex(GraphDatabaseService db, Index<Node> index) {
+    return new NumericFields(db.index().getConfiguration(index));
+  }
+
+  /**
+  * @return the keys with a recorded numeric type
+  */
+  public Set<String> keys() {
+    Set<String> keys = new TreeSet<String>();
+    for (String configKey : config.keySet()) {
+      if (configKey.startsWith(TYPE_PREFIX)) {
+        keys.add(configKey.substring(TYPE_PREFIX.length()));
+      }
+    }
+    return keys;
+  }
+
+  /**
+  * @param key An index key
+  * @return the type the key's values are indexed as
+  */
+  public NumericType typeOf(String key) {
+    String type = config.get(TYPE_PREFIX + key);
+    return (type == null) ? NumericType.DOUBLE : NumericType.forName(type);
+  }
+
+  /**
+  * Work out how to index a value for a key, recording the type in the index's config the first
+    time it's given.
+  * @param db A database
+  * @param index The index being written to
+  * @param key The key being written to
+  * @param type The type asked for, or null to use whatever's recorded
+  * @return the type to index the value as
+  * @throws IllegalArgumentException if the type conflicts with what's recorded, or a type other
+            than double is asked for a key that already has values
+  */
+  public static NumericType declare(GraphDatabaseService db, Index<Node> index, String key, String type)
+      throws IllegalArgumentException
+  {
+    NumericFields fields = forIndex(db, index);
+    NumericType recordedType = fields.config.containsKey(TYPE_PREFIX + key) ? fields.typeOf(key) : null;
+    NumericType requestedType = (type == null) ? null : NumericType.forName(type);
+    if (requestedType != null && recordedType != null && requestedType != recordedType) {
+      throw new IllegalArgumentException("Key " + key + " is indexed as " + recordedType.name().toLowerCase()
+        + ", not " + type);
+    }
+    if (recordedType == null && requestedType != null && requestedType != NumericType.DOUBLE && hasValues(index, key)) {
+      throw new IllegalArgumentException("Key " + key + " already has values indexed as double, so it can't be "
+        + type + "; rebuild the index with it in numeric_keys instead");
+    }
+    if (recordedType == null && requestedType != null) {
+      db.index().setConfiguration(index, TYPE_PREFIX + key, requestedType.name().toLowerCase());
+      return requestedType;
+    }
+    return (recordedType == null) ? NumericType.DOUBLE : recordedType;
+  }
+
+  /**
+  * Work out how to index a value that was checked against another index, like one queued
+    before its index was rebuilt, or written to the index being rebuilt into. Whatever type
+    the index records for the key wins; otherwise the value's type is recorded, if it can be.
+  * @param db A database
+  * @param index The index being written to
+  * @param key The key being written to
+  * @param type The type the value was checked as
+  * @return the type to index the value as
+  */
+  public static NumericType declareIfAbsent(GraphDatabaseService db, Index<Node> index, String key, NumericType type) {
+    NumericFields fields = forIndex(db, index);
+    if (fields.config.containsKey(TYPE_PREFIX + key)) {
+      return fields.typeOf(key);
+    }
+    try {
+      return declare(db, index, key, type.name().toLowerCase());
+    } catch (IllegalArgumentException e) {
+      // the key already has values there, as doubles.
+      return NumericType.DOUBLE;
+    }
+  }
+
+  // whether any document in the index has a term for key.
+  private static boolean hasValues(Index<Node> index, String key) {
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(key, "")));
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return false;
+      }
+      TermEnum terms = capture.getSearcher().getIndexReader().terms(new Term(key, ""));
+      try {
+        return terms.term() != null && terms.term().field().equals(key);
+      } finally {
+        terms.close();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Failed to read the terms of " + key, e);
+    } finally {
+      capture.release();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.IOException;
+import java.math.BigInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+
+/**
+* The kinds of number a key can be indexed as. Each knows how to convert values for indexing,
+  build range queries over its terms, and read its values back from the field cache.
+* <p>INT and FLOAT fields have half as many trie terms per value as LONG and DOUBLE ones, and
+  integer types keep integer values exact.</p>
+*/
+public enum NumericType {
+  INT {
+    public Number convert(Number value) {
+      if (value.doubleValue() > Integer.MAX_VALUE || value.doubleValue() < Integer.MIN_VALUE) {
+        throw new IllegalArgumentException(value + " is out of range for an int");
+      }
+      return value.intValue();
+    }
+
+    public Query newRange(String key, int precisionStep, String min, String max, boolean minInclusive, boolean maxInclusive) {
+      long[] bounds = integerBounds(min, max, minInclusive, maxInclusive);
+      if (bounds[0] > Integer.MAX_VALUE || bounds[1] < Integer.MIN_VALUE) {
+        // nothing an int can hold is in range.
+        return NumericRangeQuery.newIntRange(key, precisionStep, 1, 0, true, true);
+      }
+      return NumericRangeQuery.newIntRange(key, precisionStep, (int)Math.max(bounds[0], Integer.MIN_VALUE),
+                                           (int)Math.min(bounds[1], Integer.MAX_VALUE), true, true);
+    }
+
+    public Values read(IndexReader reader, String key) throws IOException {
+      final int[] values = FieldCache.DEFAULT.getInts(reader, key, FieldCache.NUMERIC_UTILS_INT_PARSER, true);
+      return new Values() {
+        public double get(int doc) {
+          return values[doc];
+        }
+      };
+    }
+  },
+  LONG {
+    public Number convert(Number value) {
+      // doubles past a long's range would be clamped to its ends, and big integers wrapped.
+      if ((value instanceof Double || value instanceof Float)
+          && (value.doubleValue() >= 0x1p63 || value.doubleValue() < -0x1p63)) {
+        throw new IllegalArgumentException(value + " is out of range for a long");
+      }
+      if (value instanceof BigInteger && ((BigInteger)value).bitLength() > 63) {
+        throw new IllegalArgumentException(value + " is out of range for a long");
+      }
+      return value.longValue();
+    }
+
+    public Query newRange(String key, int precisionStep, String min, String max, boolean minInclusive, boolean maxInclusive) {
+      long[] bounds = integerBounds(min, max, minInclusive, maxInclusive);
+      return NumericRangeQuery.newLongRange(key, precisionStep, bounds[0], bounds[1], true, true);
+    }
+
+    public Values read(IndexReader reader, String key) throws IOException {
+      final long[] values = FieldCache.DEFAULT.getLongs(reader, key, FieldCache.NUMERIC_UTILS_LONG_PARSER, true);
+      return new Values() {
+        public double get(int doc) {
+          return values[doc];
+        }
+      };
+    }
+  },
+  FLOAT {
+    public Number convert(Number value) {
+      return value.floatValue();
+    }
+
+    public Query newRange(String key, int precisionStep, String min, String max, boolean minInclusive, boolean maxInclusive) {
+      return NumericRangeQuery.newFloatRange(key, precisionStep, Float.parseFloat(min), Float.parseFloat(max),
+                                             minInclusive, maxInclusive);
+    }
+
+    public Values read(IndexReader reader, String key) throws IOException {
+      final float[] values = FieldCache.DEFAULT.getFloats(reader, key, FieldCache.NUMERIC_UTILS_FLOAT_PARSER, true);
+      return new Values() {
+        public double get(int doc) {
+          return values[doc];
+        }
+      };
+    }
+  },
+  DOUBLE {
+    public Number convert(Number value) {
+      return value.doubleValue();
+    }
+
+    public Query newRange(String key, int precisionStep, String min, String max, boolean minInclusive, boolean maxInclusive) {
+      return NumericRangeQuery.newDoubleRange(key, precisionStep, Double.parseDouble(min), Double.parseDouble(max),
+                                              minInclusive, maxInclusive);
+    }
+
+    public Values read(IndexReader reader, String key) throws IOException {
+      final double[] values = FieldCache.DEFAULT.getDoubles(reader, key, FieldCache.NUMERIC_UTILS_DOUBLE_PARSER, true);
+      return new Values() {
+        public double get(int doc) {
+          return values[doc];
+        }
+      };
+    }
+  };
+
+  /** One index segment's values for a key, by document. */
+  public interface Values {
+    double get(int doc);
+  }
+
+  /**
+  * @param value A number
+  * @return the number as this type, ready to hand to ValueContext.numeric
+  * @throws IllegalArgumentException if the number is out of this type's range
+  */
+  public abstract Number convert(Number value);
+
+  /**
+  * @param value A number as it's stored in an index document
+  * @return the number as this type
+  * @throws NumberFormatException if it isn't a number
+  */
+  public Number parse(String value) throws NumberFormatException {
+    // integers are parsed exactly, beyond a double's precision.
+    return convert(isInteger(value) ? (Number)Long.valueOf(value) : (Number)Double.valueOf(value));
+  }
+
+  /**
+  * @param key The field to search
+  * @param precisionStep The precision step the field was indexed with
+  * @param min The lower bound, as written in the range string
+  * @param max The upper bound, as written in the range string
+  * @param minInclusive whether min itself is in range
+  * @param maxInclusive whether max itself is in range
+  * @return a query for values of this type in the range
+  * @throws NumberFormatException if the bounds aren't numbers
+  */
+  public abstract Query newRange(String key, int precisionStep, String min, String max,
+                                 boolean minInclusive, boolean maxInclusive);
+
+  /**
+  * @param reader A segment reader
+  * @param key A field indexed as this type
+  * @return the field's values for the segment, from the field cache
+  * @throws IOException if the field cache can't be filled
+  */
+  public abstract Values read(IndexReader reader, String key) throws IOException;
+
+  /**
+  * @param name A type name, in any case
+  * @return the type
+  * @throws IllegalArgumentException if there's no such type
+  */
+  public static NumericType forName(String name) throws IllegalArgumentException {
+    try {
+      return valueOf(name.toUpperCase());
+    } catch (IllegalArgumentException iae) {
+      throw new IllegalArgumentException("Numeric type must be one of int|long|float|double, but was " + name);
+    }
+  }
+
+  // inclusive integer bounds for a range that may have been written with fractions.
+  private static long[] integerBounds(String min, String max, boolean minInclusive, boolean maxInclusive) {
+    double lower = Double.parseDouble(min);
+    double upper = Double.parseDouble(max);
+    long from = (long)Math.ceil(lower);
+    long to = (long)Math.floor(upper);
+    // exact integers can be parsed exactly, beyond a double's precision.
+    if (isInteger(min)) {
+      from = Long.parseLong(min);
+    }
+    if (isInteger(max)) {
+      to = Long.parseLong(max);
+    }
+    if (!minInclusive && from == lower) {
+      from++;
+    }
+    if (!maxInclusive && to == upper) {
+      to--;
+    }
+    return new long[] {from, to};
+  }
+
+  private static boolean isInteger(String s) {
+    try {
+      Long.parseLong(s);
+      return true;
+    } catch (NumberFormatException nfe) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.SortedMap;
+import java.util.PriorityQueue;
+
+/**
+* An immutable table of weighted terms that finds the heaviest completions of a prefix.
+* <p>Terms are kept in one sorted array, so the completions of a prefix are a contiguous range
+  found by binary search. A tournament tree over the weights gives the heaviest term in any
+  range in log time, so the top N completions are found by repeatedly taking the heaviest term
+  in a range and splitting the range around it: O(N log n), however many terms share the prefix.</p>
+*/
+public class PrefixSuggester {
+
+  /** A completion and how heavy it is. */
+  public static class Suggestion implements Comparable<Suggestion> {
+    private final String term;
+    private final long weight;
+
+    public Suggestion(String term, long weight) {
+      this.term = term;
+      this.weight = weight;
+    }
+
+    public String getTerm() {
+      return term;
+    }
+
+    public long getWeight() {
+      return weight;
+    }
+
+    // heaviest first, then alphabetically.
+    public int compareTo(Suggestion other) {
+      if (weight != other.weight) {
+        return weight > other.weight ? -1 : 1;
+      }
+      return term.compareTo(other.term);
+    }
+
+    @Override
+    public String toString() {
+      return term + "=" + weight;
+    }
+  }
+
+  // a range of term positions whose heaviest term is best.
+  private static class Range implements Comparable<Range> {
+    final int from, to, best;
+    final long weight;
+
+    Range(int from, int to, int best, long weight) {
+      this.from = from;
+      this.to = to;
+      this.best = best;
+      this.weight = weight;
+    }
+
+    public int compareTo(Range other) {
+      return weight == other.weight ? best - other.best : (weight > other.weight ? -1 : 1);
+    }
+  }
+
+  public static final PrefixSuggester EMPTY = new PrefixSuggester(new String[0], new long[0]);
+
+  private final String[] terms;
+  private final long[] weights;
+  private final int leaves;
+  // tree[1] is the root, tree[leaves + i] is term i. each entry is the position of the heaviest term below it.
+  private final int[] tree;
+
+  private PrefixSuggester(String[] terms, long[] weights) {
+    this.terms = terms;
+    this.weights = weights;
+    int n = 1;
+    while (n < terms.length) {
+      n <<= 1;
+    }
+    this.leaves = n;
+    this.tree = new int[2 * n];
+    Arrays.fill(tree, -1);
+    for (int i = 0; i < terms.length; i++) {
+      tree[n + i] = i;
+    }
+    for (int node = n - 1; node > 0; node--) {
+      tree[node] = heavier(tree[2 * node], tree[2 * node + 1]);
+    }
+  }
+
+  /**
+  * @param termWeights The terms to complete to, and their weights
+  * @return a suggester for those terms
+  */
+  public static PrefixSuggester build(SortedMap<String, Long> termWeights) {
+    String[] terms = new String[termWeights.size()];
+    long[] weights = new long[termWeights.size()];
+    int i = 0;
+    for (Map.Entry<String, Long> entry : termWeights.entrySet()) {
+      terms[i] = entry.getKey();
+      weights[i] = entry.getValue();
+      i++;
+    }
+    return new PrefixSuggester(terms, weights);
+  }
+
+  /**
+  * @return the number of terms
+  */
+  public int size() {
+    return terms.length;
+  }
+
+  /**
+  * @param term A term
+  * @return the term's weight, or 0 if it's not here
+  */
+  public long weightOf(String term) {
+    int i = Arrays.binarySearch(terms, term);
+    return i < 0 ? 0 : weights[i];
+  }
+
+  /**
+  * Copy every term and weight into a map, adding to any weights already there.
+  * @param into The map to add to
+  */
+  public void addTo(SortedMap<String, Long> into) {
+    for (int i = 0; i < terms.length; i++) {
+      Long previous = into.get(terms[i]);
+      into.put(terms[i], weights[i] + (previous == null ? 0 : previous));
+    }
+  }
+
+  /**
+  * @param prefix What the user has typed so far
+  * @param n The most completions to return
+  * @return the heaviest terms starting with prefix, heaviest first
+  */
+  public List<Suggestion> complete(String prefix, int n) {
+    List<Suggestion> suggestions = new ArrayList<Suggestion>();
+    int from = lowerBound(prefix);
+    int to = lowerBound(prefix + Character.MAX_VALUE);
+    if (from >= to || n <= 0) {
+      return suggestions;
+    }
+    PriorityQueue<Range> ranges = new PriorityQueue<Range>();
+    offer(ranges, from, to);
+    while (!ranges.isEmpty() && suggestions.size() < n) {
+      Range range = ranges.poll();
+      suggestions.add(new Suggestion(terms[range.best], range.weight));
+      offer(ranges, range.from, range.best);
+      offer(ranges, range.best + 1, range.to);
+    }
+    return suggestions;
+  }
+
+  private void offer(PriorityQueue<Range> ranges, int from, int to) {
+    if (from < to) {
+      int best = heaviestIn(from, to);
+      ranges.offer(new Range(from, to, best, weights[best]));
+    }
+  }
+
+  // the position of the heaviest term in [from, to).
+  private int heaviestIn(int from, int to) {
+    int best = -1;
+    for (int lo = from + leaves, hi = to + leaves; lo < hi; lo >>= 1, hi >>= 1) {
+      if ((lo & 1) == 1) {
+        best = heavier(best, tree[lo++]);
+      }
+      if ((hi & 1) == 1) {
+        best = heavier(best, tree[--hi]);
+      }
+    }
+    return best;
+  }
+
+  private int heavier(int a, int b) {
+    if (a < 0) {
+      return b;
+    }
+    if (b < 0) {
+      return a;
+    }
+    return weights[b] > weights[a] ? b : a;
+  }
+
+  // the first position whose term is >= key.
+  private int lowerBound(String key) {
+    int i = Arrays.binarySearch(terms, key);
+    return i < 0 ? -(i + 1) : i;
+  }
+}
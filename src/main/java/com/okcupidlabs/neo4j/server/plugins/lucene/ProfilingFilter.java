@@ -0,0 +1,91 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+
+/**
+* Runs a filter unchanged, charging the time spent building and iterating its doc id sets,
+  and the documents they let through, to a {@link QueryProfile}.
+* <p>Iteration is timed as well as construction because some filters, like the spatial
+  distance filter, only do their work as their sets are iterated.</p>
+*/
+class ProfilingFilter extends Filter {
+
+  private final Filter inner;
+  private final QueryProfile profile;
+
+  ProfilingFilter(Filter inner, QueryProfile profile) {
+    this.inner = inner;
+    this.profile = profile;
+  }
+
+  @Override
+  public DocIdSet getDocIdSet(IndexReader reader) throws IOException {
+    long start = System.nanoTime();
+    final DocIdSet set = inner.getDocIdSet(reader);
+    profile.addNanos(System.nanoTime() - start);
+    if (set == null) {
+      return null;
+    }
+    return new DocIdSet() {
+      @Override
+      public DocIdSetIterator iterator() throws IOException {
+        long start = System.nanoTime();
+        DocIdSetIterator iterator = set.iterator();
+        profile.addNanos(System.nanoTime() - start);
+        return iterator == null ? null : new ProfilingIterator(iterator);
+      }
+
+      @Override
+      public boolean isCacheable() {
+        return set.isCacheable();
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return inner.toString();
+  }
+
+  private class ProfilingIterator extends DocIdSetIterator {
+
+    private final DocIdSetIterator iterator;
+
+    ProfilingIterator(DocIdSetIterator iterator) {
+      this.iterator = iterator;
+    }
+
+    @Override
+    public int docID() {
+      return iterator.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      long start = System.nanoTime();
+      int doc = iterator.nextDoc();
+      record(start, doc);
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      long start = System.nanoTime();
+      int doc = iterator.advance(target);
+      record(start, doc);
+      return doc;
+    }
+
+    private void record(long start, int doc) {
+      profile.addNanos(System.nanoTime() - start);
+      if (doc != NO_MORE_DOCS) {
+        profile.addMatched(1);
+      }
+    }
+  }
+}
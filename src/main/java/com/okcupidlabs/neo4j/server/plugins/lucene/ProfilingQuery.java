@@ -0,0 +1,177 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Weight;
+
+/**
+* Runs a query unchanged, charging the time spent creating and driving its scorers, and the
+  documents they produce, to a {@link QueryProfile}.
+* <p>Scorers are always asked for in doc id order, so they can be driven one document at a
+  time; that and the timing calls make a profiled search a little slower than a plain one.</p>
+*/
+class ProfilingQuery extends Query {
+
+  private final Query inner;
+  private final QueryProfile profile;
+
+  ProfilingQuery(Query inner, QueryProfile profile) {
+    this.inner = inner;
+    this.profile = profile;
+  }
+
+  @Override
+  public Weight createWeight(Searcher searcher) throws IOException {
+    return new ProfilingWeight(inner.createWeight(searcher));
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    Query rewritten = inner.rewrite(reader);
+    if (rewritten == inner) {
+      return this;
+    }
+    return new ProfilingQuery(rewritten, profile);
+  }
+
+  // the wrapped query carries the boost, so rewrites that fold boosts together keep working.
+  @Override
+  public float getBoost() {
+    return inner.getBoost();
+  }
+
+  @Override
+  public void setBoost(float boost) {
+    inner.setBoost(boost);
+  }
+
+  @Override
+  public Object clone() {
+    return new ProfilingQuery((Query)inner.clone(), profile);
+  }
+
+  @Override
+  public void extractTerms(Set<Term> terms) {
+    inner.extractTerms(terms);
+  }
+
+  @Override
+  public String toString(String field) {
+    return inner.toString(field);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return (o instanceof ProfilingQuery) && inner.equals(((ProfilingQuery)o).inner);
+  }
+
+  @Override
+  public int hashCode() {
+    return inner.hashCode() ^ 0x50524f46;
+  }
+
+  private class ProfilingWeight extends Weight {
+
+    private final Weight weight;
+
+    ProfilingWeight(Weight weight) {
+      this.weight = weight;
+    }
+
+    @Override
+    public Query getQuery() {
+      return ProfilingQuery.this;
+    }
+
+    @Override
+    public float getValue() {
+      return weight.getValue();
+    }
+
+    @Override
+    public float sumOfSquaredWeights() throws IOException {
+      return weight.sumOfSquaredWeights();
+    }
+
+    @Override
+    public void normalize(float norm) {
+      weight.normalize(norm);
+    }
+
+    @Override
+    public Explanation explain(IndexReader reader, int doc) throws IOException {
+      return weight.explain(reader, doc);
+    }
+
+    @Override
+    public Scorer scorer(IndexReader reader, boolean scoreDocsInOrder, boolean topScorer) throws IOException {
+      long start = System.nanoTime();
+      Scorer scorer = weight.scorer(reader, true, false);
+      profile.addNanos(System.nanoTime() - start);
+      return scorer == null ? null : new ProfilingScorer(this, scorer);
+    }
+
+    @Override
+    public boolean scoresDocsOutOfOrder() {
+      return false;
+    }
+  }
+
+  private class ProfilingScorer extends Scorer {
+
+    private final Scorer scorer;
+
+    ProfilingScorer(Weight weight, Scorer scorer) {
+      super(weight);
+      this.scorer = scorer;
+    }
+
+    @Override
+    public int docID() {
+      return scorer.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      long start = System.nanoTime();
+      int doc = scorer.nextDoc();
+      record(start, doc);
+      return doc;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      long start = System.nanoTime();
+      int doc = scorer.advance(target);
+      record(start, doc);
+      return doc;
+    }
+
+    @Override
+    public float score() throws IOException {
+      long start = System.nanoTime();
+      float score = scorer.score();
+      profile.addNanos(System.nanoTime() - start);
+      return score;
+    }
+
+    @Override
+    public float freq() throws IOException {
+      return scorer.freq();
+    }
+
+    private void record(long start, int doc) {
+      profile.addNanos(System.nanoTime() - start);
+      if (doc != NO_MORE_DOCS) {
+        profile.addMatched(1);
+      }
+    }
+  }
+}
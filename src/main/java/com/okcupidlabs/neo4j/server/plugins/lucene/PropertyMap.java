@@ -28,6 +28,18 @@ public class PropertyMap<K,V> extends HashMap<K,V> {
     this.putAll(map);
   }
 
+  /**
+  * View {@code map} as a property map, copying it only if it isn't one already.
+  * @param  map A map whose contents the result will contain
+  * @return {@code map} itself if it is a PropertyMap, otherwise a PropertyMap copy of it
+  */
+  public static <K,V> PropertyMap<K,V> wrap(Map<K,V> map) {
+    if (map instanceof PropertyMap) {
+      return (PropertyMap<K,V>)map;
+    }
+    return new PropertyMap<K,V>(map);
+  }
+
   /** 
   * Try to get a value of type {@code double} from {@code key} in {@code props}
   * @param props The property map
@@ -121,6 +133,19 @@ public class PropertyMap<K,V> extends HashMap<K,V> {
     return getIntFromObject(o);
   }
 
+  /** 
+  * Try to get a value of type {@code long} from {@code key} in this map
+  * @param key  The key to retrieve
+  * @return A long value found at {@code key}
+  * @throws IllegalArgumentException if the key does not exist in props or its value cannot be coerced to a long 
+  */
+  public long getLong(K key) throws IllegalArgumentException {
+    Object o = this.get(key);
+    if (o == null)
+      throw new IllegalArgumentException("Property map has no value for key "+key);
+    return getLongFromObject(o);
+  }
+
   /**
   * Get a validated set of coordinates from this map, in which latitude 
     and longitude are guaranteed to exist and be sane.
@@ -211,6 +236,21 @@ public class PropertyMap<K,V> extends HashMap<K,V> {
       throw new IllegalArgumentException("Can't coerce object of type "+o.getClass().getName()+" to an int.");
     }
   }
+
+  private static long getLongFromObject(Object o) throws IllegalArgumentException {
+    if (o == null) {
+      throw new IllegalArgumentException("Can't coerce null to a long.");
+    }
+    // warn on loss of precision!
+    if (o instanceof Double || o instanceof Float) {
+      log.warning("Coercing "+o.getClass().getName()+" to long! Loss of precision.");
+    }
+    try {
+      return ((Number)o).longValue();
+    } catch (ClassCastException e) {
+      throw new IllegalArgumentException("Can't coerce object of type "+o.getClass().getName()+" to a long.");
+    }
+  }
   
     
 }
\ No newline at end of file
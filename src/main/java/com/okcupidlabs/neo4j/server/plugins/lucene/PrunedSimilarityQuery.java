@@ -0,0 +1,116 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+
+/**
+* A similarity query whose cost doesn't grow with the length of its input.
+* <p>Like a plain SIM query, every term of the input is an optional clause, but when the query
+  is rewritten against an index, terms that aren't in the index are dropped, and so are terms
+  in more than a given share of its documents, whose postings are long and say little about a
+  match. If more than a given number of terms are left, only the rarest are kept. If every
+  term is too common, the rarest one is kept, so the query still matches something.</p>
+* <p>A minimum number of the kept terms can be required to match. It's capped at the number of
+  terms kept, so pruning never makes a query unmatchable.</p>
+*/
+public class PrunedSimilarityQuery extends Query {
+
+  private final List<Term> terms;
+  private final int maxTerms;
+  private final int minShouldMatch;
+  private final float minShouldMatchFraction;
+  private final float maxDocFreq;
+
+  /**
+  * @param terms The terms of the input, once each, in order
+  * @param maxTerms The most terms to keep, or 0 to keep any number
+  * @param minShouldMatch How many kept terms a match needs. 0 for any one of them.
+  * @param minShouldMatchFraction What share of the kept terms a match needs, if minShouldMatch is 0.
+  * @param maxDocFreq The most documents a term can be in and be kept: a share of the index's
+                      documents if less than 1, or a count. 0 to keep terms however common they are.
+  */
+  public PrunedSimilarityQuery(List<Term> terms, int maxTerms, int minShouldMatch, float minShouldMatchFraction,
+                               float maxDocFreq) {
+    this.terms = terms;
+    this.maxTerms = maxTerms;
+    this.minShouldMatch = minShouldMatch;
+    this.minShouldMatchFraction = minShouldMatchFraction;
+    this.maxDocFreq = maxDocFreq;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    final List<Term> found = new ArrayList<Term>();
+    final List<Integer> docFreqs = new ArrayList<Integer>();
+    for (Term term : terms) {
+      int docFreq = reader.docFreq(term);
+      if (docFreq > 0) {
+        found.add(term);
+        docFreqs.add(docFreq);
+      }
+    }
+    // rarest first; ties keep the order they were typed in.
+    List<Integer> rarest = new ArrayList<Integer>();
+    for (int i = 0; i < found.size(); i++) {
+      rarest.add(i);
+    }
+    Collections.sort(rarest, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int byFreq = docFreqs.get(a).compareTo(docFreqs.get(b));
+        return (byFreq != 0) ? byFreq : a.compareTo(b);
+      }
+    });
+    float limit = (maxDocFreq <= 0) ? Float.MAX_VALUE : (maxDocFreq < 1 ? maxDocFreq * reader.numDocs() : maxDocFreq);
+    List<Integer> kept = new ArrayList<Integer>();
+    for (Integer i : rarest) {
+      if ((maxTerms > 0 && kept.size() == maxTerms) || (docFreqs.get(i) > limit && !kept.isEmpty())) {
+        break;
+      }
+      kept.add(i);
+    }
+    Collections.sort(kept);
+
+    BooleanQuery query = new BooleanQuery();
+    for (Integer i : kept) {
+      query.add(new TermQuery(found.get(i)), BooleanClause.Occur.SHOULD);
+    }
+    int required = (minShouldMatch > 0) ? minShouldMatch : (int)Math.ceil(minShouldMatchFraction * kept.size());
+    query.setMinimumNumberShouldMatch(Math.min(required, kept.size()));
+    query.setBoost(getBoost());
+    return query;
+  }
+
+  @Override
+  public String toString(String field) {
+    return "pruned(" + terms + ", max_terms=" + maxTerms + ", min_should_match="
+      + (minShouldMatch > 0 ? String.valueOf(minShouldMatch) : (minShouldMatchFraction * 100) + "%")
+      + ", max_doc_freq=" + maxDocFreq + ")" + (getBoost() != 1 ? "^" + getBoost() : "");
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof PrunedSimilarityQuery)) {
+      return false;
+    }
+    PrunedSimilarityQuery other = (PrunedSimilarityQuery)o;
+    return terms.equals(other.terms) && maxTerms == other.maxTerms && minShouldMatch == other.minShouldMatch
+      && minShouldMatchFraction == other.minShouldMatchFraction && maxDocFreq == other.maxDocFreq
+      && getBoost() == other.getBoost();
+  }
+
+  @Override
+  public int hashCode() {
+    return terms.hashCode() ^ (31 * maxTerms + minShouldMatch) ^ Float.floatToIntBits(minShouldMatchFraction)
+      ^ Float.floatToIntBits(maxDocFreq) ^ Float.floatToIntBits(getBoost());
+  }
+}
@@ -4,14 +4,19 @@ import java.util.Map;
 import java.util.List;
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.net.URI;
 import java.io.IOException;
 import java.io.StringReader;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.NumericRangeFilter;
 import org.apache.lucene.search.BooleanQuery;
@@ -68,9 +73,49 @@ import java.util.logging.*;
     &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
     &nbsp;&nbsp;"index_key": $FIELD_TO_SEARCH<br>
     &nbsp;&nbsp;"query": $TERM_TO_FIND<br>
+    &nbsp;&nbsp;"max_terms": $MAX_TERMS&nbsp;&nbsp;&nbsp;&nbsp;// optional, keeps only the rarest terms<br>
+    &nbsp;&nbsp;"min_should_match": $COUNT_OR_PERCENT&nbsp;&nbsp;&nbsp;&nbsp;// optional, like 2 or "75%"<br>
+    &nbsp;&nbsp;"max_doc_freq": $COUNT_OR_FRACTION&nbsp;&nbsp;&nbsp;&nbsp;// optional, leaves out terms in more documents<br>
     &nbsp;&nbsp;}<br>
    </blockquote></code>
 
+   <code><blockquote>
+   {"type": "MULTI_FIELD"<br>
+   &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
+   &nbsp;&nbsp;"query": $TEXT_TO_FIND<br>
+   &nbsp;&nbsp;"fields": [$FIELD_TO_SEARCH | {"index_key": $FIELD_TO_SEARCH, "boost": $FIELD_BOOST} ...]<br>
+   &nbsp;&nbsp;"mode": "(DISMAX|CROSS_FIELD)"&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to DISMAX<br>
+   &nbsp;&nbsp;"tiebreaker": $tiebreakingvalue&nbsp;&nbsp;&nbsp;&nbsp;// optional<br>
+   &nbsp;&nbsp;}<br>
+  </blockquote></code>
+
+   <code><blockquote>
+   {"type": "FUZZY"<br>
+   &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
+   &nbsp;&nbsp;"index_key": $NGRAM_INDEXED_FIELD<br>
+   &nbsp;&nbsp;"query": $TERMS_TO_FIND<br>
+   &nbsp;&nbsp;"max_edits": $MAX_EDITS&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to 2<br>
+   &nbsp;&nbsp;"max_candidates": $MAX_DOCS&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to 1000<br>
+   &nbsp;&nbsp;}<br>
+  </blockquote></code>
+
+   <code><blockquote>
+   {"type": "MLT"<br>
+   &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
+   &nbsp;&nbsp;"node_id": $NODE_TO_FIND_NODES_LIKE<br>
+   &nbsp;&nbsp;"index_keys": [$FIELD_TO_COMPARE ...]<br>
+   &nbsp;&nbsp;"max_terms": $MAX_TERMS&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to 25<br>
+   &nbsp;&nbsp;}<br>
+  </blockquote></code>
+
+   <code><blockquote>
+   {"type": "PREFIX"<br>
+   &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
+   &nbsp;&nbsp;"index_key": $FIELD_TO_SEARCH<br>
+   &nbsp;&nbsp;"query": $PREFIX_TO_FIND<br>
+   &nbsp;&nbsp;}<br>
+  </blockquote></code>
+
    <code><blockquote>
    {"type": "PHRASE"<br>
    &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
@@ -97,6 +142,16 @@ import java.util.logging.*;
    &nbsp;&nbsp;}<br>
   </blockquote></code>
 
+   <code><blockquote>
+   {"type": "FUNCTION_SCORE"<br>
+   &nbsp;&nbsp;"boost": $BOOST&nbsp;&nbsp;&nbsp;&nbsp;//optional, defaults to 1<br>
+   &nbsp;&nbsp;"query": $QUERY&nbsp;&nbsp;&nbsp;&nbsp;// another valid query spec<br>
+   &nbsp;&nbsp;"functions": [$FUNCTION0 ... $FUNCTIONN]&nbsp;&nbsp;&nbsp;&nbsp;// see ScoreFunction<br>
+   &nbsp;&nbsp;"score_mode": "(MULTIPLY|SUM|MAX|MIN)"&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to MULTIPLY<br>
+   &nbsp;&nbsp;"boost_mode": "(MULTIPLY|SUM|REPLACE)"&nbsp;&nbsp;&nbsp;&nbsp;// optional, defaults to MULTIPLY<br>
+   &nbsp;&nbsp;}<br>
+  </blockquote></code>
+
   */
 public class QueryBuilder {
   public QueryBuilder() {}; // blank constructor
@@ -113,6 +168,50 @@ public class QueryBuilder {
     * @return a Query object that can be used to execute the requested index query.
    */
   public static Query buildQuery(Analyzer analyzer, PropertyMap<String, Object> querySpec) throws IllegalArgumentException {
+    return buildQuery(analyzer, querySpec, null);
+  }
+
+  /**
+    * Recursively build up a complex Query object, optionally instrumented for profiling.
+    * @param analyzer The query analyzer to use when building queries (you should discover this from the Index)
+    * @param querySpec A PropertyMap specifying what kind of query to build.
+    * @param profile Where to add a profile of the query and each of its parts, or null not to profile it.
+    * @return a Query object that can be used to execute the requested index query.
+   */
+  public static Query buildQuery(Analyzer analyzer, PropertyMap<String, Object> querySpec, QueryProfile profile) 
+      throws IllegalArgumentException 
+  {
+    return buildQuery(analyzer, querySpec, profile, null);
+  }
+
+  /**
+    * Recursively build up a complex Query object, optionally instrumented for profiling.
+    * @param analyzer The query analyzer to use when building queries (you should discover this from the Index)
+    * @param querySpec A PropertyMap specifying what kind of query to build.
+    * @param profile Where to add a profile of the query and each of its parts, or null not to profile it.
+    * @param numerics The numeric types of the index's keys, or null if they are all doubles.
+    * @return a Query object that can be used to execute the requested index query.
+   */
+  public static Query buildQuery(Analyzer analyzer, PropertyMap<String, Object> querySpec, QueryProfile profile,
+                                 NumericFields numerics) 
+      throws IllegalArgumentException 
+  {
+    return buildQuery(analyzer, querySpec, profile, numerics, null);
+  }
+
+  /**
+    * Recursively build up a complex Query object, optionally instrumented for profiling.
+    * @param analyzer The query analyzer to use when building queries (you should discover this from the Index)
+    * @param querySpec A PropertyMap specifying what kind of query to build.
+    * @param profile Where to add a profile of the query and each of its parts, or null not to profile it.
+    * @param numerics The numeric types of the index's keys, or null if they are all doubles.
+    * @param ngrams The n-gram sizes of the index's keys, or null if none are n-gram indexed.
+    * @return a Query object that can be used to execute the requested index query.
+   */
+  public static Query buildQuery(Analyzer analyzer, PropertyMap<String, Object> querySpec, QueryProfile profile,
+                                 NumericFields numerics, NGramFields ngrams) 
+      throws IllegalArgumentException 
+  {
     // a valid query object has a type, and then some data.
     QueryType type = null;
     try {
@@ -120,6 +219,7 @@ public class QueryBuilder {
     } catch (NullPointerException npe) {
       throw new IllegalArgumentException("Query spec "+querySpec+" has no type");
     }
+    QueryProfile node = (profile == null) ? null : profile.child(type.name());
     // what kind of query is this?
     Query q = null;
     switch (type) {
@@ -137,19 +237,19 @@ public class QueryBuilder {
             log.info("Using default dismax tiebreaker: " + iae.getMessage());
           }
         }
-        q = makeDismaxQuery(analyzer, subSpecs, dismaxTieBreaker);
+        q = makeDismaxQuery(analyzer, subSpecs, dismaxTieBreaker, node, numerics, ngrams);
         break;
       case BOOL:
         List<Map<String, Object>> clauses = (List<Map<String, Object>>)querySpec.get("clauses");
         if (clauses == null || clauses.size() == 0) {
           throw new IllegalArgumentException("Boolean query must contain a list of clauses.");
         }
-        q = makeBooleanQuery(analyzer, clauses);
+        q = makeBooleanQuery(analyzer, clauses, node, numerics, ngrams);
         break;
       case NUMRANGE:
         String key = (String)querySpec.get("index_key");
         String range = (String)querySpec.get("range");
-        q = makeNumRangeQuery(key, range);
+        q = makeNumRangeQuery(key, range, numerics);
         break;
       case GEO:
         // validate the geo. this will barf if the values are bogus and that is fine.
@@ -157,7 +257,8 @@ public class QueryBuilder {
           querySpec.getSearchRadius(LAT_KEY, LON_KEY, DIST_KEY);
         q = makeGeoQuery( searchRadius.get(LAT_KEY), 
                           searchRadius.get(LON_KEY), 
-                          searchRadius.get(DIST_KEY));
+                          searchRadius.get(DIST_KEY),
+                          node);
         break;
       case TERM:
         String numericKey = (String)querySpec.get("index_key");
@@ -167,6 +268,14 @@ public class QueryBuilder {
         }
         q = new TermQuery(new Term(numericKey, queryString));
         break;
+      case PREFIX:
+        String prefixKey = (String)querySpec.get("index_key");
+        String prefix = (String)querySpec.get("query");
+        if (prefixKey == null || prefix == null) {
+          throw new IllegalArgumentException("Trying to build a prefix query, but missing index key or query.");
+        }
+        q = new PrefixQuery(new Term(prefixKey, prefix));
+        break;
       case PHRASE:
         String phraseKey = (String)querySpec.get("index_key");
         String phraseString = (String)querySpec.get("query");
@@ -187,6 +296,16 @@ public class QueryBuilder {
           throw new IllegalArgumentException("Failed creating phrase query: "+e.getMessage());
         }
         break;
+      case FUNCTION_SCORE:
+        Map<String, Object> scoredSpec = (Map<String, Object>)querySpec.get("query");
+        List<Map<String, Object>> functionSpecs = (List<Map<String, Object>>)querySpec.get("functions");
+        if (scoredSpec == null || functionSpecs == null || functionSpecs.size() == 0) {
+          throw new IllegalArgumentException("Function score query must contain a query and a list of functions.");
+        }
+        q = makeFunctionScoreQuery(analyzer, scoredSpec, functionSpecs,
+                                   (String)querySpec.get("score_mode"), (String)querySpec.get("boost_mode"), node, numerics,
+                                   ngrams);
+        break;
       case SIM:
         // similarity query. should have keys for index key and query.
         String indexKey = (String)querySpec.get("index_key");
@@ -194,7 +313,103 @@ public class QueryBuilder {
         if (indexKey == null || simQueryString == null) {
           throw new IllegalArgumentException("Trying to build a similarity query, but missing index key or query.");
         }
-        q = makeSimilarityQuery(analyzer, indexKey, simQueryString);
+        if (querySpec.containsKey("max_terms") || querySpec.containsKey("min_should_match") 
+            || querySpec.containsKey("max_doc_freq")) {
+          int maxTerms = querySpec.containsKey("max_terms") ? querySpec.getInt("max_terms") : 0;
+          float maxDocFreq = querySpec.containsKey("max_doc_freq") ? querySpec.getFloat("max_doc_freq") : 0;
+          // a count of terms, or a percentage of them, like "75%".
+          Object minShouldMatch = querySpec.get("min_should_match");
+          int minCount = 0;
+          float minFraction = 0;
+          if (minShouldMatch instanceof String && ((String)minShouldMatch).endsWith("%")) {
+            String percent = (String)minShouldMatch;
+            try {
+              minFraction = Float.parseFloat(percent.substring(0, percent.length() - 1)) / 100;
+            } catch (NumberFormatException nfe) {
+              throw new IllegalArgumentException("Bad min_should_match for similarity query: " + percent);
+            }
+          } else if (minShouldMatch != null) {
+            minCount = querySpec.getInt("min_should_match");
+          }
+          if (maxTerms < 0 || maxDocFreq < 0 || minCount < 0 || minFraction < 0 || minFraction > 1) {
+            throw new IllegalArgumentException("Similarity query limits can't be negative, or more than 100%.");
+          }
+          q = makePrunedSimilarityQuery(analyzer, indexKey, simQueryString, maxTerms, minCount, minFraction, maxDocFreq);
+        } else {
+          q = makeSimilarityQuery(analyzer, indexKey, simQueryString);
+        }
+        break;
+      case MULTI_FIELD:
+        // one string searched in several fields, each with its own boost.
+        String multiString = (String)querySpec.get("query");
+        if (multiString == null || !(querySpec.get("fields") instanceof List)) {
+          throw new IllegalArgumentException("Trying to build a multi-field query, but missing query or fields.");
+        }
+        Map<String, Float> fieldBoosts = new LinkedHashMap<String, Float>();
+        for (Object field : (List<Object>)querySpec.get("fields")) {
+          if (field instanceof String) {
+            fieldBoosts.put((String)field, 1.0f);
+          } else if (field instanceof Map && ((Map<String, Object>)field).get("index_key") instanceof String) {
+            PropertyMap<String, Object> fieldSpec = PropertyMap.wrap((Map<String, Object>)field);
+            fieldBoosts.put((String)fieldSpec.get("index_key"), fieldSpec.containsKey("boost") ? fieldSpec.getFloat("boost") : 1.0f);
+          } else {
+            throw new IllegalArgumentException("Multi-field query fields must be index keys, or {\"index_key\": $KEY, \"boost\": $BOOST}");
+          }
+        }
+        if (fieldBoosts.isEmpty()) {
+          throw new IllegalArgumentException("Multi-field query must name at least one field.");
+        }
+        String mode = querySpec.containsKey("mode") ? (String)querySpec.get("mode") : "DISMAX";
+        if (!mode.equals("DISMAX") && !mode.equals("CROSS_FIELD")) {
+          throw new IllegalArgumentException("Multi-field query mode must be DISMAX or CROSS_FIELD, but was " + mode);
+        }
+        float multiTieBreaker = querySpec.containsKey("tiebreaker") ? querySpec.getFloat("tiebreaker") : DEFAULT_DISMAX_TIEBREAKER;
+        try {
+          q = makeMultiFieldQuery(analyzer, multiString, fieldBoosts, mode.equals("CROSS_FIELD"), multiTieBreaker);
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Failed analyzing multi-field query: " + e.getMessage());
+        }
+        break;
+      case FUZZY:
+        String fuzzyKey = (String)querySpec.get("index_key");
+        String fuzzyString = (String)querySpec.get("query");
+        if (fuzzyKey == null || fuzzyString == null) {
+          throw new IllegalArgumentException("Trying to build a fuzzy query, but missing index key or query.");
+        }
+        int gramSize = (ngrams == null) ? 0 : ngrams.sizeOf(fuzzyKey);
+        if (gramSize == 0) {
+          throw new IllegalArgumentException("Fuzzy queries need an n-gram indexed key, and " + fuzzyKey + " isn't one.");
+        }
+        int maxEdits = querySpec.containsKey("max_edits") ? querySpec.getInt("max_edits") : NGramFuzzyQuery.DEFAULT_MAX_EDITS;
+        int maxCandidates = querySpec.containsKey("max_candidates") 
+          ? querySpec.getInt("max_candidates") : NGramFuzzyQuery.DEFAULT_MAX_CANDIDATES;
+        if (maxEdits < 0 || maxCandidates <= 0) {
+          throw new IllegalArgumentException("Fuzzy query max_edits can't be negative, and max_candidates must be positive.");
+        }
+        List<String> fuzzyTerms = new ArrayList<String>();
+        try {
+          for (Term term : new LinkedHashSet<Term>(extractTerms(analyzer, fuzzyKey, fuzzyString))) {
+            fuzzyTerms.add(term.text());
+          }
+        } catch (IOException e) {
+          throw new IllegalArgumentException("Failed analyzing fuzzy query: " + e.getMessage());
+        }
+        q = new NGramFuzzyQuery(fuzzyKey, fuzzyTerms, gramSize, maxEdits, maxCandidates, analyzer);
+        break;
+      case MLT:
+        // more like an indexed node. the terms come from the index, so the node's text never has to be sent.
+        if (!querySpec.containsKey("node_id") || !(querySpec.get("index_keys") instanceof List)) {
+          throw new IllegalArgumentException("Trying to build a more-like-this query, but missing node id or index keys.");
+        }
+        List<String> likeKeys = new ArrayList<String>();
+        for (Object likeKey : (List<Object>)querySpec.get("index_keys")) {
+          likeKeys.add(String.valueOf(likeKey));
+        }
+        int likeTerms = querySpec.containsKey("max_terms") ? querySpec.getInt("max_terms") : SimilarNodeQuery.DEFAULT_MAX_TERMS;
+        if (likeKeys.isEmpty() || likeTerms <= 0) {
+          throw new IllegalArgumentException("More-like-this query needs at least one index key and a positive max_terms.");
+        }
+        q = new SimilarNodeQuery(querySpec.getLong("node_id"), likeKeys, likeTerms, analyzer);
         break;
       default:
         throw new IllegalArgumentException("Unsupported query type: "+type.name());
@@ -209,7 +424,7 @@ public class QueryBuilder {
       }
     }
     q.setBoost(boost);
-    return q;
+    return (node == null) ? q : node.wrap(q);
   }
 
   /**
@@ -232,6 +447,76 @@ public class QueryBuilder {
     return similarityQuery;
   }
   
+  /**
+    * Make a similarity query whose size is bounded, however long the input. See {@link PrunedSimilarityQuery}.
+    * @param analyzer The query analyzer to use (this should match the analyzer that was used to build this field)
+    * @param key  The index field to search in
+    * @param query  The text that results should be similar to.
+    * @param maxTerms  The most terms to search for, rarest first, or 0 for no limit
+    * @param minShouldMatch  How many of those terms a result needs, or 0 to use minShouldMatchFraction
+    * @param minShouldMatchFraction  What share of those terms a result needs, or 0 for any one of them
+    * @param maxDocFreq  Leave out terms in more documents than this, given as a share of the index if less than 1.
+                         0 for no limit.
+    * @return a Query object that can be used to execute the requested similarity query.
+   */
+  public static Query makePrunedSimilarityQuery(Analyzer analyzer, String key, String query, int maxTerms,
+                                                int minShouldMatch, float minShouldMatchFraction, float maxDocFreq) {
+    List<Term> terms;
+    try {
+      terms = new ArrayList<Term>(new LinkedHashSet<Term>(extractTerms(analyzer, key, query)));
+    } catch (IOException e) {
+      // as for plain similarity queries, this can't really happen.
+      log.warning("Impossible exception encountered when analyzing the similarity query. Searching as term instead.");
+      terms = Collections.singletonList(new Term(key, query));
+    }
+    return new PrunedSimilarityQuery(terms, maxTerms, minShouldMatch, minShouldMatchFraction, maxDocFreq);
+  }
+
+  /**
+    * Make a query for a string in several fields, analyzing the string once. The index's analyzer
+    * analyzes every field alike, so the same terms are searched for in each.
+    * @param analyzer The query analyzer to use (this should match the analyzer that was used to build these fields)
+    * @param query  The text to search for
+    * @param fieldBoosts  The fields to search, and the boost for each
+    * @param crossField  false to score a hit by its best field, each field searched like a SIM query;
+                         true to score each term by its best field, as if the fields were one field
+    * @param tiebreaker  How much the other fields count, as for a dismax query
+    * @return a Query object that can be used to execute the requested query.
+   */
+  public static Query makeMultiFieldQuery(Analyzer analyzer, String query, Map<String, Float> fieldBoosts,
+                                          boolean crossField, float tiebreaker) throws IOException {
+    String firstField = fieldBoosts.keySet().iterator().next();
+    List<String> tokens = new ArrayList<String>();
+    for (Term term : new LinkedHashSet<Term>(extractTerms(analyzer, firstField, query))) {
+      tokens.add(term.text());
+    }
+    if (crossField) {
+      BooleanQuery perTerm = new BooleanQuery();
+      for (String token : tokens) {
+        DisjunctionMaxQuery bestField = new DisjunctionMaxQuery(tiebreaker);
+        for (Map.Entry<String, Float> field : fieldBoosts.entrySet()) {
+          bestField.add(boosted(new TermQuery(new Term(field.getKey(), token)), field.getValue()));
+        }
+        perTerm.add(bestField, Occur.SHOULD);
+      }
+      return perTerm;
+    }
+    DisjunctionMaxQuery perField = new DisjunctionMaxQuery(tiebreaker);
+    for (Map.Entry<String, Float> field : fieldBoosts.entrySet()) {
+      BooleanQuery terms = new BooleanQuery();
+      for (String token : tokens) {
+        terms.add(new TermQuery(new Term(field.getKey(), token)), Occur.SHOULD);
+      }
+      perField.add(boosted(terms, field.getValue()));
+    }
+    return perField;
+  }
+
+  private static Query boosted(Query query, float boost) {
+    query.setBoost(boost);
+    return query;
+  }
+
   /**
     * Make a PhraseQuery with the supplied specs
     * @param analyzer The query analyzer to use (this should match the analyzer that was used to build this field)
@@ -259,10 +544,17 @@ public class QueryBuilder {
    */
   public static Query makeDismaxQuery(Analyzer analyzer, List<Map<String, Object>> subSpecs, float tiebreaker) 
       throws IllegalArgumentException 
+  {
+    return makeDismaxQuery(analyzer, subSpecs, tiebreaker, null, null, null);
+  }
+
+  private static Query makeDismaxQuery(Analyzer analyzer, List<Map<String, Object>> subSpecs, float tiebreaker,
+                                       QueryProfile profile, NumericFields numerics, NGramFields ngrams) 
+      throws IllegalArgumentException 
   {
     List<Query> subQueries = new ArrayList<Query>();
     for (Map<String, Object> subSpec : subSpecs) {
-      subQueries.add(buildQuery(analyzer, new PropertyMap(subSpec)));
+      subQueries.add(buildQuery(analyzer, PropertyMap.wrap(subSpec), profile, numerics, ngrams));
     }
     return new DisjunctionMaxQuery(subQueries, tiebreaker);
   }
@@ -276,6 +568,13 @@ public class QueryBuilder {
     * @return a Query object that can be used to execute the requested query.
    */
   public static Query makeBooleanQuery(Analyzer analyzer, List<Map<String, Object>> clauses) throws IllegalArgumentException {
+    return makeBooleanQuery(analyzer, clauses, null, null, null);
+  }
+
+  private static Query makeBooleanQuery(Analyzer analyzer, List<Map<String, Object>> clauses, QueryProfile profile,
+                                        NumericFields numerics, NGramFields ngrams) 
+      throws IllegalArgumentException 
+  {
     BooleanQuery bQuery = new BooleanQuery();
     for (Map<String, Object> clause : clauses) {
       // should contain a query spec...
@@ -285,7 +584,7 @@ public class QueryBuilder {
       }
       Query subQuery = null;
       try {
-        subQuery = buildQuery(analyzer, new PropertyMap(subSpec));
+        subQuery = buildQuery(analyzer, PropertyMap.wrap(subSpec), profile, numerics, ngrams);
       } catch (IllegalArgumentException iae) {
         throw new IllegalArgumentException("Can't construct a boolean clause: bad query spec! " + iae.getMessage());
       }
@@ -305,6 +604,49 @@ public class QueryBuilder {
     return bQuery;
   }
 
+  /**
+    * Make a FunctionScoreQuery with the supplied specs
+    * @param analyzer The query analyzer to use (this should match the analyzer that was used to build this field)
+    * @param subSpec  The querySpec of the query whose scores are to be adjusted
+    * @param functionSpecs  A list of ScoreFunction specs
+    * @param scoreMode  How to combine the functions (MULTIPLY|SUM|MAX|MIN), or null for MULTIPLY
+    * @param boostMode  How to combine the functions with the query score (MULTIPLY|SUM|REPLACE), or null for MULTIPLY
+    * @return a Query object that can be used to execute the requested query.
+   */
+  public static Query makeFunctionScoreQuery(Analyzer analyzer, Map<String, Object> subSpec, 
+                                             List<Map<String, Object>> functionSpecs, 
+                                             String scoreMode, String boostMode)
+      throws IllegalArgumentException
+  {
+    return makeFunctionScoreQuery(analyzer, subSpec, functionSpecs, scoreMode, boostMode, null, null, null);
+  }
+
+  private static Query makeFunctionScoreQuery(Analyzer analyzer, Map<String, Object> subSpec, 
+                                              List<Map<String, Object>> functionSpecs, 
+                                              String scoreMode, String boostMode, QueryProfile profile,
+                                              NumericFields numerics, NGramFields ngrams)
+      throws IllegalArgumentException
+  {
+    Query subQuery = buildQuery(analyzer, PropertyMap.wrap(subSpec), profile, numerics, ngrams);
+    List<ScoreFunction> functions = new ArrayList<ScoreFunction>();
+    for (Map<String, Object> functionSpec : functionSpecs) {
+      functions.add(ScoreFunction.fromSpec(PropertyMap.wrap(functionSpec), numerics));
+    }
+    FunctionScoreQuery.ScoreMode sMode = FunctionScoreQuery.ScoreMode.MULTIPLY;
+    FunctionScoreQuery.BoostMode bMode = FunctionScoreQuery.BoostMode.MULTIPLY;
+    try {
+      if (scoreMode != null) {
+        sMode = Enum.valueOf(FunctionScoreQuery.ScoreMode.class, scoreMode);
+      }
+      if (boostMode != null) {
+        bMode = Enum.valueOf(FunctionScoreQuery.BoostMode.class, boostMode);
+      }
+    } catch (IllegalArgumentException iae) {
+      throw new IllegalArgumentException("Bad score_mode or boost_mode: " + iae.getMessage());
+    }
+    return new FunctionScoreQuery(subQuery, functions, sMode, bMode);
+  }
+
   /**
     * Make a NumericRangeQuery with the supplied specs
     * @param numericKey The field to search, which must be a NumericField.
@@ -314,24 +656,36 @@ public class QueryBuilder {
   public static Query makeNumRangeQuery(String numericKey, String range) 
       throws IllegalArgumentException 
   {
+    return makeNumRangeQuery(numericKey, range, null);
+  }
+
+  /**
+    * Make a NumericRangeQuery of whatever type the field was indexed as
+    * @param numericKey The field to search, which must be a NumericField.
+    * @param range  A string specifying the range to search.
+    * @param numerics The numeric types of the index's keys, or null if they are all doubles.
+    * @return a Query object that can be used to execute the requested query.
+   */
+  public static Query makeNumRangeQuery(String numericKey, String range, NumericFields numerics) 
+      throws IllegalArgumentException 
+  {
+    if (numericKey == null || range == null) {
+      throw new IllegalArgumentException("Trying to build a numeric range query, but missing index key or range.");
+    }
     // unpack the range string to a value
     Matcher rangeMatcher = numRangePattern.matcher(range);
-    double minVal = 0, maxVal = 0;
-    boolean minInc = false, maxInc = false;
-    if (rangeMatcher.matches()) {
-      try {
-        minVal = Double.parseDouble(rangeMatcher.group(2));
-        maxVal = Double.parseDouble(rangeMatcher.group(3));
-      } catch (NumberFormatException nfe) {
-        throw new IllegalArgumentException(nfe);
-      }
-      // numbers ok. get inclusivity
-      minInc = (rangeMatcher.group(1).equals("["));
-      maxInc = (rangeMatcher.group(4).equals("]"));
-    } else {
+    if (!rangeMatcher.matches()) {
       throw new IllegalArgumentException("Couldn't convert "+range+" to a range like [nnn,mmm)");
     }
-    return NumericRangeQuery.newDoubleRange(numericKey, minVal, maxVal, minInc, maxInc);
+    boolean minInc = (rangeMatcher.group(1).equals("["));
+    boolean maxInc = (rangeMatcher.group(4).equals("]"));
+    NumericType type = (numerics == null) ? NumericType.DOUBLE : numerics.typeOf(numericKey);
+    try {
+      return type.newRange(numericKey, NumericFields.INDEXED_PRECISION_STEP, rangeMatcher.group(2).trim(), rangeMatcher.group(3).trim(), 
+                           minInc, maxInc);
+    } catch (NumberFormatException nfe) {
+      throw new IllegalArgumentException(nfe);
+    }
   }
   
   /**
@@ -342,6 +696,11 @@ public class QueryBuilder {
     * @return a Query object that can be used to execute the requested query.
    */
   public static Query makeGeoQuery(double lat, double lon, double dist) {
+    return makeGeoQuery(lat, lon, dist, null);
+  }
+
+  // as above, optionally adding a profile of each filter stage.
+  private static Query makeGeoQuery(double lat, double lon, double dist, QueryProfile profile) {
     // make a bounding box using a filtered query.
     // this is weirdly complicated, because distance query can only be implemented as a filter,
     // but distance math is expensive. so, in order, we 
@@ -376,16 +735,30 @@ public class QueryBuilder {
     bbFilter.add(latFilter, BooleanClause.Occur.MUST); // AND these together to get a bounding box.
     bbFilter.add(lonFilter, BooleanClause.Occur.MUST);
     // FINALLY, apply a radial distance filter on the result.
-    LatLongDistanceFilter radialFilter = new LatLongDistanceFilter(bbFilter, lat, lon, dist, LAT_KEY, LON_KEY);
+    Filter radialFilter = new LatLongDistanceFilter(profileStage(profile, "bounding_box", bbFilter), 
+                                                    lat, lon, dist, LAT_KEY, LON_KEY);
     // now turn this all back into a query. seed it with a lat query.
-    NumericRangeQuery latQuery = NumericRangeQuery.newDoubleRange(LAT_KEY, lowerLat, upperLat, true, true);
-    FilteredQuery radialQuery = new FilteredQuery(latQuery, radialFilter);
+    Query latQuery = NumericRangeQuery.newDoubleRange(LAT_KEY, lowerLat, upperLat, true, true);
+    if (profile != null) {
+      latQuery = profile.child("lat_seed").wrap(latQuery);
+    }
+    FilteredQuery radialQuery = new FilteredQuery(latQuery, profileStage(profile, "distance", radialFilter));
     return radialQuery;
   }
   
-  // make a Term list for a Phrase query.
-  private static List<Term> extractTerms(Analyzer analyzer, String fieldName, String doc) throws IOException {
+  // profiled stages of a geo query are siblings, since each one's time includes the stages it filters.
+  private static Filter profileStage(QueryProfile profile, String stage, Filter filter) {
+    return (profile == null) ? filter : profile.child(stage).wrap(filter);
+  }
+
+  // make a Term list for a Phrase query, or for anything else that needs to know how a string is tokenized.
+  // without an analyzer, the whole string is one term, as it is in an exact index.
+  static List<Term> extractTerms(Analyzer analyzer, String fieldName, String doc) throws IOException {
     List<Term> terms = new ArrayList<Term>();
+    if (analyzer == null) {
+      terms.add(new Term(fieldName, doc));
+      return terms;
+    }
     StringReader reader = new StringReader(doc);
     TokenStream ts = analyzer.tokenStream(fieldName, reader);
     CharTermAttribute termAtt = ts.addAttribute(CharTermAttribute.class);
@@ -0,0 +1,120 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+
+/**
+* One node in a profile of a search: how long one part of the query took, and how many
+  documents it matched, with a child for each of its parts.
+* <p>{@link QueryBuilder} adds a child for every query spec it builds, and for each stage of a
+  GEO query, and wraps what it built with {@link #wrap(Query)} or {@link #wrap(Filter)} so
+  the searcher reports back here as it runs. Times are inclusive: a BOOL query's time includes
+  the time of its clauses, and a distance filter's includes the bounding box it filters.</p>
+* <p>"matched" counts the documents a part actually produced while the search ran. Inside a
+  conjunction that is usually fewer than everything it could match, since the other clauses
+  let it skip ahead.</p>
+*/
+public class QueryProfile {
+
+  private final String name;
+  private final List<QueryProfile> children = new ArrayList<QueryProfile>();
+  private String description = null;
+  private long nanos = 0;
+  private long matched = 0;
+
+  /**
+  * @param name What this part of the search is, e.g. a query type
+  */
+  public QueryProfile(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+  * @param name What the part is
+  * @return a new, empty profile for a part of this one
+  */
+  public QueryProfile child(String name) {
+    QueryProfile child = new QueryProfile(name);
+    children.add(child);
+    return child;
+  }
+
+  public List<QueryProfile> getChildren() {
+    return children;
+  }
+
+  /**
+  * @param query The query this profile is about
+  * @return a query that runs the given one, recording its time and matches here
+  */
+  public Query wrap(Query query) {
+    this.description = query.toString();
+    return new ProfilingQuery(query, this);
+  }
+
+  /**
+  * @param filter The filter this profile is about
+  * @return a filter that runs the given one, recording its time and matches here
+  */
+  public Filter wrap(Filter filter) {
+    this.description = filter.toString();
+    return new ProfilingFilter(filter, this);
+  }
+
+  /**
+  * @param nanos Time to charge to this part of the search
+  */
+  public void addNanos(long nanos) {
+    this.nanos += nanos;
+  }
+
+  /**
+  * @param count Documents or nodes to count as matched by this part of the search
+  */
+  public void addMatched(long count) {
+    this.matched += count;
+  }
+
+  public double getMillis() {
+    return nanos / 1e6;
+  }
+
+  public long getMatched() {
+    return matched;
+  }
+
+  /**
+  * @return this profile and its children as nested maps and lists, ready to be serialized
+  */
+  public Map<String, Object> toMap() {
+    Map<String, Object> map = new LinkedHashMap<String, Object>();
+    map.put("name", name);
+    if (description != null) {
+      map.put("query", description);
+    }
+    map.put("time_ms", getMillis());
+    map.put("matched", matched);
+    if (!children.isEmpty()) {
+      List<Map<String, Object>> childMaps = new ArrayList<Map<String, Object>>();
+      for (QueryProfile child : children) {
+        childMaps.add(child.toMap());
+      }
+      map.put("children", childMaps);
+    }
+    return map;
+  }
+
+  @Override
+  public String toString() {
+    return toMap().toString();
+  }
+}
@@ -4,5 +4,5 @@ package com.okcupidlabs.neo4j.server.plugins.lucene;
 * A set of legal values for a querySpec PropertyMap's "type" key.
 */
 public enum QueryType {
-  SIM, TERM, PHRASE, GEO, NUMRANGE, BOOL, DISMAX
+  SIM, TERM, PHRASE, GEO, NUMRANGE, BOOL, DISMAX, FUNCTION_SCORE, PREFIX, MLT, FUZZY, MULTI_FIELD
 }
\ No newline at end of file
@@ -0,0 +1,441 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.OpenBitSet;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.ValueContext;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.core.NodeManager;
+
+import java.util.logging.*;
+
+/**
+* Rebuilds an index from node properties into a fresh index, then switches the old index's
+  name over to it with {@link IndexAliases}.
+* <p>Worker threads claim ranges of node ids and index each range's nodes in one
+  transaction: lat and lon as coordinates, the numeric keys as their numeric types, and the
+  text keys with the new index's analyzer. By default only nodes already in the index are
+  scanned. A node id budget per second, shared by the workers, keeps a rebuild from starving
+  live traffic. Writes made through the plugin while a rebuild runs go to both indexes, so
+  nothing is lost when it's switched in: they hold the index name's {@link #switchLock} for
+  reading while they resolve it and write, and the switch waits for them. Workers replace a
+  node's values for each key rather than adding to them, so a node that was written both
+  ways still ends up with one value.</p>
+* <p>The old index is left as it was, in case the new one has to be switched back; it can be
+  deleted through neo4j's REST API once it's no longer wanted.</p>
+*/
+public class RebuildJob implements Runnable {
+
+  private static final Logger log = Logger.getLogger(RebuildJob.class.getName());
+  private static final Map<GraphDatabaseService, Map<String, RebuildJob>> registry
+    = new WeakHashMap<GraphDatabaseService, Map<String, RebuildJob>>();
+  private static final Map<GraphDatabaseService, Map<String, ReadWriteLock>> switchLocks
+    = new WeakHashMap<GraphDatabaseService, Map<String, ReadWriteLock>>();
+
+  public enum State { RUNNING, DONE, FAILED, STOPPED }
+
+  private final GraphDatabaseService db;
+  private final RebuildRequest request;
+  private final String indexName;
+  private final String source;
+  private final Index<Node> target;
+  private final Map<String, NumericType> numericKeys;
+  private final NGramFields ngrams;
+  private final Analyzer analyzer;
+  private final AtomicLong cursor = new AtomicLong(0);
+  private final AtomicLong scanned = new AtomicLong(0);
+  private final AtomicLong indexed = new AtomicLong(0);
+  private final long startMillis = System.currentTimeMillis();
+  private OpenBitSet nodeIds = null; // null to scan every node
+  private long highestId = -1;
+  private long permits = 0; // node ids handed out against max_nodes_per_second
+  private volatile State state = State.RUNNING;
+  private volatile long elapsedMillis = 0;
+  private volatile String error = null;
+  private volatile Thread thread = null;
+
+  private RebuildJob(GraphDatabaseService db, RebuildRequest request, String source, Index<Node> target,
+                     Map<String, NumericType> numericKeys) {
+    this.db = db;
+    this.request = request;
+    this.indexName = request.getIndexName();
+    this.source = source;
+    this.target = target;
+    this.numericKeys = numericKeys;
+    this.ngrams = NGramFields.forIndex(db, target);
+    this.analyzer = LuceneSearch.indexAnalyzer(db, target);
+  }
+
+  /**
+  * Create the new index and start rebuilding it in the background.
+  * @param db A database
+  * @param request What to rebuild, and how
+  * @return the running job
+  * @throws IllegalArgumentException if the index doesn't exist, is already being rebuilt, or
+            a numeric type is invalid
+  */
+  public static RebuildJob start(GraphDatabaseService db, RebuildRequest request) throws IllegalArgumentException {
+    String indexName = request.getIndexName();
+    if (!db.index().existsForNodes(indexName)) {
+      throw new IllegalArgumentException("Index with index_name: " + indexName + " does not exist.");
+    }
+    RebuildJob job;
+    synchronized (RebuildJob.class) {
+      RebuildJob running = forIndex(db, indexName);
+      if (running != null && running.state == State.RUNNING) {
+        throw new IllegalArgumentException("Index " + indexName + " is already being rebuilt into "
+          + running.target.getName());
+      }
+      String source = IndexAliases.resolve(db, indexName);
+      Index<Node> sourceIndex = db.index().forNodes(source);
+      // the new index gets the old one's analyzer and numeric types, unless told otherwise.
+      Map<String, String> config = new HashMap<String, String>(db.index().getConfiguration(sourceIndex));
+      config.remove(IndexAliases.ALIAS_KEY);
+      config.putAll(request.getConfig());
+      NumericFields sourceNumerics = new NumericFields(config);
+      Map<String, NumericType> numericKeys = new LinkedHashMap<String, NumericType>();
+      for (Map.Entry<String, String> key : request.getNumericKeys().entrySet()) {
+        NumericType type = (key.getValue() == null) ? sourceNumerics.typeOf(key.getKey()) : NumericType.forName(key.getValue());
+        config.put(NumericFields.TYPE_PREFIX + key.getKey(), type.name().toLowerCase());
+        numericKeys.put(key.getKey(), type);
+      }
+      Index<Node> target = db.index().forNodes(indexName + "." + System.currentTimeMillis(), config);
+      job = new RebuildJob(db, request, source, target, numericKeys);
+      Map<String, RebuildJob> jobs = registry.get(db);
+      if (jobs == null) {
+        jobs = new LinkedHashMap<String, RebuildJob>();
+        registry.put(db, jobs);
+      }
+      jobs.put(indexName, job);
+    }
+    Thread thread = new Thread(job, "lucene-search-rebuild-" + indexName);
+    thread.setDaemon(true);
+    job.thread = thread;
+    thread.start();
+    return job;
+  }
+
+  /**
+  * @param db A database
+  * @param indexName An index name, as callers give it
+  * @return the latest rebuild of the index, running or not, or null if it hasn't had one
+  */
+  public static synchronized RebuildJob forIndex(GraphDatabaseService db, String indexName) {
+    Map<String, RebuildJob> jobs = registry.get(db);
+    return (jobs == null) ? null : jobs.get(indexName);
+  }
+
+  /**
+  * @param db A database
+  * @return the latest rebuild of each of its indexes
+  */
+  public static synchronized List<RebuildJob> forDatabase(GraphDatabaseService db) {
+    Map<String, RebuildJob> jobs = registry.get(db);
+    return (jobs == null) ? new ArrayList<RebuildJob>() : new ArrayList<RebuildJob>(jobs.values());
+  }
+
+  /**
+  * Stop every running rebuild of a database's indexes. Their new indexes aren't switched in.
+  * @param db A database
+  */
+  public static void stopAll(GraphDatabaseService db) {
+    for (RebuildJob job : forDatabase(db)) {
+      job.stop();
+    }
+  }
+
+  /**
+  * @param db A database
+  * @param indexName An index name, as callers give it
+  * @return the index a running rebuild of it is writing, or null if it isn't being rebuilt
+  */
+  public static Index<Node> runningTarget(GraphDatabaseService db, String indexName) {
+    RebuildJob job = forIndex(db, indexName);
+    return (job == null || job.state != State.RUNNING) ? null : job.target;
+  }
+
+  /**
+  * Writes hold the lock's read lock from resolving an index name until they've written to the
+    index and to any running rebuild of it; a finished rebuild holds its write lock while it
+    switches the name over.
+  * @param db A database
+  * @param indexName An index name, as callers give it
+  * @return the name's lock
+  */
+  public static synchronized ReadWriteLock switchLock(GraphDatabaseService db, String indexName) {
+    Map<String, ReadWriteLock> locks = switchLocks.get(db);
+    if (locks == null) {
+      locks = new HashMap<String, ReadWriteLock>();
+      switchLocks.put(db, locks);
+    }
+    ReadWriteLock lock = locks.get(indexName);
+    if (lock == null) {
+      lock = new ReentrantReadWriteLock();
+      locks.put(indexName, lock);
+    }
+    return lock;
+  }
+
+  /**
+  * Stop the rebuild early, leaving the old index in use.
+  */
+  public void stop() {
+    Thread running = thread;
+    if (running != null) {
+      running.interrupt();
+    }
+  }
+
+  /**
+  * @return the index being rebuilt into
+  */
+  public Index<Node> getTarget() {
+    return target;
+  }
+
+  /**
+  * @return how the rebuild is going
+  */
+  public State getState() {
+    return state;
+  }
+
+  /**
+  * @return how far the rebuild has got
+  */
+  public Map<String, Object> getProgress() {
+    Map<String, Object> progress = new HashMap<String, Object>();
+    long elapsed = (state == State.RUNNING) ? System.currentTimeMillis() - startMillis : elapsedMillis;
+    progress.put("index_name", indexName);
+    progress.put("source", source);
+    progress.put("target", target.getName());
+    progress.put("state", state.name());
+    progress.put("scanned", scanned.get());
+    progress.put("indexed", indexed.get());
+    progress.put("highest_id", highestId);
+    progress.put("elapsed_ms", elapsed);
+    progress.put("nodes_per_second", (elapsed == 0) ? 0 : scanned.get() * 1000 / elapsed);
+    if (error != null) {
+      progress.put("error", error);
+    }
+    return progress;
+  }
+
+  public void run() {
+    ExecutorService workers = Executors.newFixedThreadPool(request.getThreads());
+    try {
+      if (request.isAllNodes()) {
+        NodeManager nodes = ((GraphDatabaseAPI)db).getDependencyResolver().resolveDependency(NodeManager.class);
+        highestId = nodes.getHighestPossibleIdInUse(Node.class);
+      } else {
+        nodeIds = indexedNodes(db.index().forNodes(source));
+        highestId = nodeIds.length() - 1;
+      }
+      log.info("Rebuilding " + indexName + " from " + source + " into " + target.getName() + ": " + request);
+      for (int i = 0; i < request.getThreads(); i++) {
+        workers.execute(new Worker());
+      }
+      workers.shutdown();
+      while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+        // keep waiting; an interrupt stops the rebuild.
+      }
+      if (error != null) {
+        state = State.FAILED;
+      } else {
+        Lock switching = switchLock(db, indexName).writeLock();
+        switching.lock();
+        try {
+          IndexAliases.switchTo(db, indexName, target.getName());
+          state = State.DONE;
+        } finally {
+          switching.unlock();
+        }
+      }
+    } catch (InterruptedException e) {
+      workers.shutdownNow();
+      state = State.STOPPED;
+    } catch (IOException e) {
+      error = e.getMessage();
+      state = State.FAILED;
+    } catch (RuntimeException e) {
+      workers.shutdownNow();
+      error = e.toString();
+      state = State.FAILED;
+    } finally {
+      elapsedMillis = System.currentTimeMillis() - startMillis;
+      thread = null;
+      log.info("Rebuild of " + indexName + " finished: " + getProgress());
+    }
+  }
+
+  // the ids of the nodes in the index.
+  private static OpenBitSet indexedNodes(Index<Node> index) throws IOException {
+    OpenBitSet ids = new OpenBitSet();
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return ids;
+      }
+      List<IndexReader> segments = new ArrayList<IndexReader>();
+      ReaderUtil.gatherSubReaders(segments, capture.getSearcher().getIndexReader());
+      for (IndexReader segment : segments) {
+        TermEnum terms = segment.terms(new Term(CapturingQuery.DOC_ID_KEY, ""));
+        TermDocs docs = segment.termDocs();
+        try {
+          do {
+            Term id = terms.term();
+            if (id == null || !id.field().equals(CapturingQuery.DOC_ID_KEY)) {
+              break;
+            }
+            // deleted documents don't show up here, so removed nodes aren't brought back.
+            docs.seek(terms);
+            if (docs.next()) {
+              ids.set(Long.parseLong(id.text()));
+            }
+          } while (terms.next());
+        } finally {
+          docs.close();
+          terms.close();
+        }
+      }
+    } finally {
+      capture.release();
+    }
+    return ids;
+  }
+
+  // wait until the workers may scan n more node ids.
+  private void throttle(int n) throws InterruptedException {
+    int rate = request.getMaxNodesPerSecond();
+    if (rate == 0) {
+      return;
+    }
+    long due;
+    synchronized (this) {
+      due = startMillis + permits * 1000 / rate;
+      permits += n;
+    }
+    long wait = due - System.currentTimeMillis();
+    if (wait > 0) {
+      Thread.sleep(wait);
+    }
+  }
+
+  // index the node's properties into the new index, in place of any values written there. returns true if it had any.
+  private boolean index(Node node) {
+    boolean any = false;
+    if (request.isGeo()) {
+      Object lat = node.getProperty(QueryBuilder.LAT_KEY, null);
+      Object lon = node.getProperty(QueryBuilder.LON_KEY, null);
+      if (lat instanceof Number && lon instanceof Number) {
+        target.remove(node, QueryBuilder.LAT_KEY);
+        target.remove(node, QueryBuilder.LON_KEY);
+        target.add(node, QueryBuilder.LAT_KEY, ValueContext.numeric(((Number)lat).doubleValue()));
+        target.add(node, QueryBuilder.LON_KEY, ValueContext.numeric(((Number)lon).doubleValue()));
+        any = true;
+      }
+    }
+    for (Map.Entry<String, NumericType> key : numericKeys.entrySet()) {
+      Object value = node.getProperty(key.getKey(), null);
+      if (value instanceof Number) {
+        Number converted;
+        try {
+          converted = key.getValue().convert((Number)value);
+        } catch (IllegalArgumentException e) {
+          log.warning("Not indexing " + key.getKey() + " of node " + node.getId() + ": " + e.getMessage());
+          continue;
+        }
+        target.remove(node, key.getKey());
+        target.add(node, key.getKey(), ValueContext.numeric(converted));
+        any = true;
+      }
+    }
+    for (String key : request.getTextKeys()) {
+      Object value = node.getProperty(key, null);
+      if (value instanceof String) {
+        target.remove(node, key);
+        target.add(node, key, value);
+        if (ngrams.sizeOf(key) > 0) {
+          target.remove(node, NGramFields.fieldFor(key));
+          NGramFields.addGrams(target, node, key, (String)value, analyzer, ngrams.sizeOf(key));
+        }
+        any = true;
+      }
+    }
+    return any;
+  }
+
+  // claims id ranges until there are none left, indexing each in one transaction.
+  private class Worker implements Runnable {
+    public void run() {
+      int batchSize = request.getBatchSize();
+      try {
+        long from;
+        while (error == null && (from = cursor.getAndAdd(batchSize)) <= highestId) {
+          long to = Math.min(highestId + 1, from + batchSize);
+          throttle((int)(to - from));
+          indexRange(from, to);
+        }
+      } catch (InterruptedException e) {
+        // stopped.
+      } catch (RuntimeException e) {
+        log.log(Level.WARNING, "Rebuild of " + indexName + " failed", e);
+        error = e.toString();
+      }
+    }
+
+    private void indexRange(long from, long to) {
+      long count = 0;
+      Transaction tx = db.beginTx();
+      try {
+        for (long id = from; id < to; id++) {
+          if (nodeIds != null && !nodeIds.get(id)) {
+            continue;
+          }
+          Node node;
+          try {
+            node = db.getNodeById(id);
+          } catch (NotFoundException e) {
+            continue;
+          }
+          if (index(node)) {
+            count++;
+          }
+        }
+        tx.success();
+      } finally {
+        tx.finish();
+      }
+      scanned.addAndGet(to - from);
+      indexed.addAndGet(count);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
+
+/**
+* A decoded body for the /index/rebuild endpoint. Instances are filled in directly by
+* {@link RequestDecoder} as it streams through the request.
+*/
+public class RebuildRequest {
+
+  private final Set<String> receivedParameters = new LinkedHashSet<String>();
+  private final Map<String, String> numericKeys = new LinkedHashMap<String, String>();
+  private final List<String> textKeys = new ArrayList<String>();
+  private final Map<String, String> config = new LinkedHashMap<String, String>();
+  private String indexName = null;
+  private boolean geo = false;
+  private boolean allNodes = false;
+  private int threads = 4;
+  private int batchSize = 10000;
+  private int maxNodesPerSecond = 0;
+
+  /**
+  * @return the name of the index to rebuild, or null if none was given
+  */
+  public String getIndexName() {
+    return indexName;
+  }
+
+  void setIndexName(String indexName) {
+    this.indexName = indexName;
+  }
+
+  /**
+  * @return true if lat and lon properties should be geo indexed
+  */
+  public boolean isGeo() {
+    return geo;
+  }
+
+  void setGeo(boolean geo) {
+    this.geo = geo;
+  }
+
+  /**
+  * @return the numeric properties to index, each with its numeric type, or null to use the
+            type recorded for the key in the index being rebuilt
+  */
+  public Map<String, String> getNumericKeys() {
+    return numericKeys;
+  }
+
+  /**
+  * @return the string properties to index as text
+  */
+  public List<String> getTextKeys() {
+    return textKeys;
+  }
+
+  /**
+  * @return index config to set on the rebuilt index, over what's copied from the old one
+  */
+  public Map<String, String> getConfig() {
+    return config;
+  }
+
+  /**
+  * @return true to index every node with the properties, not just the nodes already in the index
+  */
+  public boolean isAllNodes() {
+    return allNodes;
+  }
+
+  void setAllNodes(boolean allNodes) {
+    this.allNodes = allNodes;
+  }
+
+  /**
+  * @return how many worker threads to scan nodes with. Defaults to 4.
+  */
+  public int getThreads() {
+    return threads;
+  }
+
+  void setThreads(int threads) {
+    this.threads = threads;
+  }
+
+  /**
+  * @return how many node ids each worker scans per transaction. Defaults to 10000.
+  */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+  * @return the most node ids to scan per second across all workers, or 0 for no limit
+  */
+  public int getMaxNodesPerSecond() {
+    return maxNodesPerSecond;
+  }
+
+  void setMaxNodesPerSecond(int maxNodesPerSecond) {
+    this.maxNodesPerSecond = maxNodesPerSecond;
+  }
+
+  /**
+  * @return the names of all non-null top-level parameters, in the order they were read
+  */
+  public Set<String> getReceivedParameters() {
+    return receivedParameters;
+  }
+
+  /**
+  * @param keys The parameters to look for
+  * @return true if every one of {@code keys} was given a non-null value
+  */
+  public boolean hasParameters(String ... keys) {
+    for (String key : keys) {
+      if (!receivedParameters.contains(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void addReceivedParameter(String key) {
+    receivedParameters.add(key);
+  }
+
+  @Override
+  public String toString() {
+    return "{index_name=" + indexName + ", geo=" + geo + ", numeric_keys=" + numericKeys + ", text_keys=" + textKeys
+      + ", config=" + config + ", all_nodes=" + allNodes + ", threads=" + threads + ", batch_size=" + batchSize
+      + ", max_nodes_per_second=" + maxNodesPerSecond + "}";
+  }
+}
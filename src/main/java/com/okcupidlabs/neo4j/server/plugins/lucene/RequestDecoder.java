@@ -0,0 +1,460 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
+
+import org.neo4j.server.rest.repr.BadInputException;
+
+import java.util.logging.*;
+
+/**
+* Decodes request bodies straight off the request stream with a pull parser, in any {@link WireFormat}.
+* <p>Top-level parameters are read into typed request objects as they go by, and query specs
+  are built directly as nested PropertyMaps, so a request is never held as a String or
+  copied out of an intermediate map.</p>
+*/
+public class RequestDecoder {
+
+  private static final Logger log = Logger.getLogger(RequestDecoder.class.getName());
+
+  private RequestDecoder() {} // static methods only
+
+  /**
+  * Decode a /search request body.
+  * @param body The request body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link SearchRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed JSON object,
+            or a required parameter has the wrong type.
+  */
+  public static SearchRequest readSearchRequest(InputStream body) throws BadInputException {
+    return readSearchRequest(body, WireFormat.JSON);
+  }
+
+  /**
+  * Decode a /search request body in the given format.
+  * @param body The request body
+  * @param format The encoding of the body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link SearchRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed object,
+            or a required parameter has the wrong type.
+  */
+  public static SearchRequest readSearchRequest(InputStream body, WireFormat format) throws BadInputException {
+    SearchRequest request = new SearchRequest();
+    JsonParser parser = null;
+    try {
+      parser = openObject(body, format);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        request.addReceivedParameter(key);
+        if (key.equals("index_name")) {
+          // one index, or a list of them to search together.
+          if (token == JsonToken.START_ARRAY) {
+            List<String> indexNames = readStringList(parser, key);
+            if (indexNames.isEmpty()) {
+              throw new BadInputException("index_name must name at least one index");
+            }
+            request.setIndexNames(indexNames);
+          } else {
+            request.setIndexName(readString(parser, key));
+          }
+        } else if (key.equals("score_merge")) {
+          String scoreMerge = readString(parser, key);
+          if (!scoreMerge.equals(SearchRequest.SCORE_MERGE_RAW) && !scoreMerge.equals(SearchRequest.SCORE_MERGE_NORMALIZE)) {
+            throw new BadInputException("score_merge must be " + SearchRequest.SCORE_MERGE_RAW + " or "
+              + SearchRequest.SCORE_MERGE_NORMALIZE + ", but was " + scoreMerge);
+          }
+          request.setScoreMerge(scoreMerge);
+        } else if (key.equals("query_spec")) {
+          if (token != JsonToken.START_OBJECT) {
+            throw new BadInputException("query_spec must be an object, but was " + parser.getText());
+          }
+          request.setQuerySpec(readObject(parser));
+        } else if (key.equals("min_score")) {
+          // optional, so a bad value is ignored rather than refused.
+          if (token.isNumeric()) {
+            request.setMinScore(parser.getFloatValue());
+          } else {
+            log.warning("Ignoring illegal value for min_score: " + parser.getText());
+            parser.skipChildren();
+          }
+        } else if (key.equals(QueryBuilder.LAT_KEY)
+                   || key.equals(QueryBuilder.LON_KEY)
+                   || key.equals(QueryBuilder.DIST_KEY)) {
+          request.getGeoConstraints().put(key, readValue(parser));
+        } else if (key.equals("fields")) {
+          request.setFields(readStringList(parser, key));
+        } else if (key.equals("within_hops")) {
+          if (token != JsonToken.START_OBJECT) {
+            throw new BadInputException("within_hops must be an object, but was " + parser.getText());
+          }
+          request.setWithinHops(checkWithinHops(readObject(parser)));
+        } else if (key.equals("limit")) {
+          if (token != JsonToken.VALUE_NUMBER_INT || parser.getLongValue() < 0 || parser.getLongValue() > Integer.MAX_VALUE) {
+            throw new BadInputException("limit must be a non-negative integer, but was " + parser.getText());
+          }
+          request.setLimit(parser.getIntValue());
+        } else if (key.equals("profile")) {
+          request.setProfile(readBoolean(parser, key));
+        } else if (key.equals("sample")) {
+          request.setSample(readPositiveInt(parser, key));
+        } else if (key.equals("seed")) {
+          if (token != JsonToken.VALUE_NUMBER_INT) {
+            throw new BadInputException("seed must be an integer, but was " + parser.getText());
+          }
+          request.setSeed(parser.getLongValue());
+        } else if (key.equals("priority")) {
+          String priority = readString(parser, key);
+          if (!priority.equals(SearchRequest.PRIORITY_NORMAL) && !priority.equals(SearchRequest.PRIORITY_LOW)) {
+            throw new BadInputException("priority must be " + SearchRequest.PRIORITY_NORMAL + " or "
+              + SearchRequest.PRIORITY_LOW + ", but was " + priority);
+          }
+          request.setPriority(priority);
+        } else if (key.equals("collapse_on")) {
+          request.setCollapseOn(readString(parser, key));
+        } else if (key.equals("cursor")) {
+          request.setCursor(readString(parser, key));
+        } else {
+          log.fine("Skipping unknown search parameter " + key);
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new BadInputException("Failed to decode search request: " + e.getMessage(), e);
+    } finally {
+      close(parser);
+    }
+    return request;
+  }
+
+  /**
+  * Decode a /suggest request body in the given format.
+  * @param body The request body
+  * @param format The encoding of the body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link SuggestRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed object,
+            or a parameter has the wrong type.
+  */
+  public static SuggestRequest readSuggestRequest(InputStream body, WireFormat format) throws BadInputException {
+    SuggestRequest request = new SuggestRequest();
+    JsonParser parser = null;
+    try {
+      parser = openObject(body, format);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        request.addReceivedParameter(key);
+        if (key.equals("index_name")) {
+          request.setIndexName(readString(parser, key));
+        } else if (key.equals("index_key")) {
+          request.setIndexKey(readString(parser, key));
+        } else if (key.equals("prefix")) {
+          request.setPrefix(readString(parser, key));
+        } else if (key.equals("size")) {
+          if (token != JsonToken.VALUE_NUMBER_INT || parser.getIntValue() < 1) {
+            throw new BadInputException("size must be a positive integer, but was " + parser.getText());
+          }
+          request.setSize(parser.getIntValue());
+        } else {
+          log.fine("Skipping unknown suggest parameter " + key);
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new BadInputException("Failed to decode suggest request: " + e.getMessage(), e);
+    } finally {
+      close(parser);
+    }
+    return request;
+  }
+
+  /**
+  * Decode an /index/rebuild request body in the given format.
+  * @param body The request body
+  * @param format The encoding of the body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link RebuildRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed object,
+            or a parameter has the wrong type.
+  */
+  public static RebuildRequest readRebuildRequest(InputStream body, WireFormat format) throws BadInputException {
+    RebuildRequest request = new RebuildRequest();
+    JsonParser parser = null;
+    try {
+      parser = openObject(body, format);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        request.addReceivedParameter(key);
+        if (key.equals("index_name")) {
+          request.setIndexName(readString(parser, key));
+        } else if (key.equals("geo")) {
+          request.setGeo(readBoolean(parser, key));
+        } else if (key.equals("all_nodes")) {
+          request.setAllNodes(readBoolean(parser, key));
+        } else if (key.equals("numeric_keys")) {
+          // either a list of keys, or an object of keys to numeric types.
+          if (token == JsonToken.START_ARRAY) {
+            for (String numericKey : readStringList(parser, key)) {
+              request.getNumericKeys().put(numericKey, null);
+            }
+          } else {
+            request.getNumericKeys().putAll(readStringMap(parser, key));
+          }
+        } else if (key.equals("text_keys")) {
+          request.getTextKeys().addAll(readStringList(parser, key));
+        } else if (key.equals("config")) {
+          request.getConfig().putAll(readStringMap(parser, key));
+        } else if (key.equals("threads")) {
+          request.setThreads(readPositiveInt(parser, key));
+        } else if (key.equals("batch_size")) {
+          request.setBatchSize(readPositiveInt(parser, key));
+        } else if (key.equals("max_nodes_per_second")) {
+          if (token != JsonToken.VALUE_NUMBER_INT || parser.getLongValue() < 0 || parser.getLongValue() > Integer.MAX_VALUE) {
+            throw new BadInputException("max_nodes_per_second must be a non-negative integer, but was " + parser.getText());
+          }
+          request.setMaxNodesPerSecond(parser.getIntValue());
+        } else {
+          log.fine("Skipping unknown rebuild parameter " + key);
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new BadInputException("Failed to decode rebuild request: " + e.getMessage(), e);
+    } finally {
+      close(parser);
+    }
+    return request;
+  }
+
+  /**
+  * Decode a body for one of the /index/* endpoints.
+  * @param body The request body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link IndexRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed JSON object,
+            or a parameter has the wrong type.
+  */
+  public static IndexRequest readIndexRequest(InputStream body) throws BadInputException {
+    return readIndexRequest(body, WireFormat.JSON);
+  }
+
+  /**
+  * Decode a body for one of the /index/* endpoints in the given format.
+  * @param body The request body
+  * @param format The encoding of the body
+  * @return The decoded request. Missing parameters are left unset; check
+            {@link IndexRequest#hasParameters} before using it.
+  * @throws BadInputException if the body is not a well-formed object,
+            or a parameter has the wrong type.
+  */
+  public static IndexRequest readIndexRequest(InputStream body, WireFormat format) throws BadInputException {
+    IndexRequest request = new IndexRequest();
+    JsonParser parser = null;
+    try {
+      parser = openObject(body, format);
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String key = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+        if (token == JsonToken.VALUE_NULL) {
+          continue;
+        }
+        request.addReceivedParameter(key);
+        if (key.equals("index_name")) {
+          request.setIndexName(readString(parser, key));
+        } else if (key.equals("index_key")) {
+          request.setIndexKey(readString(parser, key));
+        } else if (key.equals("index_value")) {
+          request.setIndexValue(readValue(parser));
+        } else if (key.equals("numeric_type")) {
+          request.setNumericType(readString(parser, key));
+        } else if (key.equals("async")) {
+          request.setAsync(readBoolean(parser, key));
+        } else if (key.equals("ngram")) {
+          request.setNgram(readPositiveInt(parser, key));
+        } else if (key.equals("precision_step")) {
+          // neo4j writes every numeric field with the default step, so there's none to pick.
+          throw new BadInputException("precision_step isn't supported: numeric fields are always indexed with precision step "
+            + NumericFields.INDEXED_PRECISION_STEP);
+        } else if (key.equals("node_id")) {
+          if (!token.isNumeric()) {
+            throw new BadInputException("node_id must be a number, but was " + parser.getText());
+          }
+          request.setNodeId(parser.getLongValue());
+        } else if (key.equals(QueryBuilder.LAT_KEY) || key.equals(QueryBuilder.LON_KEY)) {
+          request.getCoords().put(key, readValue(parser));
+        } else {
+          log.fine("Skipping unknown index parameter " + key);
+          parser.skipChildren();
+        }
+      }
+    } catch (IOException e) {
+      throw new BadInputException("Failed to decode index request: " + e.getMessage(), e);
+    } finally {
+      close(parser);
+    }
+    return request;
+  }
+
+  // start parsing, and make sure the body is an object.
+  private static JsonParser openObject(InputStream body, WireFormat format) throws IOException, BadInputException {
+    JsonParser parser = format.getFactory().createJsonParser(body);
+    if (parser.nextToken() != JsonToken.START_OBJECT) {
+      parser.close();
+      throw new BadInputException("Request body must be an object.");
+    }
+    return parser;
+  }
+
+  private static String readString(JsonParser parser, String key) throws IOException, BadInputException {
+    if (parser.getCurrentToken() != JsonToken.VALUE_STRING) {
+      throw new BadInputException(key + " must be a string, but was " + parser.getText());
+    }
+    return parser.getText();
+  }
+
+  private static boolean readBoolean(JsonParser parser, String key) throws IOException, BadInputException {
+    JsonToken token = parser.getCurrentToken();
+    if (token != JsonToken.VALUE_TRUE && token != JsonToken.VALUE_FALSE) {
+      throw new BadInputException(key + " must be true or false, but was " + parser.getText());
+    }
+    return token == JsonToken.VALUE_TRUE;
+  }
+
+  private static List<String> readStringList(JsonParser parser, String key) throws IOException, BadInputException {
+    if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+      throw new BadInputException(key + " must be a list of strings, but was " + parser.getText());
+    }
+    List<String> strings = new ArrayList<String>();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      strings.add(readString(parser, key));
+    }
+    return strings;
+  }
+
+  private static int readPositiveInt(JsonParser parser, String key) throws IOException, BadInputException {
+    if (parser.getCurrentToken() != JsonToken.VALUE_NUMBER_INT || parser.getLongValue() <= 0
+        || parser.getLongValue() > Integer.MAX_VALUE) {
+      throw new BadInputException(key + " must be a positive integer, but was " + parser.getText());
+    }
+    return parser.getIntValue();
+  }
+
+  private static Map<String, String> readStringMap(JsonParser parser, String key) throws IOException, BadInputException {
+    if (parser.getCurrentToken() != JsonToken.START_OBJECT) {
+      throw new BadInputException(key + " must be an object of strings, but was " + parser.getText());
+    }
+    Map<String, String> strings = new LinkedHashMap<String, String>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+      strings.put(name, readString(parser, key + "." + name));
+    }
+    return strings;
+  }
+
+  // within_hops is read as a generic object, so check the types NeighborhoodFilter will cast to.
+  private static PropertyMap<String, Object> checkWithinHops(PropertyMap<String, Object> spec) throws BadInputException {
+    if (spec.get("direction") != null && !(spec.get("direction") instanceof String)) {
+      throw new BadInputException("within_hops direction must be a string, but was " + spec.get("direction"));
+    }
+    Object types = spec.get("relationship_types");
+    if (types != null) {
+      if (!(types instanceof List)) {
+        throw new BadInputException("within_hops relationship_types must be a list of strings, but was " + types);
+      }
+      for (Object type : (List<?>)types) {
+        if (!(type instanceof String)) {
+          throw new BadInputException("within_hops relationship_types must be a list of strings, but has " + type);
+        }
+      }
+    }
+    return spec;
+  }
+
+  // read whatever value the parser is sitting on, building maps and lists as needed.
+  // integers come out as the narrowest of Integer, Long or BigInteger, and other numbers as Double,
+  // like the neo4j input format.
+  private static Object readValue(JsonParser parser) throws IOException {
+    if (parser.getCurrentToken() == null) {
+      throw new IOException("Unexpected end of input");
+    }
+    switch (parser.getCurrentToken()) {
+      case START_OBJECT:
+        return readObject(parser);
+      case START_ARRAY:
+        return readArray(parser);
+      case VALUE_STRING:
+        return parser.getText();
+      case VALUE_NUMBER_INT:
+        switch (parser.getNumberType()) {
+          case INT:
+            return parser.getIntValue();
+          case LONG:
+            return parser.getLongValue();
+          default:
+            return parser.getBigIntegerValue();
+        }
+      case VALUE_NUMBER_FLOAT:
+        return parser.getDoubleValue();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NULL:
+        return null;
+      default:
+        throw new IOException("Unexpected token " + parser.getCurrentToken());
+    }
+  }
+
+  // parser is on START_OBJECT. leaves it on the matching END_OBJECT.
+  private static PropertyMap<String, Object> readObject(JsonParser parser) throws IOException {
+    PropertyMap<String, Object> map = new PropertyMap<String, Object>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String key = parser.getCurrentName();
+      parser.nextToken();
+      map.put(key, readValue(parser));
+    }
+    return map;
+  }
+
+  // parser is on START_ARRAY. leaves it on the matching END_ARRAY.
+  private static List<Object> readArray(JsonParser parser) throws IOException {
+    List<Object> list = new ArrayList<Object>();
+    while (parser.nextToken() != JsonToken.END_ARRAY) {
+      list.add(readValue(parser));
+    }
+    return list;
+  }
+
+  private static void close(JsonParser parser) {
+    if (parser == null) {
+      return;
+    }
+    try {
+      parser.close();
+    } catch (IOException e) {
+      log.fine("Failed to close request parser: " + e.getMessage());
+    }
+  }
+}
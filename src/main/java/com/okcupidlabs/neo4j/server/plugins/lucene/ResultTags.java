@@ -0,0 +1,130 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.kernel.GraphDatabaseAPI;
+import org.neo4j.kernel.impl.nioneo.xa.NeoStoreXaDataSource;
+import org.neo4j.kernel.impl.transaction.XaDataSourceManager;
+import org.neo4j.kernel.impl.transaction.xaframework.XaDataSource;
+
+/**
+* ETags for search results, so callers repeating a search can be told nothing changed
+  without it being run again.
+* <p>A search's results depend on its request, the indexes its names resolve to, the
+  documents in those indexes and the properties of the nodes it returns. The tag hashes the
+  request body and the format it's answered in with the resolved index names and the last
+  committed transaction of the graph store and of the index store, which move on with every
+  write to either. A tag can only match while neither has been written to since, so a
+  matching tag is safe to answer with 304; a write anywhere changes every tag, which costs
+  some re-searching but never a stale answer.</p>
+*/
+public class ResultTags {
+
+  // neo4j's name for the data source lucene indexes are committed through.
+  private static final String INDEX_DATA_SOURCE = "lucene-index";
+
+  private ResultTags() {}
+
+  /**
+  * @param db A database
+  * @return how far the graph and its indexes have been written, or null if that can't be told,
+            in which case nothing should be tagged
+  */
+  public static String generation(GraphDatabaseService db) {
+    if (!(db instanceof GraphDatabaseAPI)) {
+      return null;
+    }
+    XaDataSourceManager sources
+      = ((GraphDatabaseAPI)db).getDependencyResolver().resolveDependency(XaDataSourceManager.class);
+    XaDataSource graph = sources.getXaDataSource(NeoStoreXaDataSource.DEFAULT_DATA_SOURCE_NAME);
+    XaDataSource indexes = sources.getXaDataSource(INDEX_DATA_SOURCE);
+    if (graph == null) {
+      return null;
+    }
+    // no index has been written to yet if there's no index data source.
+    return graph.getLastCommittedTxId() + "." + (indexes == null ? 0 : indexes.getLastCommittedTxId());
+  }
+
+  /**
+  * Hash a request body as it's decoded, so it needn't be held on to for {@link #tag}.
+  * @param body The request body
+  * @return the body, hashed as it's read. Closing it reads and hashes whatever wasn't read, so
+            the hash covers the whole body, and can be done more than once.
+  */
+  public static DigestInputStream digesting(InputStream body) {
+    try {
+      return new DigestInputStream(body, MessageDigest.getInstance("MD5")) {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+          if (!closed) {
+            closed = true;
+            byte[] rest = new byte[512];
+            while (read(rest, 0, rest.length) != -1) {
+              // hashed as it's read.
+            }
+            super.close();
+          }
+        }
+      };
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("No MD5 support", e);
+    }
+  }
+
+  /**
+  * @param body The request body, from {@link #digesting}, once closed
+  * @param format The format the results are written in
+  * @param indexNames The indexes the request's index names resolve to
+  * @param generation The database's generation, from {@link #generation}
+  * @return a weak ETag: the same results can go out compressed or not, so their bytes differ
+  */
+  public static String tag(DigestInputStream body, WireFormat format, List<String> indexNames, String generation) {
+    MessageDigest digest = body.getMessageDigest();
+    digest.update(utf8("\n" + format + "\n" + indexNames + "\n" + generation));
+    StringBuilder tag = new StringBuilder("W/\"");
+    for (byte b : digest.digest()) {
+      tag.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return tag.append('"').toString();
+  }
+
+  /**
+  * @param ifNoneMatch An If-None-Match header, which may be null
+  * @param tag The current tag
+  * @return true if the header names the tag, or is *. Tags are compared weakly, as they are for GETs.
+  */
+  public static boolean matches(String ifNoneMatch, String tag) {
+    if (ifNoneMatch == null || tag == null) {
+      return false;
+    }
+    String opaque = opaque(tag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaque(candidate).equals(opaque)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaque(String tag) {
+    return tag.startsWith("W/") ? tag.substring(2) : tag;
+  }
+
+  private static byte[] utf8(String s) {
+    try {
+      return s.getBytes("UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("No UTF-8 support", e);
+    }
+  }
+}
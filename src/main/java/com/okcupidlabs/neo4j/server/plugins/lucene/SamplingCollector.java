@@ -0,0 +1,91 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+
+/**
+* Picks a uniformly random sample of the documents a query matches, in one pass.
+* <p>This is reservoir sampling: the first n matches fill the sample, and each later match
+  replaces a random one of them with probability n over the number of matches seen so far.
+  Documents aren't scored unless there's a min score to check, so a sample of a broad query
+  costs little more than reading its postings. With the same seed and the same index, the
+  same sample comes back.</p>
+*/
+public class SamplingCollector extends Collector {
+
+  private final ScoreDoc[] reservoir;
+  private final Random random;
+  private final float minScore;
+  private Scorer scorer;
+  private int docBase;
+  private int hits = 0;
+
+  /**
+  * @param size The most documents to pick
+  * @param random Where to get randomness from
+  * @param minScore The least score a match needs to be picked, or 0 to pick without scoring
+  */
+  public SamplingCollector(int size, Random random, float minScore) {
+    this.reservoir = new ScoreDoc[size];
+    this.random = random;
+    this.minScore = minScore;
+  }
+
+  @Override
+  public void setScorer(Scorer scorer) {
+    this.scorer = scorer;
+  }
+
+  @Override
+  public void setNextReader(IndexReader reader, int docBase) {
+    this.docBase = docBase;
+  }
+
+  @Override
+  public void collect(int doc) throws IOException {
+    float score = 0;
+    if (minScore > 0) {
+      score = scorer.score();
+      if (score < minScore) {
+        return;
+      }
+    }
+    int slot = (hits < reservoir.length) ? hits : random.nextInt(hits + 1);
+    hits++;
+    if (slot < reservoir.length) {
+      reservoir[slot] = new ScoreDoc(docBase + doc, score);
+    }
+  }
+
+  @Override
+  public boolean acceptsDocsOutOfOrder() {
+    // order would change which documents a seed picks, so keep it stable.
+    return false;
+  }
+
+  /**
+  * @return how many matches the sample was picked from
+  */
+  public int getHitCount() {
+    return hits;
+  }
+
+  /**
+  * @return the picked documents, in random order. Scores are 0 unless there was a min score.
+  */
+  public List<ScoreDoc> sample() {
+    List<ScoreDoc> sample = new ArrayList<ScoreDoc>(Arrays.asList(reservoir).subList(0, Math.min(hits, reservoir.length)));
+    // the first matches fill the reservoir in index order; shuffle so that doesn't show.
+    Collections.shuffle(sample, random);
+    return sample;
+  }
+}
@@ -0,0 +1,102 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+* Runs a search over several indexes at once, and merges their hits.
+* <p>Each index is searched on a shared pool of daemon threads, with its own analyzer and
+  numeric types. Lucene scores from different indexes aren't comparable, since each index
+  weighs terms by its own document frequencies and document count, and neo4j searches each
+  index on its own, so they can't share those statistics. Merging either takes scores as they
+  are, which is only fair between indexes with similar content, or scales each index's scores
+  so its best hit scores 1. Scaling doesn't make them comparable either: every index's best
+  hit ties at the top, however good or poor a match it is, so a single weak hit from one
+  index outranks strong hits from the rest. It suits indexes that each answer a different
+  facet of a search, where showing each one's best matters more than ranking across them.</p>
+*/
+public class ScatterGather {
+
+  private static ExecutorService pool = null;
+
+  // best first; ties go to the lower node id, so merged results are stable.
+  private static final Comparator<ScoredNode> BEST_FIRST = new Comparator<ScoredNode>() {
+    public int compare(ScoredNode a, ScoredNode b) {
+      int byScore = Float.compare(b.getScore(), a.getScore());
+      return (byScore != 0) ? byScore : (a.getNode().getId() < b.getNode().getId() ? -1
+                                         : (a.getNode().getId() == b.getNode().getId() ? 0 : 1));
+    }
+  };
+
+  private ScatterGather() {}
+
+  /**
+  * @param settings Where to find how many threads to search with, if the pool isn't started yet
+  * @return the pool to search indexes on
+  */
+  public static synchronized ExecutorService pool(SearchSettings settings) {
+    if (pool == null) {
+      final AtomicInteger threads = new AtomicInteger(0);
+      pool = Executors.newFixedThreadPool(Math.max(1, settings.getSearchThreads()), new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "lucene-search-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return pool;
+  }
+
+  /**
+  * Merge the hits from several indexes into one list, best first. A node found in more than
+    one index is kept once, with its best score, and so is the best hit of each collapsed value.
+  * @param hits Each index's hits
+  * @param limit The most hits to keep, or 0 to keep them all
+  * @param normalize true to scale each index's scores so its best hit scores 1 first. The
+            scaled scores still aren't comparable across indexes; see above.
+  * @return the merged hits
+  */
+  static List<ScoredNode> merge(List<List<ScoredNode>> hits, int limit, boolean normalize) {
+    Map<Long, ScoredNode> best = new HashMap<Long, ScoredNode>();
+    for (List<ScoredNode> indexHits : hits) {
+      float scale = 1;
+      if (normalize) {
+        float max = 0;
+        for (ScoredNode hit : indexHits) {
+          max = Math.max(max, hit.getScore());
+        }
+        scale = (max > 0) ? 1 / max : 1;
+      }
+      for (ScoredNode hit : indexHits) {
+        ScoredNode scaled = (scale == 1) ? hit : new ScoredNode(hit.getNode(), hit.getScore() * scale, hit.getGroup());
+        ScoredNode seen = best.get(hit.getNode().getId());
+        if (seen == null || seen.getScore() < scaled.getScore()) {
+          best.put(hit.getNode().getId(), scaled);
+        }
+      }
+    }
+    List<ScoredNode> merged = new ArrayList<ScoredNode>(best.values());
+    Collections.sort(merged, BEST_FIRST);
+    // each index collapsed its own hits; collapse again across them, keeping the first, best hit.
+    Set<String> groups = new HashSet<String>();
+    for (Iterator<ScoredNode> it = merged.iterator(); it.hasNext(); ) {
+      String group = it.next().getGroup();
+      if (group != null && !groups.add(group)) {
+        it.remove();
+      }
+    }
+    return (limit > 0 && merged.size() > limit) ? new ArrayList<ScoredNode>(merged.subList(0, limit)) : merged;
+  }
+}
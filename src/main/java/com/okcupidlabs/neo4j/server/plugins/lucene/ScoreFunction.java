@@ -0,0 +1,254 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.util.Bits;
+
+/**
+* A function of one numeric index field, used by {@link FunctionScoreQuery} to adjust scores.
+* <p>Function specs look like one of
+   <code><blockquote>
+   {"type": "FIELD_VALUE_FACTOR", "index_key": $FIELD, "factor": $FACTOR, "modifier": "(NONE|LOG1P|SQRT)"}<br>
+   {"type": "DECAY", "index_key": $FIELD, "origin": $ORIGIN, "scale": $SCALE, "offset": $OFFSET, "decay": $DECAY}<br>
+   {"type": "LINEAR", "index_key": $FIELD, "factor": $FACTOR, "offset": $OFFSET, "min": $MIN, "max": $MAX}<br>
+   </blockquote></code>
+  where everything but type, index_key and a DECAY's scale is optional. Any of them may also give
+  a "missing" value to use for documents without the field; otherwise those documents are left
+  alone by the function.</p>
+* <p>Field values are read per segment from the field cache, so the field must have been
+  indexed numerically, with /index/numeric. They're read as the numeric type recorded for the
+  key, or as doubles if there is none.</p>
+*/
+public abstract class ScoreFunction {
+
+  /** The kinds of function there are. */
+  public enum Type {
+    FIELD_VALUE_FACTOR, DECAY, LINEAR
+  }
+
+  /** What to do to a field value before multiplying it by a FIELD_VALUE_FACTOR's factor. */
+  public enum Modifier {
+    NONE, LOG1P, SQRT
+  }
+
+  private final String field;
+  private final Double missing;
+  private NumericType numericType = NumericType.DOUBLE;
+
+  protected ScoreFunction(String field, Double missing) {
+    this.field = field;
+    this.missing = missing;
+  }
+
+  /**
+  * Build a function from a spec like those above.
+  * @param spec The function spec
+  * @return the function
+  * @throws IllegalArgumentException if the spec is not a valid function
+  */
+  public static ScoreFunction fromSpec(PropertyMap<String, Object> spec) throws IllegalArgumentException {
+    return fromSpec(spec, null);
+  }
+
+  /**
+  * Build a function from a spec like those above, for a field of the recorded numeric type.
+  * @param spec The function spec
+  * @param numerics The numeric types of the index's keys, or null if they are all doubles
+  * @return the function
+  * @throws IllegalArgumentException if the spec is not a valid function
+  */
+  public static ScoreFunction fromSpec(PropertyMap<String, Object> spec, NumericFields numerics)
+      throws IllegalArgumentException
+  {
+    ScoreFunction function = fromSpecOfDoubles(spec);
+    if (numerics != null) {
+      function.numericType = numerics.typeOf(function.getField());
+    }
+    return function;
+  }
+
+  private static ScoreFunction fromSpecOfDoubles(PropertyMap<String, Object> spec) throws IllegalArgumentException {
+    Type type;
+    try {
+      type = Enum.valueOf(Type.class, (String)spec.get("type"));
+    } catch (NullPointerException npe) {
+      throw new IllegalArgumentException("Score function " + spec + " has no type");
+    }
+    String field = (String)spec.get("index_key");
+    if (field == null) {
+      throw new IllegalArgumentException("Score function " + spec + " has no index_key");
+    }
+    Double missing = spec.get("missing") != null ? spec.getDouble("missing") : null;
+    switch (type) {
+      case FIELD_VALUE_FACTOR:
+        Modifier modifier = Modifier.NONE;
+        if (spec.get("modifier") != null) {
+          try {
+            modifier = Enum.valueOf(Modifier.class, (String)spec.get("modifier"));
+          } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Field value factor modifier must be NONE|LOG1P|SQRT, but was " + spec.get("modifier"));
+          }
+        }
+        return new FieldValueFactor(field, missing, getDouble(spec, "factor", 1), modifier);
+      case DECAY:
+        double scale = spec.getDouble("scale");
+        double decay = getDouble(spec, "decay", 0.5);
+        if (scale <= 0 || decay <= 0 || decay >= 1) {
+          throw new IllegalArgumentException("Decay function needs a positive scale and a decay between 0 and 1: " + spec);
+        }
+        return new Decay(field, missing, getDouble(spec, "origin", System.currentTimeMillis()),
+                         scale, getDouble(spec, "offset", 0), decay);
+      case LINEAR:
+        return new Linear(field, missing, getDouble(spec, "factor", 1), getDouble(spec, "offset", 0),
+                          getDouble(spec, "min", Double.NEGATIVE_INFINITY),
+                          getDouble(spec, "max", Double.POSITIVE_INFINITY));
+      default:
+        throw new IllegalArgumentException("Unsupported score function type: " + type.name());
+    }
+  }
+
+  private static double getDouble(PropertyMap<String, Object> spec, String key, double defaultValue) {
+    return spec.get(key) == null ? defaultValue : spec.getDouble(key);
+  }
+
+  public String getField() {
+    return field;
+  }
+
+  /**
+  * @param value A field value
+  * @return the function of that value
+  */
+  public abstract double apply(double value);
+
+  /**
+  * Read this function's field for one index segment.
+  * @param reader A segment reader
+  * @return the field values for every document in the segment
+  * @throws IOException if the field cache can't be filled
+  */
+  public SegmentValues forSegment(IndexReader reader) throws IOException {
+    NumericType.Values values = numericType.read(reader, field);
+    return new SegmentValues(values, FieldCache.DEFAULT.getDocsWithField(reader, field));
+  }
+
+  /**
+  * One segment's worth of a function's field values.
+  */
+  public class SegmentValues {
+    private final NumericType.Values values;
+    private final Bits docsWithField;
+
+    SegmentValues(NumericType.Values values, Bits docsWithField) {
+      this.values = values;
+      this.docsWithField = docsWithField;
+    }
+
+    /**
+    * @param doc A document in the segment
+    * @return true if the function has a value for the document
+    */
+    public boolean has(int doc) {
+      return missing != null || docsWithField.get(doc);
+    }
+
+    /**
+    * @param doc A document in the segment for which {@link #has} is true
+    * @return the function of the document's field value, or of the missing value
+    */
+    public double apply(int doc) {
+      return ScoreFunction.this.apply(docsWithField.get(doc) ? values.get(doc) : missing);
+    }
+
+    /**
+    * @param doc A document in the segment
+    * @return the field value the function sees for the document, or null if it has none
+    */
+    public Double valueOf(int doc) {
+      return docsWithField.get(doc) ? Double.valueOf(values.get(doc)) : missing;
+    }
+  }
+
+  protected String missingString() {
+    return missing == null ? "" : ", missing=" + missing;
+  }
+
+  static class FieldValueFactor extends ScoreFunction {
+    private final double factor;
+    private final Modifier modifier;
+
+    FieldValueFactor(String field, Double missing, double factor, Modifier modifier) {
+      super(field, missing);
+      this.factor = factor;
+      this.modifier = modifier;
+    }
+
+    @Override
+    public double apply(double value) {
+      switch (modifier) {
+        case LOG1P:
+          return factor * Math.log10(1 + Math.max(0, value));
+        case SQRT:
+          return factor * Math.sqrt(Math.max(0, value));
+        default:
+          return factor * value;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "field_value_factor(" + getField() + ", factor=" + factor + ", modifier=" + modifier + missingString() + ")";
+    }
+  }
+
+  static class Decay extends ScoreFunction {
+    private final double origin;
+    private final double offset;
+    private final double lambda; // so that apply(origin +- (offset + scale)) == decay
+
+    Decay(String field, Double missing, double origin, double scale, double offset, double decay) {
+      super(field, missing);
+      this.origin = origin;
+      this.offset = offset;
+      this.lambda = Math.log(decay) / scale;
+    }
+
+    @Override
+    public double apply(double value) {
+      double distance = Math.max(0, Math.abs(value - origin) - offset);
+      return Math.exp(lambda * distance);
+    }
+
+    @Override
+    public String toString() {
+      return "exp_decay(" + getField() + ", origin=" + origin + ", offset=" + offset + ", lambda=" + lambda + missingString() + ")";
+    }
+  }
+
+  static class Linear extends ScoreFunction {
+    private final double factor;
+    private final double offset;
+    private final double min;
+    private final double max;
+
+    Linear(String field, Double missing, double factor, double offset, double min, double max) {
+      super(field, missing);
+      this.factor = factor;
+      this.offset = offset;
+      this.min = min;
+      this.max = max;
+    }
+
+    @Override
+    public double apply(double value) {
+      return Math.min(max, Math.max(min, factor * value + offset));
+    }
+
+    @Override
+    public String toString() {
+      return "linear(" + getField() + ", factor=" + factor + ", offset=" + offset + ", min=" + min + ", max=" + max + missingString() + ")";
+    }
+  }
+}
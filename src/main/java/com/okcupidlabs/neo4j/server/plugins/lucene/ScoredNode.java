@@ -0,0 +1,37 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import org.neo4j.graphdb.Node;
+
+/**
+* A search hit: a node and the score it got for the query.
+*/
+class ScoredNode {
+  private Node node;
+  private float score;
+  private String group;
+  
+  public Node getNode() {
+    return node;
+  }
+  
+  public float getScore() {
+    return score;
+  }
+
+  /**
+  * @return the value of the key the search collapsed on, or null if it didn't collapse or the hit had none
+  */
+  public String getGroup() {
+    return group;
+  }
+
+  ScoredNode(Node n, float s) {
+    this(n, s, null);
+  }
+
+  ScoredNode(Node n, float s, String group) {
+    this.node = n;
+    this.score = s;
+    this.group = group;
+  }
+}
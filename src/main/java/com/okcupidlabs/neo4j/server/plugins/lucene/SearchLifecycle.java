@@ -0,0 +1,51 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import org.apache.commons.configuration.Configuration;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+
+/**
+* Started by the server along with the extension's endpoints (it's listed in
+  META-INF/services), to do the things that belong to the server's lifetime rather than
+  to any one request.
+*/
+public class SearchLifecycle implements PluginLifecycle {
+
+  private GraphDatabaseService db = null;
+  private Warmup warmup = null;
+  private IndexSnapshots snapshots = null;
+
+  public Collection<Injectable<?>> start(GraphDatabaseService db, Configuration config) {
+    this.db = db;
+    SearchSettings settings = new SearchSettings(config);
+    Coordinates.forDatabase(db).setOffHeap(settings.isCoordinatesOffHeap());
+    if (settings.isWarmupEnabled()) {
+      warmup = Warmup.start(db, settings);
+    }
+    if (!settings.getSnapshotIndexes().isEmpty()) {
+      snapshots = IndexSnapshots.start(db, settings);
+    }
+    return Collections.emptyList();
+  }
+
+  public void stop() {
+    if (warmup != null) {
+      warmup.stop();
+    }
+    if (snapshots != null) {
+      snapshots.stop();
+    }
+    if (db != null) {
+      RebuildJob.stopAll(db);
+      WriteQueue queue = WriteQueue.forDatabase(db);
+      if (queue != null) {
+        queue.stop();
+      }
+    }
+  }
+}
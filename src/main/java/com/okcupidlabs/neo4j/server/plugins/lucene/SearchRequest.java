@@ -0,0 +1,245 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.util.List;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+/**
+* A decoded body for the /search endpoint. Instances are filled in directly by
+* {@link RequestDecoder} as it streams through the request.
+*/
+public class SearchRequest {
+
+  /** Merge hits from several indexes by their scores as they are. */
+  public static final String SCORE_MERGE_RAW = "raw";
+  /** Merge hits from several indexes after scaling each index's scores so its best hit scores 1. */
+  public static final String SCORE_MERGE_NORMALIZE = "normalize";
+  /** Search the live index. */
+  public static final String PRIORITY_NORMAL = "normal";
+  /** Search a snapshot of the index if there is one, out of the way of writes. See {@link IndexSnapshots}. */
+  public static final String PRIORITY_LOW = "low";
+
+  private final Set<String> receivedParameters = new LinkedHashSet<String>();
+  private final PropertyMap<String, Object> geoConstraints = new PropertyMap<String, Object>();
+  private String indexName = null;
+  private List<String> indexNames = Collections.emptyList();
+  private String scoreMerge = SCORE_MERGE_RAW;
+  private PropertyMap<String, Object> querySpec = null;
+  private float minScore = 0;
+  private List<String> fields = Collections.emptyList();
+  private boolean profile = false;
+  private int limit = 0;
+  private PropertyMap<String, Object> withinHops = null;
+  private String cursor = null;
+  private String collapseOn = null;
+  private int sample = 0;
+  private Long seed = null;
+  private String priority = PRIORITY_NORMAL;
+
+  /**
+  * @return the name of the node index to search, the first of them if several were given,
+            or null if none was given
+  */
+  public String getIndexName() {
+    return indexName;
+  }
+
+  void setIndexName(String indexName) {
+    setIndexNames(Collections.singletonList(indexName));
+  }
+
+  /**
+  * @return the names of the node indexes to search. Empty if none were given.
+  */
+  public List<String> getIndexNames() {
+    return indexNames;
+  }
+
+  void setIndexNames(List<String> indexNames) {
+    this.indexNames = indexNames;
+    this.indexName = indexNames.isEmpty() ? null : indexNames.get(0);
+  }
+
+  /**
+  * @return how to merge hits from several indexes: {@link #SCORE_MERGE_RAW} or {@link #SCORE_MERGE_NORMALIZE}
+  */
+  public String getScoreMerge() {
+    return scoreMerge;
+  }
+
+  void setScoreMerge(String scoreMerge) {
+    this.scoreMerge = scoreMerge;
+  }
+
+  /**
+  * @return the (possibly nested) query spec to hand to {@link QueryBuilder}, or null if none was given
+  */
+  public PropertyMap<String, Object> getQuerySpec() {
+    return querySpec;
+  }
+
+  void setQuerySpec(PropertyMap<String, Object> querySpec) {
+    this.querySpec = querySpec;
+  }
+
+  /**
+  * @return the minimum score a hit needs to be returned. 0 for no limit.
+  */
+  public float getMinScore() {
+    return minScore;
+  }
+
+  void setMinScore(float minScore) {
+    this.minScore = minScore;
+  }
+
+  /**
+  * @return the node properties to project into a lean response. Empty if none were asked for.
+  */
+  public List<String> getFields() {
+    return fields;
+  }
+
+  void setFields(List<String> fields) {
+    this.fields = fields;
+  }
+
+  /**
+  * @return the most hits to look at, best first. 0 for no limit.
+  */
+  public int getLimit() {
+    return limit;
+  }
+
+  void setLimit(int limit) {
+    this.limit = limit;
+  }
+
+  /**
+  * @return true if the caller wants a timing breakdown of each part of the query along with the hits
+  */
+  public boolean isProfile() {
+    return profile;
+  }
+
+  void setProfile(boolean profile) {
+    this.profile = profile;
+  }
+
+  /**
+  * @return the graph neighborhood to restrict hits to, as described in {@link NeighborhoodFilter},
+            or null if the search isn't restricted.
+  */
+  public PropertyMap<String, Object> getWithinHops() {
+    return withinHops;
+  }
+
+  void setWithinHops(PropertyMap<String, Object> withinHops) {
+    this.withinHops = withinHops;
+  }
+
+  /**
+  * @return the index key to keep only the best hit of each value of, or null to keep every hit
+  */
+  public String getCollapseOn() {
+    return collapseOn;
+  }
+
+  void setCollapseOn(String collapseOn) {
+    this.collapseOn = collapseOn;
+  }
+
+  /**
+  * @return how many matches to pick at random instead of returning the best ones. 0 to not sample.
+  */
+  public int getSample() {
+    return sample;
+  }
+
+  void setSample(int sample) {
+    this.sample = sample;
+  }
+
+  /**
+  * @return the seed to sample with, so the same sample can be had again, or null for a different one each time
+  */
+  public Long getSeed() {
+    return seed;
+  }
+
+  void setSeed(Long seed) {
+    this.seed = seed;
+  }
+
+  /**
+  * @return {@link #PRIORITY_NORMAL} or {@link #PRIORITY_LOW}
+  */
+  public String getPriority() {
+    return priority;
+  }
+
+  void setPriority(String priority) {
+    this.priority = priority;
+  }
+
+  /**
+  * @return true if the search may be answered from a snapshot
+  */
+  public boolean isLowPriority() {
+    return PRIORITY_LOW.equals(priority);
+  }
+
+  /**
+  * @return for /export, the node id to carry on after, or null to start from the beginning
+  */
+  public String getCursor() {
+    return cursor;
+  }
+
+  void setCursor(String cursor) {
+    this.cursor = cursor;
+  }
+
+  /**
+  * @return whatever lat, lon and dist values were given at the top level of the request.
+            These are not validated; use {@link PropertyMap#getSearchRadius} for that.
+  */
+  public PropertyMap<String, Object> getGeoConstraints() {
+    return geoConstraints;
+  }
+
+  /**
+  * @return the names of all non-null top-level parameters, in the order they were read
+  */
+  public Set<String> getReceivedParameters() {
+    return receivedParameters;
+  }
+
+  /**
+  * @param keys The parameters to look for
+  * @return true if every one of {@code keys} was given a non-null value
+  */
+  public boolean hasParameters(String ... keys) {
+    for (String key : keys) {
+      if (!receivedParameters.contains(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void addReceivedParameter(String key) {
+    receivedParameters.add(key);
+  }
+
+  @Override
+  public String toString() {
+    return "{index_name=" + (indexNames.size() > 1 ? indexNames.toString() : indexName)
+      + (indexNames.size() > 1 ? ", score_merge=" + scoreMerge : "") + ", min_score=" + minScore
+      + ", geo=" + geoConstraints + ", fields=" + fields + ", limit=" + limit + ", profile=" + profile + ", within_hops=" + withinHops
+      + (collapseOn != null ? ", collapse_on=" + collapseOn : "") + (sample > 0 ? ", sample=" + sample + ", seed=" + seed : "")
+      + (isLowPriority() ? ", priority=" + priority : "")
+      + ", query_spec=" + querySpec + "}";
+  }
+}
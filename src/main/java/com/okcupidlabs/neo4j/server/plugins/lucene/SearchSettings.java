@@ -0,0 +1,152 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.List;
+import java.util.ArrayList;
+
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+
+/**
+* Typed access to the plugin's settings in neo4j-server.properties.
+* <p>All keys live under {@value #PREFIX}, e.g.
+  <code>com.okcupidlabs.lucene_search.slow_query_threshold_ms=250</code></p>
+*/
+public class SearchSettings {
+
+  public static final String PREFIX = "com.okcupidlabs.lucene_search.";
+
+  /** Searches taking at least this long are written to the slow query log. Negative to disable. */
+  public static final String SLOW_QUERY_THRESHOLD_MS = PREFIX + "slow_query_threshold_ms";
+  /** A java.util.logging.FileHandler pattern for the slow query log files. */
+  public static final String SLOW_QUERY_LOG = PREFIX + "slow_query_log";
+  /** Roll the slow query log over after this many bytes. */
+  public static final String SLOW_QUERY_LOG_LIMIT_BYTES = PREFIX + "slow_query_log_limit_bytes";
+  /** Keep this many rolled-over slow query logs. */
+  public static final String SLOW_QUERY_LOG_COUNT = PREFIX + "slow_query_log_count";
+  /** Whether to keep the coordinate tables used for radius checks outside the heap. */
+  public static final String COORDINATES_OFF_HEAP = PREFIX + "coordinates_off_heap";
+  /** Whether to warm up indexes and field caches when the server starts. */
+  public static final String WARMUP_ENABLED = PREFIX + "warmup_enabled";
+  /** A file of /search bodies, one per line, to replay during warm-up. */
+  public static final String WARMUP_QUERIES = PREFIX + "warmup_queries";
+  /** How many times to replay the warm-up queries. */
+  public static final String WARMUP_ROUNDS = PREFIX + "warmup_rounds";
+
+  /** Whether /index/numeric and /index/geo queue writes by default, rather than committing each one. */
+  public static final String WRITE_BEHIND = PREFIX + "write_behind";
+  /** The most queued writes to commit in one transaction. */
+  public static final String WRITE_BEHIND_BATCH_SIZE = PREFIX + "write_behind_batch_size";
+  /** Commit queued writes at least this often. */
+  public static final String WRITE_BEHIND_FLUSH_MS = PREFIX + "write_behind_flush_ms";
+  /** The most writes to queue; once it's full, writers wait for the queue to drain. */
+  public static final String WRITE_BEHIND_CAPACITY = PREFIX + "write_behind_capacity";
+
+  /** Threads for searching several indexes at once. Defaults to the number of processors. */
+  public static final String SEARCH_THREADS = PREFIX + "search_threads";
+
+  /** Whether identical searches running at the same time share one execution. */
+  public static final String SINGLE_FLIGHT = PREFIX + "single_flight";
+
+  /** Compress /search and /export responses of at least this many bytes for callers that accept it. Negative to disable. */
+  public static final String COMPRESSION_MIN_BYTES = PREFIX + "compression_min_bytes";
+
+  /** Node indexes, or aliases, to keep read-only snapshots of for low-priority searches. None by default. */
+  public static final String SNAPSHOT_INDEXES = PREFIX + "snapshot_indexes";
+  /** Where to write index snapshots. Anything already there is deleted when the server starts. */
+  public static final String SNAPSHOT_DIR = PREFIX + "snapshot_dir";
+  /** How long to wait between snapshots of each index. An hour by default, since each one rewrites the whole index. */
+  public static final String SNAPSHOT_INTERVAL_MS = PREFIX + "snapshot_interval_ms";
+
+  private final Configuration config;
+
+  /**
+  * @param config The server configuration. May be null, in which case every setting has its default.
+  */
+  public SearchSettings(Configuration config) {
+    this.config = config == null ? new BaseConfiguration() : config;
+  }
+
+  public long getSlowQueryThresholdMillis() {
+    return config.getLong(SLOW_QUERY_THRESHOLD_MS, -1);
+  }
+
+  public String getSlowQueryLogPattern() {
+    return config.getString(SLOW_QUERY_LOG, "data/log/lucene-search-slow-queries.%g.log");
+  }
+
+  public int getSlowQueryLogLimitBytes() {
+    return config.getInt(SLOW_QUERY_LOG_LIMIT_BYTES, 10 * 1024 * 1024);
+  }
+
+  public int getSlowQueryLogCount() {
+    return config.getInt(SLOW_QUERY_LOG_COUNT, 5);
+  }
+
+  public boolean isWarmupEnabled() {
+    return config.getBoolean(WARMUP_ENABLED, true);
+  }
+
+  /**
+  * @return the warm-up query file, or null if there isn't one
+  */
+  public String getWarmupQueries() {
+    return config.getString(WARMUP_QUERIES, null);
+  }
+
+  public int getWarmupRounds() {
+    return config.getInt(WARMUP_ROUNDS, 1);
+  }
+
+  public boolean isCoordinatesOffHeap() {
+    return config.getBoolean(COORDINATES_OFF_HEAP, false);
+  }
+
+  public boolean isWriteBehind() {
+    return config.getBoolean(WRITE_BEHIND, false);
+  }
+
+  public int getWriteBehindBatchSize() {
+    return config.getInt(WRITE_BEHIND_BATCH_SIZE, 1000);
+  }
+
+  public long getWriteBehindFlushMillis() {
+    return config.getLong(WRITE_BEHIND_FLUSH_MS, 200);
+  }
+
+  public int getWriteBehindCapacity() {
+    return config.getInt(WRITE_BEHIND_CAPACITY, 100000);
+  }
+
+  public int getSearchThreads() {
+    return config.getInt(SEARCH_THREADS, Runtime.getRuntime().availableProcessors());
+  }
+
+  public boolean isSingleFlight() {
+    return config.getBoolean(SINGLE_FLIGHT, true);
+  }
+
+  /**
+  * @return the indexes to snapshot, empty if there are none
+  */
+  public List<String> getSnapshotIndexes() {
+    List<String> indexes = new ArrayList<String>();
+    for (String index : config.getStringArray(SNAPSHOT_INDEXES)) {
+      if (index.trim().length() > 0) {
+        indexes.add(index.trim());
+      }
+    }
+    return indexes;
+  }
+
+  public String getSnapshotDir() {
+    return config.getString(SNAPSHOT_DIR, "data/lucene-search-snapshots");
+  }
+
+  public long getSnapshotIntervalMillis() {
+    return config.getLong(SNAPSHOT_INTERVAL_MS, 60 * 60 * 1000);
+  }
+
+  public int getCompressionMinBytes() {
+    return config.getInt(COMPRESSION_MIN_BYTES, 1024);
+  }
+}
@@ -0,0 +1,97 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.Query;
+
+/**
+* Records what happened during a single search: how long each stage took, the query that
+  was built, and how many hits it matched. Not thread safe; one per request.
+*/
+public class SearchTrace {
+
+  private final long startNanos;
+  private long lastMarkNanos;
+  private final Map<String, Long> stageNanos = new LinkedHashMap<String, Long>();
+  private Query query = null;
+  private int hitCount = -1;
+  private Explanation topHitExplanation = null;
+  private QueryProfile profile = null;
+
+  public SearchTrace() {
+    this.startNanos = System.nanoTime();
+    this.lastMarkNanos = startNanos;
+  }
+
+  /**
+  * End the current stage, charging it with all time since the last mark.
+  * @param stage A name for the stage that just finished
+  */
+  public void mark(String stage) {
+    long now = System.nanoTime();
+    Long previous = stageNanos.get(stage);
+    stageNanos.put(stage, (previous == null ? 0 : previous) + (now - lastMarkNanos));
+    lastMarkNanos = now;
+  }
+
+  /**
+  * @return time spent in each marked stage, in milliseconds, in the order the stages first finished
+  */
+  public Map<String, Double> getStageMillis() {
+    Map<String, Double> millis = new LinkedHashMap<String, Double>();
+    for (Map.Entry<String, Long> stage : stageNanos.entrySet()) {
+      millis.put(stage.getKey(), stage.getValue() / 1e6);
+    }
+    return millis;
+  }
+
+  /**
+  * @return milliseconds since this trace was started
+  */
+  public long getElapsedMillis() {
+    return (System.nanoTime() - startNanos) / 1000000;
+  }
+
+  public Query getQuery() {
+    return query;
+  }
+
+  void setQuery(Query query) {
+    this.query = query;
+  }
+
+  /**
+  * @return the number of documents the query matched, or -1 if it never ran
+  */
+  public int getHitCount() {
+    return hitCount;
+  }
+
+  void setHitCount(int hitCount) {
+    this.hitCount = hitCount;
+  }
+
+  /**
+  * @return how the top hit was scored, if anyone asked for it. Otherwise null.
+  */
+  public Explanation getTopHitExplanation() {
+    return topHitExplanation;
+  }
+
+  void setTopHitExplanation(Explanation explanation) {
+    this.topHitExplanation = explanation;
+  }
+
+  /**
+  * @return the per-clause profile of the search, if one was asked for. Otherwise null.
+  */
+  public QueryProfile getProfile() {
+    return profile;
+  }
+
+  void setProfile(QueryProfile profile) {
+    this.profile = profile;
+  }
+}
@@ -0,0 +1,194 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+import java.io.IOException;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.TermQuery;
+
+/**
+* Finds nodes like a given node, from the terms it was indexed with.
+* <p>When the query is rewritten against an index, the node's indexed values for the given keys
+  are read back from its document and analyzed, and each term is weighed by how often it occurs
+  in them and how rare it is in the index. The most distinctive terms become a query of
+  optional clauses, boosted by weight. Terms only the node itself has can't match anything
+  else, so they're left out, and so is the node.</p>
+* <p>The terms picked for a node are cached with the reader they were picked from. Their weights
+  depend on document frequencies across the whole index, not just the node's own document,
+  and neo4j opens a new reader after every write to the index, so caching by reader means a
+  write invalidates every entry, and terms are never weighed by statistics that have since
+  changed. Entries for old readers go when the readers are collected, and each reader keeps
+  only its most recently used nodes.</p>
+*/
+public class SimilarNodeQuery extends Query {
+
+  /** How many terms to pick if the spec doesn't say. */
+  public static final int DEFAULT_MAX_TERMS = 25;
+  // the most nodes to cache terms for with one reader.
+  private static final int MAX_CACHED_PER_READER = 10000;
+
+  // reader -> "doc keys max_terms" -> picked terms. weak, so old readers drop out.
+  private static final Map<Object, Map<String, List<WeightedTerm>>> cache
+    = new WeakHashMap<Object, Map<String, List<WeightedTerm>>>();
+
+  private final long nodeId;
+  private final List<String> keys;
+  private final int maxTerms;
+  private final Analyzer analyzer;
+
+  /**
+  * @param nodeId The node to find others like
+  * @param keys The index keys to compare
+  * @param maxTerms The most terms to search for
+  * @param analyzer The analyzer the keys were indexed with
+  */
+  public SimilarNodeQuery(long nodeId, List<String> keys, int maxTerms, Analyzer analyzer) {
+    this.nodeId = nodeId;
+    this.keys = keys;
+    this.maxTerms = maxTerms;
+    this.analyzer = analyzer;
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    BooleanQuery query = new BooleanQuery();
+    int doc = findDocument(reader);
+    if (doc >= 0) {
+      for (WeightedTerm term : termsFor(reader, doc)) {
+        TermQuery clause = new TermQuery(term.term);
+        clause.setBoost(term.weight);
+        query.add(clause, BooleanClause.Occur.SHOULD);
+      }
+      query.add(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, String.valueOf(nodeId))), BooleanClause.Occur.MUST_NOT);
+    }
+    query.setBoost(getBoost());
+    return query;
+  }
+
+  private int findDocument(IndexReader reader) throws IOException {
+    TermDocs docs = reader.termDocs(new Term(CapturingQuery.DOC_ID_KEY, String.valueOf(nodeId)));
+    try {
+      return docs.next() ? docs.doc() : -1;
+    } finally {
+      docs.close();
+    }
+  }
+
+  private List<WeightedTerm> termsFor(IndexReader reader, int doc) throws IOException {
+    // the whole index's reader, which any write replaces, deletions included.
+    Object key = reader;
+    String cacheKey = doc + " " + keys + " " + maxTerms;
+    synchronized (cache) {
+      Map<String, List<WeightedTerm>> cached = cache.get(key);
+      List<WeightedTerm> terms = (cached == null) ? null : cached.get(cacheKey);
+      if (terms != null) {
+        return terms;
+      }
+    }
+    List<WeightedTerm> terms = pickTerms(reader, doc);
+    synchronized (cache) {
+      Map<String, List<WeightedTerm>> cached = cache.get(key);
+      if (cached == null) {
+        // access ordered, so the least recently used node goes first.
+        cached = new LinkedHashMap<String, List<WeightedTerm>>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, List<WeightedTerm>> eldest) {
+            return size() > MAX_CACHED_PER_READER;
+          }
+        };
+        cache.put(key, cached);
+      }
+      cached.put(cacheKey, terms);
+    }
+    return terms;
+  }
+
+  // weigh each of the document's terms by tf * idf, and keep the heaviest.
+  private List<WeightedTerm> pickTerms(IndexReader reader, int doc) throws IOException {
+    Document document = reader.document(doc, new MapFieldSelector(keys));
+    Map<Term, Integer> termFreqs = new HashMap<Term, Integer>();
+    for (String key : keys) {
+      for (String value : document.getValues(key)) {
+        for (Term term : QueryBuilder.extractTerms(analyzer, key, value)) {
+          Integer freq = termFreqs.get(term);
+          termFreqs.put(term, (freq == null) ? 1 : freq + 1);
+        }
+      }
+    }
+    Similarity similarity = Similarity.getDefault();
+    int numDocs = reader.numDocs();
+    List<WeightedTerm> weighted = new ArrayList<WeightedTerm>();
+    for (Map.Entry<Term, Integer> entry : termFreqs.entrySet()) {
+      int docFreq = reader.docFreq(entry.getKey());
+      if (docFreq > 1) {
+        weighted.add(new WeightedTerm(entry.getKey(), entry.getValue() * similarity.idf(docFreq, numDocs)));
+      }
+    }
+    Collections.sort(weighted, WeightedTerm.HEAVIEST_FIRST);
+    if (weighted.size() > maxTerms) {
+      weighted = new ArrayList<WeightedTerm>(weighted.subList(0, maxTerms));
+    }
+    // boost relative to the heaviest, so weights don't depend on the size of the index.
+    if (!weighted.isEmpty()) {
+      float heaviest = weighted.get(0).weight;
+      for (WeightedTerm term : weighted) {
+        term.weight /= heaviest;
+      }
+    }
+    return Collections.unmodifiableList(weighted);
+  }
+
+  @Override
+  public String toString(String field) {
+    return "like(" + nodeId + ", " + keys + ", max_terms=" + maxTerms + ")" + (getBoost() != 1 ? "^" + getBoost() : "");
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof SimilarNodeQuery)) {
+      return false;
+    }
+    SimilarNodeQuery other = (SimilarNodeQuery)o;
+    return nodeId == other.nodeId && keys.equals(other.keys) && maxTerms == other.maxTerms
+      && analyzer == other.analyzer && getBoost() == other.getBoost();
+  }
+
+  @Override
+  public int hashCode() {
+    return (int)(nodeId ^ (nodeId >>> 32)) ^ keys.hashCode() ^ (31 * maxTerms) ^ Float.floatToIntBits(getBoost());
+  }
+
+  private static class WeightedTerm {
+    // heaviest first; ties go in term order, so the same terms are picked every time.
+    static final Comparator<WeightedTerm> HEAVIEST_FIRST = new Comparator<WeightedTerm>() {
+      public int compare(WeightedTerm a, WeightedTerm b) {
+        int byWeight = Float.compare(b.weight, a.weight);
+        return (byWeight != 0) ? byWeight : a.term.compareTo(b.term);
+      }
+    };
+
+    final Term term;
+    float weight;
+
+    WeightedTerm(Term term, float weight) {
+      this.term = term;
+      this.weight = weight;
+    }
+  }
+}
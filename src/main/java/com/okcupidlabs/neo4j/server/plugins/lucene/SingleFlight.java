@@ -0,0 +1,80 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Shares one execution of a piece of work among every caller that asks for the same key while
+  it's running.
+* <p>The first caller for a key runs the work in its own thread; callers that arrive before it
+  finishes wait for it and get the same result, or the same exception. Nothing is cached: once
+  the work is done, the next caller for the key runs it again. Results are shared, so they
+  must not be modified.</p>
+*/
+public class SingleFlight<K, V> {
+
+  private final ConcurrentMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+  private final AtomicLong executions = new AtomicLong(0);
+  private final AtomicLong shared = new AtomicLong(0);
+
+  /**
+  * Run the work, or wait for the run of it already in flight for the key.
+  * @param key What identifies the work
+  * @param work The work
+  * @return the work's result
+  * @throws RuntimeException whatever unchecked exception the work threw
+  * @throws InterruptedException if interrupted while waiting for another caller's run
+  */
+  public V run(K key, Callable<V> work) throws InterruptedException {
+    FutureTask<V> task = new FutureTask<V>(work);
+    FutureTask<V> running = inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      executions.incrementAndGet();
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      running = task;
+    } else {
+      shared.incrementAndGet();
+    }
+    try {
+      return running.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error)e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  /**
+  * @param key What identifies the work
+  * @return true if the work for the key is running
+  */
+  public boolean isInFlight(K key) {
+    return inFlight.containsKey(key);
+  }
+
+  /**
+  * @return how many times work has been run
+  */
+  public long getExecutions() {
+    return executions.get();
+  }
+
+  /**
+  * @return how many callers got the result of someone else's run
+  */
+  public long getShared() {
+    return shared.get();
+  }
+}
@@ -0,0 +1,171 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.Date;
+import java.util.TreeMap;
+import java.util.ArrayList;
+import java.io.IOException;
+
+import java.util.logging.*;
+
+/**
+* Writes searches that took longer than a configured threshold to a dedicated, rotating log.
+* <p>Each entry has the query spec with its keys sorted, the shape of the query spec (its types,
+  keys and occurs values, with the search terms blanked out so similar queries line up), the
+  lucene query that was built from it, how many documents it matched, how long each stage
+  took, and the scoring explanation of the top hit.</p>
+*/
+public class SlowQueryLog {
+
+  // the dedicated log. doesn't go to the console unless the file can't be opened.
+  private static final Logger slowLog = Logger.getLogger(SlowQueryLog.class.getName());
+  private static final Logger log = Logger.getLogger(LuceneSearch.class.getName());
+  // spec keys whose values describe the shape of a query rather than what it's looking for.
+  private static final String[] SHAPE_KEYS = {"type", "occurs", "index_key"};
+
+  private static String installedPattern = null;
+  private static Handler installedHandler = null;
+
+  private final long thresholdMillis;
+
+  /**
+  * @param settings Where to find the threshold and log file settings
+  */
+  public SlowQueryLog(SearchSettings settings) {
+    this.thresholdMillis = settings.getSlowQueryThresholdMillis();
+    if (isEnabled()) {
+      install(settings);
+    }
+  }
+
+  /**
+  * @return true if any searches will be logged
+  */
+  public boolean isEnabled() {
+    return thresholdMillis >= 0;
+  }
+
+  /**
+  * @param trace A search in progress or just finished
+  * @return true if the search has taken long enough to be logged
+  */
+  public boolean isSlow(SearchTrace trace) {
+    return isEnabled() && trace.getElapsedMillis() >= thresholdMillis;
+  }
+
+  /**
+  * Write an entry for a slow search.
+  * @param request The search request
+  * @param trace What happened while running it
+  */
+  public void record(SearchRequest request, SearchTrace trace) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("slow search: ").append(trace.getElapsedMillis()).append("ms")
+      .append(" index=").append(request.getIndexNames().size() > 1 ? request.getIndexNames() : request.getIndexName())
+      .append(" hits=").append(trace.getHitCount()).append("\n");
+    sb.append("  stages (ms): ").append(trace.getStageMillis()).append("\n");
+    sb.append("  shape: ").append(shape(request.getQuerySpec())).append("\n");
+    sb.append("  query_spec: ").append(normalize(request.getQuerySpec())).append("\n");
+    if (!request.getGeoConstraints().isEmpty()) {
+      sb.append("  geo: ").append(normalize(request.getGeoConstraints())).append("\n");
+    }
+    sb.append("  lucene query: ").append(trace.getQuery()).append("\n");
+    if (trace.getProfile() != null) {
+      sb.append("  profile: ").append(trace.getProfile()).append("\n");
+    }
+    if (trace.getTopHitExplanation() != null) {
+      sb.append("  top hit: ").append(trace.getTopHitExplanation().toString().replace("\n", "\n    "));
+    }
+    slowLog.warning(sb.toString().trim());
+  }
+
+  /**
+  * @param spec A query spec, or any part of one
+  * @return the spec with all map keys in sorted order, so equal specs print equally
+  */
+  static Object normalize(Object spec) {
+    if (spec instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<String, Object>();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>)spec).entrySet()) {
+        sorted.put(String.valueOf(entry.getKey()), normalize(entry.getValue()));
+      }
+      return sorted;
+    }
+    if (spec instanceof List) {
+      List<Object> normalized = new ArrayList<Object>();
+      for (Object item : (List<?>)spec) {
+        normalized.add(normalize(item));
+      }
+      return normalized;
+    }
+    return spec;
+  }
+
+  /**
+  * @param spec A query spec, or any part of one
+  * @return the normalized spec, with every value that isn't part of its shape replaced by "?"
+  */
+  static Object shape(Object spec) {
+    if (spec instanceof Map) {
+      Map<String, Object> sorted = new TreeMap<String, Object>();
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>)spec).entrySet()) {
+        String key = String.valueOf(entry.getKey());
+        Object value = entry.getValue();
+        if (isShapeKey(key) || value instanceof Map || value instanceof List) {
+          sorted.put(key, shape(value));
+        } else {
+          sorted.put(key, "?");
+        }
+      }
+      return sorted;
+    }
+    if (spec instanceof List) {
+      List<Object> shaped = new ArrayList<Object>();
+      for (Object item : (List<?>)spec) {
+        shaped.add(shape(item));
+      }
+      return shaped;
+    }
+    return spec;
+  }
+
+  private static boolean isShapeKey(String key) {
+    for (String shapeKey : SHAPE_KEYS) {
+      if (shapeKey.equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // point the dedicated log at the configured files, once per pattern.
+  private static synchronized void install(SearchSettings settings) {
+    String pattern = settings.getSlowQueryLogPattern();
+    if (pattern.equals(installedPattern)) {
+      return;
+    }
+    if (installedHandler != null) {
+      slowLog.removeHandler(installedHandler);
+      installedHandler.close();
+      installedHandler = null;
+    }
+    installedPattern = pattern;
+    try {
+      FileHandler handler = new FileHandler(pattern, settings.getSlowQueryLogLimitBytes(),
+                                            settings.getSlowQueryLogCount(), true);
+      handler.setFormatter(new Formatter() {
+        @Override
+        public String format(LogRecord record) {
+          return new Date(record.getMillis()) + " " + record.getMessage() + "\n";
+        }
+      });
+      slowLog.addHandler(handler);
+      slowLog.setUseParentHandlers(false);
+      installedHandler = handler;
+    } catch (IOException e) {
+      log.warning("Can't open slow query log " + pattern + ": " + e.getMessage() + ". Logging slow queries to the console instead.");
+      slowLog.setUseParentHandlers(true);
+    }
+  }
+}
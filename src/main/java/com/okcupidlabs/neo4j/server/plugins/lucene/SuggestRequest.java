@@ -0,0 +1,90 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Set;
+import java.util.LinkedHashSet;
+
+/**
+* A decoded body for the /suggest endpoint. Instances are filled in directly by
+* {@link RequestDecoder} as it streams through the request.
+*/
+public class SuggestRequest {
+
+  private final Set<String> receivedParameters = new LinkedHashSet<String>();
+  private String indexName = null;
+  private String indexKey = null;
+  private String prefix = null;
+  private int size = 10;
+
+  /**
+  * @return the name of the node index whose terms are suggested, or null if none was given
+  */
+  public String getIndexName() {
+    return indexName;
+  }
+
+  void setIndexName(String indexName) {
+    this.indexName = indexName;
+  }
+
+  /**
+  * @return the index key whose terms are suggested, or null if none was given
+  */
+  public String getIndexKey() {
+    return indexKey;
+  }
+
+  void setIndexKey(String indexKey) {
+    this.indexKey = indexKey;
+  }
+
+  /**
+  * @return what the user has typed so far, or null if none was given
+  */
+  public String getPrefix() {
+    return prefix;
+  }
+
+  void setPrefix(String prefix) {
+    this.prefix = prefix;
+  }
+
+  /**
+  * @return the most completions to return. Defaults to 10.
+  */
+  public int getSize() {
+    return size;
+  }
+
+  void setSize(int size) {
+    this.size = size;
+  }
+
+  /**
+  * @return the names of all non-null top-level parameters, in the order they were read
+  */
+  public Set<String> getReceivedParameters() {
+    return receivedParameters;
+  }
+
+  /**
+  * @param keys The parameters to look for
+  * @return true if every one of {@code keys} was given a non-null value
+  */
+  public boolean hasParameters(String ... keys) {
+    for (String key : keys) {
+      if (!receivedParameters.contains(key)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  void addReceivedParameter(String key) {
+    receivedParameters.add(key);
+  }
+
+  @Override
+  public String toString() {
+    return "{index_name=" + indexName + ", index_key=" + indexKey + ", prefix=" + prefix + ", size=" + size + "}";
+  }
+}
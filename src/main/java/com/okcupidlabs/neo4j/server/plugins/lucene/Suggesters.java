@@ -0,0 +1,235 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.SortedMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.TermQuery;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+
+import java.util.logging.*;
+
+/**
+* The prefix suggesters for one database, one per index and key.
+* <p>A suggester is built the first time it's asked for, from the terms neo4j's index holds
+  for the key, weighted by how many documents have them. Terms indexed through this plugin
+  afterwards are added to a small overlay, which is folded into a rebuilt table once it gets
+  big, so suggestions stay current without going back to the index.</p>
+* <p>Building a suggester and adding terms to it take the same lock for its key, so terms
+  written while it's being built wait and go into its overlay rather than being dropped. A
+  write committed just before the build read the index may then be counted twice, which
+  only makes its term a little heavier than it should be.</p>
+*/
+public class Suggesters {
+
+  private static final Logger log = Logger.getLogger(Suggesters.class.getName());
+  private static final Map<GraphDatabaseService, Suggesters> registry = new WeakHashMap<GraphDatabaseService, Suggesters>();
+  // fold the overlay into the table when it has this many terms, or a tenth as many as the table.
+  private static final int MIN_OVERLAY_TERMS = 1024;
+
+  private final ConcurrentMap<String, Live> suggesters = new ConcurrentHashMap<String, Live>();
+  // one per key, held while its suggester is built, added to or forgotten.
+  private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+  private Suggesters() {}
+
+  /**
+  * @param db A database
+  * @return the suggesters for that database
+  */
+  public static synchronized Suggesters forDatabase(GraphDatabaseService db) {
+    Suggesters suggesters = registry.get(db);
+    if (suggesters == null) {
+      suggesters = new Suggesters();
+      registry.put(db, suggesters);
+    }
+    return suggesters;
+  }
+
+  /**
+  * Get the suggester for an index key, building it from the index if there isn't one yet.
+  * @param index The index
+  * @param indexName The index's name
+  * @param key The key whose terms should be suggested
+  * @return the suggester
+  * @throws IOException if the index's terms can't be read
+  */
+  public Live get(Index<Node> index, String indexName, String key) throws IOException {
+    String id = id(indexName, key);
+    Live live = suggesters.get(id);
+    if (live != null) {
+      return live;
+    }
+    synchronized (lockFor(id)) {
+      live = suggesters.get(id);
+      if (live == null) {
+        long start = System.currentTimeMillis();
+        live = new Live(readTerms(index, key));
+        suggesters.put(id, live);
+        log.info("Built suggester for " + indexName + "." + key + " with " + live.size() + " terms in "
+          + (System.currentTimeMillis() - start) + "ms");
+      }
+      return live;
+    }
+  }
+
+  /**
+  * Count newly indexed terms in the suggester for an index key, if there is one.
+  * @param indexName The index's name
+  * @param key The key the terms were indexed under
+  * @param terms The terms indexed for one node. Repeats are counted once.
+  */
+  public void added(String indexName, String key, List<String> terms) {
+    String id = id(indexName, key);
+    synchronized (lockFor(id)) {
+      Live live = suggesters.get(id);
+      if (live != null) {
+        live.add(new HashSet<String>(terms));
+      }
+    }
+  }
+
+  /**
+  * Forget the suggester for an index key, so it's rebuilt from the index when next asked for.
+  * @param indexName The index's name
+  * @param key The key
+  */
+  public void invalidate(String indexName, String key) {
+    String id = id(indexName, key);
+    synchronized (lockFor(id)) {
+      suggesters.remove(id);
+    }
+  }
+
+  /**
+  * Forget every suggester for an index.
+  * @param indexName The index's name
+  */
+  public void invalidate(String indexName) {
+    for (String id : suggesters.keySet()) {
+      if (id.startsWith(id(indexName, ""))) {
+        synchronized (lockFor(id)) {
+          suggesters.remove(id);
+        }
+      }
+    }
+  }
+
+  private Object lockFor(String id) {
+    Object lock = locks.get(id);
+    if (lock == null) {
+      Object fresh = new Object();
+      lock = locks.putIfAbsent(id, fresh);
+      if (lock == null) {
+        lock = fresh;
+      }
+    }
+    return lock;
+  }
+
+  private static String id(String indexName, String key) {
+    return indexName + "\u0000" + key;
+  }
+
+  // every term in the index's dictionary for key, weighted by document frequency.
+  private static PrefixSuggester readTerms(Index<Node> index, String key) throws IOException {
+    // neo4j won't give us its reader, but it'll hand it to a query.
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(key, "")));
+    try {
+      index.query(capture).close();
+      if (capture.getSearcher() == null) {
+        return PrefixSuggester.EMPTY;
+      }
+      IndexReader reader = capture.getSearcher().getIndexReader();
+      SortedMap<String, Long> weights = new TreeMap<String, Long>();
+      TermEnum terms = reader.terms(new Term(key, ""));
+      try {
+        do {
+          Term term = terms.term();
+          if (term == null || !term.field().equals(key)) {
+            break;
+          }
+          weights.put(term.text(), (long)terms.docFreq());
+        } while (terms.next());
+      } finally {
+        terms.close();
+      }
+      return PrefixSuggester.build(weights);
+    } finally {
+      capture.release();
+    }
+  }
+
+  /**
+  * A suggester that can take new terms: a {@link PrefixSuggester} plus an overlay of what's
+    been added since it was built.
+  */
+  public static class Live {
+    private volatile PrefixSuggester table;
+    private final SortedMap<String, Long> overlay = new TreeMap<String, Long>();
+
+    Live(PrefixSuggester table) {
+      this.table = table;
+    }
+
+    public synchronized int size() {
+      return table.size() + overlay.size();
+    }
+
+    synchronized void add(Iterable<String> terms) {
+      for (String term : terms) {
+        Long previous = overlay.get(term);
+        overlay.put(term, (previous == null ? 0 : previous) + 1);
+      }
+      if (overlay.size() >= Math.max(MIN_OVERLAY_TERMS, table.size() / 10)) {
+        SortedMap<String, Long> merged = new TreeMap<String, Long>(overlay);
+        table.addTo(merged);
+        table = PrefixSuggester.build(merged);
+        overlay.clear();
+      }
+    }
+
+    /**
+    * @param prefix What the user has typed so far
+    * @param n The most completions to return
+    * @return the heaviest terms starting with prefix, heaviest first
+    */
+    public List<PrefixSuggester.Suggestion> complete(String prefix, int n) {
+      PrefixSuggester current;
+      SortedMap<String, Long> added;
+      synchronized (this) {
+        current = table;
+        if (overlay.isEmpty()) {
+          return current.complete(prefix, n);
+        }
+        added = new TreeMap<String, Long>(overlay.subMap(prefix, prefix + Character.MAX_VALUE));
+      }
+      // the table's best, less any the overlay changes, plus the overlay's terms with their new weights.
+      List<PrefixSuggester.Suggestion> suggestions = new ArrayList<PrefixSuggester.Suggestion>();
+      for (PrefixSuggester.Suggestion suggestion : current.complete(prefix, n + added.size())) {
+        if (!added.containsKey(suggestion.getTerm())) {
+          suggestions.add(suggestion);
+        }
+      }
+      for (Map.Entry<String, Long> entry : added.entrySet()) {
+        suggestions.add(new PrefixSuggester.Suggestion(entry.getKey(), current.weightOf(entry.getKey()) + entry.getValue()));
+      }
+      Collections.sort(suggestions);
+      return suggestions.size() > n ? new ArrayList<PrefixSuggester.Suggestion>(suggestions.subList(0, n)) : suggestions;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.WeakHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.ByteArrayInputStream;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.ReaderUtil;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.server.rest.repr.BadInputException;
+
+import java.util.logging.*;
+
+/**
+* Gets a database's indexes ready to search after the server starts, so the first searches
+  aren't many times slower than the rest.
+* <p>Warming up opens a searcher on every node index, loads the field caches GEO searches
+  and score functions read (lat and lon, and every key with a recorded numeric type) for each
+  segment, and the coordinate tables of indexes with coordinates. Then it replays a file of
+  /search bodies, one per line, through the same code as real searches so the JIT has
+  compiled it by the time they arrive. Blank lines and lines starting with # are skipped.</p>
+* <p>Until it's done, /ready answers 503, so a load balancer can hold traffic back.</p>
+*/
+public class Warmup implements Runnable {
+
+  private static final Logger log = Logger.getLogger(Warmup.class.getName());
+  private static final Map<GraphDatabaseService, Warmup> registry = new WeakHashMap<GraphDatabaseService, Warmup>();
+
+  private final GraphDatabaseService db;
+  private final SearchSettings settings;
+  private volatile boolean ready = false;
+  private volatile Thread thread = null;
+  private volatile long startMillis = 0;
+  private volatile long elapsedMillis = 0;
+  private volatile int indexes = 0;
+  private volatile int fieldCaches = 0;
+  private volatile int queries = 0;
+  private volatile int failed = 0;
+
+  Warmup(GraphDatabaseService db, SearchSettings settings) {
+    this.db = db;
+    this.settings = settings;
+  }
+
+  /**
+  * Register a warm-up for a database, replacing any earlier one. It isn't run until asked.
+  * @param db A database
+  * @param settings Where to find the warm-up settings
+  * @return the warm-up
+  */
+  public static synchronized Warmup register(GraphDatabaseService db, SearchSettings settings) {
+    Warmup warmup = new Warmup(db, settings);
+    registry.put(db, warmup);
+    return warmup;
+  }
+
+  /**
+  * @param db A database
+  * @return the database's warm-up, or null if it doesn't have one
+  */
+  public static synchronized Warmup forDatabase(GraphDatabaseService db) {
+    return registry.get(db);
+  }
+
+  /**
+  * Register a warm-up for a database and run it in the background.
+  * @param db A database
+  * @param settings Where to find the warm-up settings
+  * @return the running warm-up
+  */
+  public static Warmup start(GraphDatabaseService db, SearchSettings settings) {
+    Warmup warmup = register(db, settings);
+    Thread thread = new Thread(warmup, "lucene-search-warmup");
+    thread.setDaemon(true);
+    warmup.thread = thread;
+    thread.start();
+    return warmup;
+  }
+
+  /**
+  * Stop a background warm-up early. It counts as done, so /ready stops holding traffic back.
+  */
+  public void stop() {
+    Thread running = thread;
+    if (running != null) {
+      running.interrupt();
+    }
+  }
+
+  /**
+  * @return true once warm-up has finished, however it went
+  */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+  * @return what warm-up has done so far
+  */
+  public Map<String, Object> getStatus() {
+    Map<String, Object> status = new HashMap<String, Object>();
+    status.put("ready", ready);
+    status.put("elapsed_ms", ready ? elapsedMillis : (startMillis == 0 ? 0 : System.currentTimeMillis() - startMillis));
+    status.put("indexes", indexes);
+    status.put("field_caches", fieldCaches);
+    status.put("queries", queries);
+    status.put("failed_queries", failed);
+    return status;
+  }
+
+  public void run() {
+    startMillis = System.currentTimeMillis();
+    try {
+      for (String indexName : db.index().nodeIndexNames()) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        warmIndex(indexName);
+      }
+      replay();
+    } finally {
+      elapsedMillis = System.currentTimeMillis() - startMillis;
+      ready = true;
+      thread = null;
+      log.info("Warm-up finished in " + elapsedMillis + "ms: " + getStatus());
+    }
+  }
+
+  // open a searcher on the index and fill the field caches searches will want from it.
+  private void warmIndex(String indexName) {
+    Index<Node> index = db.index().forNodes(indexName);
+    List<String> keys = new ArrayList<String>();
+    keys.add(QueryBuilder.LAT_KEY);
+    keys.add(QueryBuilder.LON_KEY);
+    NumericFields numerics = NumericFields.forIndex(db, index);
+    keys.addAll(numerics.keys());
+    CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+    try {
+      index.query(capture).close();
+      indexes++;
+      if (capture.getSearcher() == null) {
+        return;
+      }
+      List<IndexReader> segments = new ArrayList<IndexReader>();
+      ReaderUtil.gatherSubReaders(segments, capture.getSearcher().getIndexReader());
+      boolean hasCoordinates = false;
+      for (IndexReader segment : segments) {
+        hasCoordinates |= segment.getFieldNames(IndexReader.FieldOption.INDEXED).contains(QueryBuilder.LAT_KEY);
+        for (String key : keys) {
+          if (!segment.getFieldNames(IndexReader.FieldOption.INDEXED).contains(key)) {
+            continue;
+          }
+          if (numerics.keys().contains(key)) {
+            numerics.typeOf(key).read(segment, key);
+            FieldCache.DEFAULT.getDocsWithField(segment, key);
+          } else {
+            // exactly the cache entry LatLongDistanceFilter asks for.
+            FieldCache.DEFAULT.getDoubles(segment, key);
+          }
+          fieldCaches++;
+        }
+      }
+      if (hasCoordinates) {
+        Coordinates.forDatabase(db).get(index, indexName);
+      }
+    } catch (IOException e) {
+      log.warning("Failed to warm up index " + indexName + ": " + e.getMessage());
+    } catch (RuntimeException e) {
+      log.warning("Failed to warm up index " + indexName + ": " + e);
+    } finally {
+      capture.release();
+    }
+  }
+
+  // run the warm-up queries, if there are any.
+  private void replay() {
+    String path = settings.getWarmupQueries();
+    if (path == null) {
+      return;
+    }
+    List<String> bodies;
+    try {
+      bodies = readQueries(new File(path));
+    } catch (IOException e) {
+      log.warning("Failed to read warm-up queries from " + path + ": " + e.getMessage());
+      return;
+    }
+    // nothing is rendered, so the search needs no output format, and warm-up searches stay out of the slow query log.
+    LuceneSearch search = new LuceneSearch(null, null, null, db);
+    for (int round = 0; round < settings.getWarmupRounds(); round++) {
+      for (String body : bodies) {
+        if (Thread.currentThread().isInterrupted()) {
+          return;
+        }
+        try {
+          SearchRequest request = RequestDecoder.readSearchRequest(new ByteArrayInputStream(body.getBytes("UTF-8")));
+          search.run(request);
+          queries++;
+        } catch (BadInputException e) {
+          failed++;
+          log.warning("Skipping bad warm-up query " + body + ": " + e.getMessage());
+        } catch (IOException e) {
+          failed++;
+          log.warning("Skipping bad warm-up query " + body + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+          failed++;
+          log.warning("Warm-up query " + body + " failed: " + e);
+        }
+      }
+    }
+  }
+
+  private static List<String> readQueries(File file) throws IOException {
+    List<String> bodies = new ArrayList<String>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.length() > 0 && !line.startsWith("#")) {
+          bodies.add(line);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return bodies;
+  }
+}
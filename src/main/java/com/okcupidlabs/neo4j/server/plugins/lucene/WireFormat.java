@@ -0,0 +1,85 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import javax.ws.rs.core.MediaType;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.smile.SmileFactory;
+
+/**
+* The encodings the plugin can read requests from and write responses to.
+* <p>JSON is the default. SMILE is Jackson's binary JSON, which carries the same structure
+  as JSON and so goes through the same decoder, but skips text encoding of numbers and
+  back-references repeated keys.</p>
+*/
+public enum WireFormat {
+  JSON(MediaType.APPLICATION_JSON, new JsonFactory()),
+  SMILE("application/x-jackson-smile", new SmileFactory());
+
+  private final String mediaType;
+  private final JsonFactory factory;
+
+  private WireFormat(String mediaType, JsonFactory factory) {
+    this.mediaType = mediaType;
+    this.factory = factory;
+  }
+
+  /**
+  * @return the media type to put on responses in this format
+  */
+  public String getMediaType() {
+    return mediaType;
+  }
+
+  /**
+  * @return a thread-safe factory for parsers and generators of this format
+  */
+  public JsonFactory getFactory() {
+    return factory;
+  }
+
+  /**
+  * Pick the format of a request body from its Content-Type.
+  * @param contentType The Content-Type header, which may be null
+  * @return SMILE if the body is declared as smile, JSON otherwise
+  */
+  public static WireFormat forContentType(String contentType) {
+    if (contentType != null && contentType.toLowerCase().startsWith(SMILE.mediaType)) {
+      return SMILE;
+    }
+    return JSON;
+  }
+
+  /**
+  * Pick a response format from an Accept header. Any mention of smile wins, since
+    callers only ask for it when they can read it, unless it's given a q of 0.
+  * @param accept The Accept header, which may be null
+  * @return SMILE if the caller accepts smile, JSON otherwise
+  */
+  public static WireFormat forAccept(String accept) {
+    if (accept == null) {
+      return JSON;
+    }
+    for (String range : accept.toLowerCase().split(",")) {
+      String[] parts = range.split(";");
+      if (parts[0].trim().equals(SMILE.mediaType) && !isRefused(parts)) {
+        return SMILE;
+      }
+    }
+    return JSON;
+  }
+
+  // a media range with q=0 is one the caller won't take.
+  private static boolean isRefused(String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String param = parts[i].trim();
+      if (param.startsWith("q=")) {
+        try {
+          return Float.parseFloat(param.substring(2)) == 0;
+        } catch (NumberFormatException e) {
+          return false;
+        }
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,457 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.util.Map;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.AbstractMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+
+import java.util.logging.*;
+
+/**
+* Write-behind for numeric and geo index writes, which arrive in bursts for the same nodes.
+* <p>A queued write replaces any write still queued for the same index, node and key, so only
+  the last of a burst is committed. A background writer commits queued writes in batches, one
+  transaction each, once there are a batch's worth or the oldest has waited long enough.
+  Index names are resolved when the writes are committed, so writes follow an index that's
+  rebuilt while they wait, and reach the index being rebuilt too.</p>
+* <p>Writes committed straight away, like removals, {@link #cancel} whatever is queued for
+  their node and key first, so it can't overwrite them later. A write that fails is retried
+  on its own, so it doesn't take the rest of its batch down with it.</p>
+*/
+public class WriteQueue implements Runnable {
+
+  private static final Logger log = Logger.getLogger(WriteQueue.class.getName());
+  private static final Map<GraphDatabaseService, WriteQueue> registry = new WeakHashMap<GraphDatabaseService, WriteQueue>();
+  // the key coordinates are queued under.
+  private static final String GEO_KEY = QueryBuilder.LAT_KEY + "," + QueryBuilder.LON_KEY;
+
+  // what a write replaces: the values of one key for one node in one index.
+  private static class Key {
+    final String indexName;
+    final long nodeId;
+    final String key;
+
+    Key(String indexName, long nodeId, String key) {
+      this.indexName = indexName;
+      this.nodeId = nodeId;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key other = (Key)o;
+      return nodeId == other.nodeId && indexName.equals(other.indexName) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * indexName.hashCode() + (int)(nodeId ^ (nodeId >>> 32))) + key.hashCode();
+    }
+  }
+
+  private abstract static class Write {
+    // when the first of the writes it replaced was queued.
+    long queuedMillis = System.currentTimeMillis();
+
+    // write to the index, in the caller's transaction.
+    abstract void apply(GraphDatabaseService db, Index<Node> index, long nodeId);
+  }
+
+  private static class NumericWrite extends Write {
+    final String key;
+    final Number value;
+    final NumericType type;
+
+    NumericWrite(String key, Number value, NumericType type) {
+      this.key = key;
+      this.value = value;
+      this.type = type;
+    }
+
+    void apply(GraphDatabaseService db, Index<Node> index, long nodeId) {
+      // the type was checked when the write was queued, but a rebuild may have changed it since.
+      LuceneSearch.numericIndex(db, index, nodeId, key, value, NumericFields.declareIfAbsent(db, index, key, type));
+    }
+  }
+
+  private static class GeoWrite extends Write {
+    final double lat;
+    final double lon;
+
+    GeoWrite(double lat, double lon) {
+      this.lat = lat;
+      this.lon = lon;
+    }
+
+    void apply(GraphDatabaseService db, Index<Node> index, long nodeId) {
+      LuceneSearch.geoIndex(db, index, nodeId, lat, lon);
+    }
+  }
+
+  private final GraphDatabaseService db;
+  private final int batchSize;
+  private final long flushMillis;
+  private final int capacity;
+  // insertion ordered, so the oldest write is first. a replaced write keeps its place.
+  private final LinkedHashMap<Key, Write> pending = new LinkedHashMap<Key, Write>();
+  // held while taking writes off the queue and committing them, so they're committed in order.
+  private final ReentrantLock writer = new ReentrantLock();
+  private volatile Thread thread = null;
+  private long enqueued = 0;
+  private long coalesced = 0;
+  private long written = 0;
+  private long failed = 0;
+  private long commits = 0;
+  private int maxDepth = 0;
+  private long lastCommitMillis = 0;
+
+  WriteQueue(GraphDatabaseService db, SearchSettings settings) {
+    this.db = db;
+    this.batchSize = settings.getWriteBehindBatchSize();
+    this.flushMillis = settings.getWriteBehindFlushMillis();
+    this.capacity = settings.getWriteBehindCapacity();
+  }
+
+  /**
+  * Get the database's queue, starting its writer if this is the first time it's asked for.
+  * @param db A database
+  * @param settings The settings to start the queue with, if it hasn't been started
+  * @return the queue
+  */
+  public static synchronized WriteQueue forDatabase(GraphDatabaseService db, SearchSettings settings) {
+    WriteQueue queue = registry.get(db);
+    if (queue == null) {
+      queue = new WriteQueue(db, settings);
+      Thread thread = new Thread(queue, "lucene-search-write-behind");
+      thread.setDaemon(true);
+      queue.thread = thread;
+      thread.start();
+      registry.put(db, queue);
+    }
+    return queue;
+  }
+
+  /**
+  * @param db A database
+  * @return the database's queue, or null if nothing has been queued for it
+  */
+  public static synchronized WriteQueue forDatabase(GraphDatabaseService db) {
+    return registry.get(db);
+  }
+
+  /**
+  * Commit whatever the database has queued, if it has a queue.
+  * @param db A database
+  */
+  public static void flush(GraphDatabaseService db) {
+    WriteQueue queue = forDatabase(db);
+    if (queue != null) {
+      queue.flush();
+    }
+  }
+
+  /**
+  * Drop whatever the database has queued for a node's key, if it has a queue.
+  * @param db A database
+  * @param indexName The index, as callers name it
+  * @param nodeId The node
+  * @param key The key, or null for all of the node's keys
+  */
+  public static void cancel(GraphDatabaseService db, String indexName, long nodeId, String key) {
+    WriteQueue queue = forDatabase(db);
+    if (queue != null) {
+      queue.cancel(indexName, nodeId, key);
+    }
+  }
+
+  /**
+  * Queue a numeric value for a node, in place of any value queued for the same key.
+  * @param indexName The index to write to, as callers name it
+  * @param nodeId The node to index
+  * @param key The index key
+  * @param value The value
+  * @param type The type to index it as
+  * @throws InterruptedException if interrupted while waiting for room in the queue
+  */
+  public void numericIndex(String indexName, long nodeId, String key, Number value, NumericType type)
+      throws InterruptedException
+  {
+    enqueue(new Key(indexName, nodeId, key), new NumericWrite(key, value, type));
+  }
+
+  /**
+  * Queue coordinates for a node, in place of any queued for it.
+  * @param indexName The index to write to, as callers name it
+  * @param nodeId The node to index
+  * @param lat Its latitude
+  * @param lon Its longitude
+  * @throws InterruptedException if interrupted while waiting for room in the queue
+  */
+  public void geoIndex(String indexName, long nodeId, double lat, double lon) throws InterruptedException {
+    enqueue(new Key(indexName, nodeId, GEO_KEY), new GeoWrite(lat, lon));
+  }
+
+  /**
+  * Drop whatever is queued for a node's key, waiting for any batch being committed to finish,
+    so nothing queued before now can overwrite a write committed after. Counted as coalesced.
+  * @param indexName The index, as callers name it
+  * @param nodeId The node
+  * @param key The key, or null for all of the node's keys. lat and lon stand for the node's coordinates.
+  */
+  public void cancel(String indexName, long nodeId, String key) {
+    writer.lock();
+    try {
+      synchronized (this) {
+        int before = pending.size();
+        if (key == null) {
+          Iterator<Key> keys = pending.keySet().iterator();
+          while (keys.hasNext()) {
+            Key queued = keys.next();
+            if (queued.nodeId == nodeId && queued.indexName.equals(indexName)) {
+              keys.remove();
+            }
+          }
+        } else if (key.equals(QueryBuilder.LAT_KEY) || key.equals(QueryBuilder.LON_KEY)) {
+          pending.remove(new Key(indexName, nodeId, GEO_KEY));
+        } else {
+          pending.remove(new Key(indexName, nodeId, key));
+        }
+        if (pending.size() < before) {
+          coalesced += before - pending.size();
+          notifyAll();
+        }
+      }
+    } finally {
+      writer.unlock();
+    }
+  }
+
+  private synchronized void enqueue(Key key, Write write) throws InterruptedException {
+    while (pending.size() >= capacity && !pending.containsKey(key)) {
+      wait();
+    }
+    enqueued++;
+    Write replaced = pending.put(key, write);
+    if (replaced != null) {
+      write.queuedMillis = replaced.queuedMillis;
+      coalesced++;
+    } else {
+      maxDepth = Math.max(maxDepth, pending.size());
+    }
+    if (pending.size() >= batchSize) {
+      notifyAll();
+    }
+  }
+
+  /**
+  * Commit everything queued so far, and wait until it's done.
+  */
+  public void flush() {
+    writer.lock();
+    try {
+      // only what's queued now, so a steady stream of writes can't keep it going.
+      List<Map.Entry<Key, Write>> batch = take(Integer.MAX_VALUE);
+      for (int from = 0; from < batch.size(); from += batchSize) {
+        commit(batch.subList(from, Math.min(batch.size(), from + batchSize)));
+      }
+    } finally {
+      writer.unlock();
+    }
+  }
+
+  /**
+  * Stop the writer, after committing whatever is queued.
+  */
+  public void stop() {
+    Thread running = thread;
+    if (running != null) {
+      running.interrupt();
+    }
+    flush();
+  }
+
+  /**
+  * @return the queue depth, and counts of writes queued, coalesced, written and failed, and commits
+  */
+  public synchronized Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new HashMap<String, Object>();
+    metrics.put("depth", pending.size());
+    metrics.put("max_depth", maxDepth);
+    metrics.put("capacity", capacity);
+    metrics.put("enqueued", enqueued);
+    metrics.put("coalesced", coalesced);
+    metrics.put("written", written);
+    metrics.put("failed", failed);
+    metrics.put("commits", commits);
+    metrics.put("coalescing_factor", (written == 0) ? 0 : (double)(enqueued - pending.size()) / written);
+    metrics.put("last_commit_ms", lastCommitMillis);
+    return metrics;
+  }
+
+  public void run() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        awaitBatch();
+        writer.lock();
+        try {
+          List<Map.Entry<Key, Write>> batch = take(batchSize);
+          if (!batch.isEmpty()) {
+            commit(batch);
+          }
+        } finally {
+          writer.unlock();
+        }
+      }
+    } catch (InterruptedException e) {
+      // stopped.
+    } finally {
+      thread = null;
+    }
+  }
+
+  // wait until there's a batch's worth queued, or the oldest write has waited long enough.
+  private synchronized void awaitBatch() throws InterruptedException {
+    while (true) {
+      if (pending.size() >= batchSize) {
+        return;
+      }
+      long wait = flushMillis;
+      if (!pending.isEmpty()) {
+        wait = pending.values().iterator().next().queuedMillis + flushMillis - System.currentTimeMillis();
+        if (wait <= 0) {
+          return;
+        }
+      }
+      wait(wait);
+    }
+  }
+
+  // take up to n of the oldest writes off the queue.
+  private synchronized List<Map.Entry<Key, Write>> take(int n) {
+    List<Map.Entry<Key, Write>> batch = new ArrayList<Map.Entry<Key, Write>>(Math.min(n, pending.size()));
+    Iterator<Map.Entry<Key, Write>> entries = pending.entrySet().iterator();
+    while (batch.size() < n && entries.hasNext()) {
+      Map.Entry<Key, Write> entry = entries.next();
+      batch.add(new AbstractMap.SimpleImmutableEntry<Key, Write>(entry.getKey(), entry.getValue()));
+      entries.remove();
+    }
+    // writers waiting for room can go ahead.
+    notifyAll();
+    return batch;
+  }
+
+  // write a batch in one transaction.
+  private void commit(List<Map.Entry<Key, Write>> batch) {
+    long start = System.currentTimeMillis();
+    // a rebuild of an index can't be switched in while its writes are half done.
+    Set<String> indexNames = new TreeSet<String>();
+    for (Map.Entry<Key, Write> entry : batch) {
+      indexNames.add(entry.getKey().indexName);
+    }
+    List<Lock> switching = new ArrayList<Lock>();
+    try {
+      for (String indexName : indexNames) {
+        Lock lock = RebuildJob.switchLock(db, indexName).readLock();
+        lock.lock();
+        switching.add(lock);
+      }
+      commit(batch, start);
+    } finally {
+      for (Lock lock : switching) {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void commit(List<Map.Entry<Key, Write>> batch, long start) {
+    Map<String, Index<Node>[]> indexes = new HashMap<String, Index<Node>[]>();
+    int count = 0;
+    if (apply(batch, indexes)) {
+      count = batch.size();
+    } else {
+      // find the writes that failed, so the rest still go in.
+      for (Map.Entry<Key, Write> entry : batch) {
+        if (apply(Collections.singletonList(entry), indexes)) {
+          count++;
+        }
+      }
+      // coordinates went into the tables as they were written, so reload those from the indexes.
+      for (Index<Node>[] written : indexes.values()) {
+        for (Index<Node> index : written) {
+          Coordinates.forDatabase(db).invalidate(index.getName());
+        }
+      }
+    }
+    synchronized (this) {
+      written += count;
+      failed += batch.size() - count;
+      commits++;
+      lastCommitMillis = System.currentTimeMillis() - start;
+    }
+  }
+
+  // write some writes in one transaction. returns false if it was rolled back.
+  private boolean apply(List<Map.Entry<Key, Write>> writes, Map<String, Index<Node>[]> indexes) {
+    Transaction tx = db.beginTx();
+    try {
+      for (Map.Entry<Key, Write> entry : writes) {
+        Key key = entry.getKey();
+        for (Index<Node> index : indexesFor(key.indexName, indexes)) {
+          try {
+            entry.getValue().apply(db, index, key.nodeId);
+          } catch (NotFoundException e) {
+            log.fine("Dropping queued write for deleted node " + key.nodeId);
+          }
+        }
+      }
+      tx.success();
+    } catch (RuntimeException e) {
+      tx.failure();
+      log.log(Level.WARNING, "Failed to commit " + writes.size() + " queued index writes", e);
+      try {
+        tx.finish();
+      } catch (RuntimeException rolledBack) {
+        // already logged.
+      }
+      return false;
+    }
+    try {
+      tx.finish();
+      return true;
+    } catch (RuntimeException e) {
+      log.log(Level.WARNING, "Failed to commit " + writes.size() + " queued index writes", e);
+      return false;
+    }
+  }
+
+  // the index a name stands for, and the index it's being rebuilt into, if it is.
+  @SuppressWarnings("unchecked")
+  private Index<Node>[] indexesFor(String indexName, Map<String, Index<Node>[]> indexes) {
+    Index<Node>[] found = indexes.get(indexName);
+    if (found == null) {
+      Index<Node> index = db.index().forNodes(IndexAliases.resolve(db, indexName));
+      Index<Node> rebuilding = RebuildJob.runningTarget(db, indexName);
+      found = (rebuilding == null) ? new Index[] {index} : new Index[] {index, rebuilding};
+      indexes.put(indexName, found);
+    }
+    return found;
+  }
+}
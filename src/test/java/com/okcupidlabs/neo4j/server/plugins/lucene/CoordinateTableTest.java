@@ -0,0 +1,62 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CoordinateTableTest {
+
+    private static void shouldHoldCoordinates(CoordinateTable table) {
+        // enough to resize a few times.
+        for (long id = 0; id < 5000; id++) {
+            table.put(id * 3, id / 100.0, -id / 100.0);
+        }
+        table.put(42, 51.5, -0.12); // 42 is 14 * 3, so this replaces it
+        assertEquals(5000, table.size());
+
+        double[] latLon = new double[2];
+        assertTrue(table.get(42, latLon));
+        assertEquals(51.5, latLon[0], 0);
+        assertEquals(-0.12, latLon[1], 0);
+        assertTrue(table.get(4999 * 3, latLon));
+        assertEquals(49.99, latLon[0], 0);
+        assertEquals(-49.99, latLon[1], 0);
+        assertFalse(table.get(1, latLon));
+        assertFalse(table.get(5000 * 3, latLon));
+    }
+
+    @Test
+    public void shouldForgetRemovedCoordinates() {
+        CoordinateTable table = new CoordinateTable(false);
+        for (long id = 0; id < 3000; id++) {
+            table.put(id, id, id);
+        }
+        for (long id = 0; id < 3000; id += 2) {
+            assertTrue(table.remove(id));
+        }
+        assertFalse(table.remove(0));
+        assertEquals(1500, table.size());
+        // the survivors are still reachable after their neighbours moved.
+        double[] latLon = new double[2];
+        for (long id = 0; id < 3000; id++) {
+            assertEquals(id % 2 == 1, table.get(id, latLon));
+            if (id % 2 == 1) {
+                assertEquals(id, latLon[0], 0);
+            }
+        }
+    }
+
+    @Test
+    public void shouldHoldCoordinatesOnHeap() {
+        shouldHoldCoordinates(new CoordinateTable(false));
+    }
+
+    @Test
+    public void shouldHoldCoordinatesOffHeap() {
+        CoordinateTable table = new CoordinateTable(true);
+        assertTrue(table.isOffHeap());
+        shouldHoldCoordinates(table);
+    }
+}
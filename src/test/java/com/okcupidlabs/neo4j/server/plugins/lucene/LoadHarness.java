@@ -0,0 +1,375 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.ValueContext;
+import org.neo4j.server.NeoServer;
+import org.neo4j.server.helpers.ServerBuilder;
+
+/**
+ * Load test for the plugin over HTTP. Not a unit test; run it with
+ * <code>mvn -Pload test-compile exec:java -Dexec.args="--nodes=100000 --rate=500"</code>.
+ *
+ * <p>Boots an embedded server with the plugin mounted at /ext, seeds an index with synthetic
+ * nodes (text drawn from a skewed vocabulary, coordinates around a few cities, and an int
+ * rank), then sends a stream of requests at a fixed rate from many client threads and reports
+ * throughput and latency percentiles for each kind of request. Latency is measured from when
+ * each request was due to be sent, not when a free thread got round to it, so a server that
+ * falls behind shows it in the percentiles instead of quietly lowering the rate.</p>
+ *
+ * <p>Requests are generated as a mix of searches, geo index writes and numeric index writes,
+ * or replayed from a file with one request per line: an endpoint path, a space and a JSON
+ * body, e.g. <code>search {"index_name": "load", ...}</code>. Blank lines and lines starting
+ * with # are skipped. With --url, an already running server is targeted instead, and nothing
+ * is seeded.</p>
+ *
+ * <p>Options, as --name=value: url, nodes (10000), vocabulary (5000), index (load),
+ * rate in requests per second (200), threads (32), duration in seconds (30), warmup in
+ * seconds (5, not counted), search, geo and numeric percentages of the mix (80, 15, 5),
+ * replay (a file), seed (42). Plugin settings can be given as -D system properties starting
+ * with com.okcupidlabs.lucene_search.</p>
+ */
+public class LoadHarness {
+
+    private static final String MOUNT_POINT = "/ext";
+    private static final double[][] CITIES = {
+        {40.7142, -74.0064}, {51.5072, -0.1275}, {37.7749, -122.4194}, {35.6895, 139.6917}, {-33.8688, 151.2093}
+    };
+
+    private final Map<String, String> options;
+    private final Random random;
+    private final String indexName;
+    private final int nodes;
+    private final int vocabulary;
+
+    // one request: where to send it and what to send.
+    private static class Request {
+        final String path;
+        final String body;
+
+        Request(String path, String body) {
+            this.path = path;
+            this.body = body;
+        }
+    }
+
+    // latencies in microseconds and error counts for one kind of request. synchronized, since
+    // every client thread records into it.
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private int errors = 0;
+
+        synchronized void record(long micros, boolean ok) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, 2 * count);
+            }
+            latencies[count++] = micros;
+            if (!ok) {
+                errors++;
+            }
+        }
+
+        synchronized String report(String name, double seconds) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return String.format("%-14s %8d requests %6d errors %9.1f req/s   p50 %8.2f  p90 %8.2f  p99 %8.2f  p99.9 %8.2f  max %8.2f ms",
+                name, count, errors, count / seconds, percentile(sorted, 50), percentile(sorted, 90),
+                percentile(sorted, 99), percentile(sorted, 99.9), percentile(sorted, 100));
+        }
+
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int)Math.ceil(p / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, rank))] / 1000.0;
+        }
+    }
+
+    LoadHarness(Map<String, String> options) {
+        this.options = options;
+        this.random = new Random(intOption("seed", 42));
+        this.indexName = option("index", "load");
+        this.nodes = intOption("nodes", 10000);
+        this.vocabulary = intOption("vocabulary", 5000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Options look like --name=value, not " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadHarness(options).run();
+        // the embedded server's threads would keep the JVM alive.
+        System.exit(0);
+    }
+
+    void run() throws Exception {
+        NeoServer server = null;
+        String url = option("url", null);
+        if (url == null) {
+            ServerBuilder builder = ServerBuilder.server()
+                .withThirdPartyJaxRsPackage("com.okcupidlabs.neo4j.server.plugins", MOUNT_POINT);
+            for (String name : System.getProperties().stringPropertyNames()) {
+                if (name.startsWith(SearchSettings.PREFIX)) {
+                    builder = builder.withProperty(name, System.getProperty(name));
+                }
+            }
+            server = builder.build();
+            server.start();
+            url = server.baseUri().resolve(MOUNT_POINT).toString();
+            long start = System.currentTimeMillis();
+            seed(server.getDatabase().getGraph());
+            System.out.println("Seeded " + nodes + " nodes in " + (System.currentTimeMillis() - start) + "ms");
+        }
+        if (!url.endsWith("/")) {
+            url = url + "/";
+        }
+        try {
+            List<Request> replay = null;
+            if (option("replay", null) != null) {
+                replay = readRequests(new File(option("replay", null)));
+                System.out.println("Replaying " + replay.size() + " requests from " + option("replay", null));
+            }
+            int warmup = intOption("warmup", 5);
+            if (warmup > 0) {
+                drive(url, replay, warmup);
+            }
+            Map<String, Stats> stats = drive(url, replay, intOption("duration", 30));
+            Stats all = new Stats();
+            for (Stats endpoint : stats.values()) {
+                for (int i = 0; i < endpoint.count; i++) {
+                    all.record(endpoint.latencies[i], true);
+                }
+                all.errors += endpoint.errors;
+            }
+            double seconds = intOption("duration", 30);
+            System.out.println("Target rate " + intOption("rate", 200) + " req/s from " + intOption("threads", 32) + " threads:");
+            for (Map.Entry<String, Stats> endpoint : stats.entrySet()) {
+                System.out.println(endpoint.getValue().report(endpoint.getKey(), seconds));
+            }
+            System.out.println(all.report("all", seconds));
+        } finally {
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    // send requests at the target rate for some seconds, and collect latencies by endpoint.
+    private Map<String, Stats> drive(final String url, final List<Request> replay, int seconds) throws InterruptedException {
+        final Map<String, Stats> stats = new LinkedHashMap<String, Stats>();
+        final int rate = intOption("rate", 200);
+        final long intervalNanos = 1000000000L / Math.max(1, rate);
+        final long startNanos = System.nanoTime();
+        final long endNanos = startNanos + TimeUnit.SECONDS.toNanos(seconds);
+        final AtomicLong sent = new AtomicLong(0);
+        int threads = intOption("threads", 32);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final Random threadRandom = new Random(random.nextLong());
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (true) {
+                            long n = sent.getAndIncrement();
+                            long due = startNanos + n * intervalNanos;
+                            if (due >= endNanos) {
+                                return;
+                            }
+                            long wait = due - System.nanoTime();
+                            if (wait > 0) {
+                                TimeUnit.NANOSECONDS.sleep(wait);
+                            }
+                            Request request = (replay == null) ? generate(threadRandom) : replay.get((int)(n % replay.size()));
+                            boolean ok = send(url + request.path, request.body);
+                            stats(stats, request.path).record((System.nanoTime() - due) / 1000, ok);
+                        }
+                    } catch (InterruptedException e) {
+                        // stop.
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }, "load-client-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        return stats;
+    }
+
+    private static Stats stats(Map<String, Stats> stats, String path) {
+        synchronized (stats) {
+            Stats endpoint = stats.get(path);
+            if (endpoint == null) {
+                endpoint = new Stats();
+                stats.put(path, endpoint);
+            }
+            return endpoint;
+        }
+    }
+
+    // POST a JSON body. true if the server answered 2xx.
+    private static boolean send(String url, String body) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection)new URL(url).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Accept", "application/json");
+            OutputStream out = connection.getOutputStream();
+            out.write(body.getBytes("UTF-8"));
+            out.close();
+            int status = connection.getResponseCode();
+            // read the whole response, so the connection can be reused and the time counts.
+            InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                byte[] buffer = new byte[8192];
+                while (in.read(buffer) != -1) {
+                    // discard.
+                }
+                in.close();
+            }
+            return status >= 200 && status < 300;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // a request drawn from the search/geo/numeric mix.
+    private Request generate(Random r) {
+        int search = intOption("search", 80);
+        int geo = intOption("geo", 15);
+        int numeric = intOption("numeric", 5);
+        int pick = r.nextInt(Math.max(1, search + geo + numeric));
+        if (pick < search) {
+            StringBuilder query = new StringBuilder();
+            int words = 1 + r.nextInt(3);
+            for (int i = 0; i < words; i++) {
+                query.append(i == 0 ? "" : " ").append(word(r));
+            }
+            String body = "{\"index_name\": \"" + indexName + "\", \"limit\": 20, "
+                + "\"query_spec\": {\"type\": \"SIM\", \"index_key\": \"text\", \"query\": \"" + query + "\"}";
+            if (r.nextInt(4) == 0) {
+                double[] city = CITIES[r.nextInt(CITIES.length)];
+                body += ", \"lat\": " + city[0] + ", \"lon\": " + city[1] + ", \"dist\": 50";
+            }
+            return new Request("search", body + "}");
+        }
+        long nodeId = 1 + r.nextInt(nodes);
+        if (pick < search + geo) {
+            double[] city = CITIES[r.nextInt(CITIES.length)];
+            return new Request("index/geo", "{\"index_name\": \"" + indexName + "\", \"node_id\": " + nodeId
+                + ", \"lat\": " + (city[0] + r.nextGaussian() * 0.5) + ", \"lon\": " + (city[1] + r.nextGaussian() * 0.5) + "}");
+        }
+        return new Request("index/numeric", "{\"index_name\": \"" + indexName + "\", \"node_id\": " + nodeId
+            + ", \"index_key\": \"rank\", \"index_value\": " + r.nextInt(1000) + "}");
+    }
+
+    // words are drawn with a skew, so a few are common and most are rare, as in real text.
+    private String word(Random r) {
+        return "w" + (int)(vocabulary * Math.pow(r.nextDouble(), 3));
+    }
+
+    // create the synthetic nodes and index them, a batch per transaction.
+    private void seed(GraphDatabaseService db) {
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("analyzer", "org.apache.lucene.analysis.WhitespaceAnalyzer");
+        config.put(NumericFields.TYPE_PREFIX + "rank", "int");
+        Index<Node> index = db.index().forNodes(indexName, config);
+        int batch = 10000;
+        for (int from = 0; from < nodes; from += batch) {
+            Transaction tx = db.beginTx();
+            try {
+                for (int i = from; i < Math.min(nodes, from + batch); i++) {
+                    Node node = db.createNode();
+                    StringBuilder text = new StringBuilder();
+                    int words = 5 + random.nextInt(20);
+                    for (int w = 0; w < words; w++) {
+                        text.append(w == 0 ? "" : " ").append(word(random));
+                    }
+                    double[] city = CITIES[random.nextInt(CITIES.length)];
+                    double lat = city[0] + random.nextGaussian() * 0.5;
+                    double lon = city[1] + random.nextGaussian() * 0.5;
+                    int rank = random.nextInt(1000);
+                    node.setProperty("text", text.toString());
+                    node.setProperty(QueryBuilder.LAT_KEY, lat);
+                    node.setProperty(QueryBuilder.LON_KEY, lon);
+                    node.setProperty("rank", rank);
+                    index.add(node, "text", text.toString());
+                    index.add(node, QueryBuilder.LAT_KEY, ValueContext.numeric(lat));
+                    index.add(node, QueryBuilder.LON_KEY, ValueContext.numeric(lon));
+                    index.add(node, "rank", ValueContext.numeric(rank));
+                }
+                tx.success();
+            } finally {
+                tx.finish();
+            }
+        }
+    }
+
+    private static List<Request> readRequests(File file) throws IOException {
+        List<Request> requests = new ArrayList<Request>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    throw new IOException("Expected a path and a body, but got " + line);
+                }
+                String path = line.substring(0, space);
+                requests.add(new Request(path.startsWith("/") ? path.substring(1) : path, line.substring(space + 1).trim()));
+            }
+        } finally {
+            reader.close();
+        }
+        if (requests.isEmpty()) {
+            throw new IOException("No requests in " + file);
+        }
+        return requests;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : value;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+}
@@ -1,11 +1,17 @@
 package com.okcupidlabs.neo4j.server.plugins.lucene;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.ArrayList;
 import java.util.List;
 
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.codehaus.jackson.map.type.TypeFactory;
 import org.junit.After;
@@ -194,6 +200,27 @@ public class LuceneSearchFunctionalTest {
       }
     }
     
+    @Test
+    public void profiledSearch() throws IOException {
+      RestRequest restRequest = new RestRequest(server.baseUri().resolve(MOUNT_POINT), CLIENT);
+      JaxRsResponse response = restRequest.post("search", LuceneSearchTestFixtures.PROFILED_GEO_BOOLEAN_FIXTURE);
+      assertEquals(200, response.getStatus());
+      String body = response.getEntity();
+      log.fine("Got profiled response with body: " + body);
+      Map responseMap = objectMapper.readValue(body, Map.class);
+      assertEquals(3, ((List)responseMap.get("results")).size());
+      Map profile = (Map)responseMap.get("profile");
+      assertEquals("search", profile.get("name"));
+      assertEquals(3, ((Number)profile.get("matched")).intValue());
+      Map bool = (Map)((List)profile.get("children")).get(0);
+      assertEquals("BOOL", bool.get("name"));
+      List clauses = (List)bool.get("children");
+      assertEquals(2, clauses.size());
+      Map geo = (Map)clauses.get(0);
+      assertEquals("GEO", geo.get("name"));
+      assertEquals(3, ((List)geo.get("children")).size()); // bounding box, lat seed, distance
+    }
+
     @Test
     public void numericRangeSearch() {
       RestRequest restRequest = new RestRequest(server.baseUri().resolve(MOUNT_POINT), CLIENT);
@@ -210,6 +237,31 @@ public class LuceneSearchFunctionalTest {
       }
     }
     
+    @Test
+    public void smileRequestAndLeanResponse() throws IOException {
+      // re-encode a JSON fixture as smile
+      JsonFactory smile = WireFormat.SMILE.getFactory();
+      ByteArrayOutputStream requestBytes = new ByteArrayOutputStream();
+      JsonParser jsonIn = new JsonFactory().createJsonParser(LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIELDS_FIXTURE);
+      JsonGenerator smileOut = smile.createJsonGenerator(requestBytes);
+      while (jsonIn.nextToken() != null) {
+        smileOut.copyCurrentEvent(jsonIn);
+      }
+      smileOut.close();
+
+      ClientResponse response = CLIENT.resource(server.baseUri().resolve(MOUNT_POINT + "/search"))
+        .type(WireFormat.SMILE.getMediaType())
+        .accept(WireFormat.SMILE.getMediaType())
+        .post(ClientResponse.class, requestBytes.toByteArray());
+      assertEquals(200, response.getStatus());
+      List responseList = new ObjectMapper(smile).readValue(response.getEntityInputStream(), List.class);
+      assertEquals(6, responseList.size()); // 6 nodes about president or obama
+      Map hit = (Map)responseList.get(0);
+      assertTrue(hit.containsKey("id"));
+      assertTrue(hit.containsKey("score"));
+      assertTrue(((Map)hit.get("fields")).containsKey("text"));
+    }
+
     @After
     public void tearDown() {
         this.server.stop();
@@ -1,15 +1,22 @@
 package com.okcupidlabs.neo4j.server.plugins.lucene;
 
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.index.Index;
+import org.neo4j.index.lucene.ValueContext;
 import org.neo4j.kernel.impl.transaction.xaframework.ForceMode;
 import org.neo4j.server.ServerTestUtils;
 import org.neo4j.server.database.Database;
@@ -21,16 +28,26 @@ import org.neo4j.server.rest.paging.LeaseManager;
 import org.neo4j.server.rest.repr.formats.JsonFormat;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.UriInfo;
+import javax.ws.rs.core.StreamingOutput;
 import java.net.URI;
 import java.net.URISyntaxException;
 
+import java.io.File;
+import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Map;
+import java.util.List;
 import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static org.junit.Assert.assertEquals;
 
 import java.util.logging.*;
+import java.util.zip.GZIPInputStream;
 
 public class LuceneSearchTest {
 
@@ -51,7 +68,7 @@ public class LuceneSearchTest {
         helper = new GraphDbHelper( database );
         output = new EntityOutputFormat( new JsonFormat(), URI.create( BASE_URI ), null );
         leaseManager = new LeaseManager( new FakeClock() );
-        service = new LuceneSearch( uriInfo(), new JsonFormat(), output,
+        service = new LuceneSearch( uriInfo(), output,
                 new DatabaseActions(database, leaseManager, ForceMode.forced, true), database.getGraph());
         LuceneSearchTestFixtures.populateDb(database.getGraph());
     }
@@ -83,6 +100,25 @@ public class LuceneSearchTest {
         assertEquals(400, response.getStatus());
     }
 
+    @Test
+    public void shouldErrorIfMalformedBody() {
+        final Response response = service.search(FORCE, "{\"index_name\": \"content\", ");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void shouldOnlyAnswerInSmileIfItIsAccepted() {
+        assertEquals(WireFormat.SMILE, WireFormat.forAccept("application/json;q=0.5, application/x-jackson-smile"));
+        assertEquals(WireFormat.JSON, WireFormat.forAccept("application/x-jackson-smile;q=0, application/json"));
+        assertEquals(WireFormat.JSON, WireFormat.forAccept(null));
+    }
+
+    @Test
+    public void shouldErrorIfGeoIndexMissingCoordinates() {
+        final Response response = service.geoIndex(FORCE, "{\"index_name\": \"content\", \"node_id\": 1, \"lat\": 40.7}");
+        assertEquals(400, response.getStatus());
+    }
+
     // the search performs no graph manipulations, so no side effects to check
     // but we should make sure nothing bonks out here.
     // checking returned nodes can wait for the functional test.
@@ -105,6 +141,797 @@ public class LuceneSearchTest {
         assertEquals(200, response.getStatus());
     }
     
+    @Test
+    public void shouldLogSlowSearches() throws IOException {
+        File logDir = new File(ServerTestUtils.createTempDir(), "log");
+        logDir.mkdirs();
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(SearchSettings.SLOW_QUERY_THRESHOLD_MS, 0);
+        config.setProperty(SearchSettings.SLOW_QUERY_LOG, logDir.getPath() + "/slow.%g.log");
+        LuceneSearch slowService = new LuceneSearch( uriInfo(), output,
+                new DatabaseActions(database, leaseManager, ForceMode.forced, true), database.getGraph(), config);
+
+        final Response response = slowService.search(FORCE, LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE);
+        assertEquals(200, response.getStatus());
+
+        String logged = FileUtils.readFileToString(new File(logDir, "slow.0.log"));
+        assertTrue(logged.contains("slow search"));
+        assertTrue(logged.contains("top hit"));
+    }
+
+    @Test
+    public void shouldOnlyReturnHitsWithinHops() {
+        GraphDatabaseService graph = database.getGraph();
+        Node user;
+        Transaction tx = graph.beginTx();
+        try {
+            // follows everything about Obama, so one hop away from 2 President nodes.
+            user = graph.createNode();
+            for (Node n : graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME).query("text", "Obama")) {
+                user.createRelationshipTo(n, DynamicRelationshipType.withName("FOLLOWS"));
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        final Response response = service.search(FORCE, "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}," +
+            "\"within_hops\": {\"start_node\": " + user.getId() + ", \"max_depth\": 1," +
+              "\"direction\": \"OUTGOING\", \"relationship_types\": [\"FOLLOWS\"]}" +
+            "}");
+        assertEquals(200, response.getStatus());
+        assertEquals(2, output.getResultAsList().size());
+
+        Response malformed = service.search(FORCE, "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}," +
+            "\"within_hops\": {\"start_node\": " + user.getId() + ", \"max_depth\": 1, \"relationship_types\": \"FOLLOWS\"}" +
+            "}");
+        assertEquals(400, malformed.getStatus());
+    }
+
+    @Test
+    public void functionScoreShouldRankByRecency() {
+        final Response response = service.search(FORCE, LuceneSearchTestFixtures.FUNCTION_SCORE_RECENCY_FIXTURE);
+        assertEquals(200, response.getStatus());
+        List<Object> results = output.getResultAsList();
+        assertEquals(2, results.size());
+        assertTrue(((String)((Map)((Map)results.get(0)).get("data")).get("text")).startsWith("Romney's campaign"));
+        assertTrue(((String)((Map)((Map)results.get(1)).get("data")).get("text")).startsWith("America elects"));
+    }
+
+    @Test
+    public void shouldSuggestIndexedTerms() {
+        String suggest = "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"text\", \"prefix\": \"Pr\", \"size\": 2}";
+        Response response = service.suggest(suggest);
+        assertEquals(200, response.getStatus());
+        List<Object> suggestions = output.getResultAsList();
+        assertEquals(1, suggestions.size());
+        assertEquals("President", ((Map)suggestions.get(0)).get("term"));
+        assertEquals(5, ((Number)((Map)suggestions.get(0)).get("weight")).intValue());
+
+        // newly indexed terms show up without rebuilding.
+        long nodeId = helper.createNode();
+        response = service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + nodeId + ", \"index_key\": \"text\", \"index_value\": \"Prime Minister\"}");
+        assertEquals(200, response.getStatus());
+        service.suggest(suggest);
+        suggestions = output.getResultAsList();
+        assertEquals(2, suggestions.size());
+        assertEquals("Prime", ((Map)suggestions.get(1)).get("term"));
+    }
+
+    @Test
+    public void shouldRangeSearchTypedNumerics() {
+        String index = "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"age\", \"numeric_type\": \"int\", ";
+        for (int age : new int[] {29, 30, 31}) {
+            long nodeId = helper.createNode();
+            Response response = service.numericIndex(FORCE, index + "\"node_id\": " + nodeId + ", \"index_value\": " + age + "}");
+            assertEquals(200, response.getStatus());
+        }
+        // int ranges may be written with fractions.
+        Response response = service.search(FORCE, "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"NUMRANGE\", \"index_key\": \"age\", \"range\": \"(29,30.5]\"}" +
+            "}");
+        assertEquals(200, response.getStatus());
+        assertEquals(1, output.getResultAsList().size());
+
+        // the key's type is fixed once it's recorded.
+        long nodeId = helper.createNode();
+        response = service.numericIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"age\", \"numeric_type\": \"double\", \"node_id\": " + nodeId + ", \"index_value\": 40}");
+        assertEquals(400, response.getStatus());
+        // neo4j only writes the default precision step.
+        response = service.numericIndex(FORCE, index + "\"precision_step\": 8, \"node_id\": " + nodeId + ", \"index_value\": 40}");
+        assertEquals(400, response.getStatus());
+        // ints aren't truncated to fit.
+        response = service.numericIndex(FORCE, index + "\"node_id\": " + nodeId + ", \"index_value\": 4000000000}");
+        assertEquals(400, response.getStatus());
+        // nor longs wrapped.
+        String stamp = "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"stamp\", \"numeric_type\": \"long\", \"node_id\": " + nodeId + ", ";
+        response = service.numericIndex(FORCE, stamp + "\"index_value\": 99999999999999999999}");
+        assertEquals(400, response.getStatus());
+        response = service.numericIndex(FORCE, stamp + "\"index_value\": " + Long.MAX_VALUE + "}");
+        assertEquals(200, response.getStatus());
+
+        // nor can a key holding doubles be declared something else.
+        String weight = "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"weight\", \"node_id\": " + nodeId + ", ";
+        response = service.numericIndex(FORCE, weight + "\"index_value\": 70.5}");
+        assertEquals(200, response.getStatus());
+        response = service.numericIndex(FORCE, weight + "\"numeric_type\": \"int\", \"index_value\": 70}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void shouldNotBeReadyUntilWarmedUp() throws IOException {
+        File queries = new File(ServerTestUtils.createTempDir(), "warmup.json");
+        FileUtils.writeStringToFile(queries, "# representative searches\n" +
+            LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE.replace("\n", " ") + "\n\n" +
+            "{\"index_name\": \"nope\", \"query_spec\": {\"type\": \"TERM\"}}\n");
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(SearchSettings.WARMUP_QUERIES, queries.getPath());
+        config.setProperty(SearchSettings.WARMUP_ROUNDS, 2);
+        Warmup warmup = Warmup.register(database.getGraph(), new SearchSettings(config));
+
+        assertEquals(503, service.ready().getStatus());
+        warmup.run();
+        assertEquals(200, service.ready().getStatus());
+        Map<String, Object> status = output.getResultAsMap();
+        assertEquals(2, ((Number)status.get("queries")).intValue());
+        assertEquals(2, ((Number)status.get("failed_queries")).intValue());
+        // lat and lon for the one geo-indexed segment.
+        assertTrue(((Number)status.get("field_caches")).intValue() >= 2);
+    }
+
+    @Test
+    public void radiusCheckShouldUseIndexedCoordinates() {
+        Response response = service.search(FORCE, LuceneSearchTestFixtures.GEO_CONSTRAINED_FIXTURE);
+        assertEquals(200, response.getStatus());
+        int near = output.getResultAsList().size();
+
+        // neither node has lat and lon properties, so only their indexed coordinates can place them.
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        long london = helper.createNode();
+        LuceneSearch.textIndex(graph, index, london, "text", "Obama visits London");
+        LuceneSearch.geoIndex(graph, index, london, 51.5072, -0.1275);
+        long newark = helper.createNode();
+        LuceneSearch.textIndex(graph, index, newark, "text", "Obama visits Newark");
+        LuceneSearch.geoIndex(graph, index, newark, 40.7357, -74.1724);
+
+        response = service.search(FORCE, LuceneSearchTestFixtures.GEO_CONSTRAINED_FIXTURE);
+        assertEquals(200, response.getStatus());
+        assertEquals(near + 1, output.getResultAsList().size());
+    }
+
+    private int numRangeHits(String key, String range) {
+        Response response = service.search(FORCE, "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"NUMRANGE\", \"index_key\": \"" + key + "\", \"range\": \"" + range + "\"}" +
+            "}");
+        assertEquals(200, response.getStatus());
+        return output.getResultAsList().size();
+    }
+
+    @Test
+    public void reindexingShouldReplaceValues() {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        long nodeId = helper.createNode();
+        LuceneSearch.numericIndex(graph, index, nodeId, "rank", 10);
+        LuceneSearch.numericIndex(graph, index, nodeId, "rank", 20);
+        assertEquals(0, numRangeHits("rank", "[5,15]"));
+        assertEquals(1, numRangeHits("rank", "[15,25]"));
+
+        LuceneSearch.geoIndex(graph, index, nodeId, 10, 10);
+        LuceneSearch.geoIndex(graph, index, nodeId, 20, 20);
+        assertEquals(0, numRangeHits(QueryBuilder.LAT_KEY, "[9,11]"));
+        assertEquals(1, numRangeHits(QueryBuilder.LAT_KEY, "[19,21]"));
+
+        Response response = service.removeFromIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + nodeId + ", \"index_key\": \"rank\"}");
+        assertEquals(200, response.getStatus());
+        assertEquals(0, numRangeHits("rank", "[15,25]"));
+        assertEquals(1, numRangeHits(QueryBuilder.LAT_KEY, "[19,21]"));
+
+        response = service.removeFromIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + nodeId + "}");
+        assertEquals(200, response.getStatus());
+        assertEquals(0, numRangeHits(QueryBuilder.LAT_KEY, "[19,21]"));
+    }
+
+    @Test
+    public void compactionShouldDropStaleValues() {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        long nodeId = helper.createNode();
+        // the way values used to pile up.
+        for (int rank : new int[] {10, 20, 30}) {
+            Transaction tx = graph.beginTx();
+            try {
+                index.add(graph.getNodeById(nodeId), "rank", ValueContext.numeric((double)rank));
+                tx.success();
+            } finally {
+                tx.finish();
+            }
+        }
+        assertEquals(1, numRangeHits("rank", "[5,15]"));
+
+        Response response = service.compactIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"index_key\": \"rank\"}");
+        assertEquals(200, response.getStatus());
+        Map<String, Object> result = output.getResultAsMap();
+        assertEquals(1, ((Number)result.get("rewritten")).intValue());
+        assertEquals(2, ((Number)result.get("dropped")).intValue());
+        assertEquals(0, numRangeHits("rank", "[5,25]"));
+        assertEquals(1, numRangeHits("rank", "[25,35]"));
+    }
+
+    @Test
+    public void rebuildShouldIndexNodePropertiesAndTakeOverTheName() throws InterruptedException {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        List<Long> nodeIds = new ArrayList<Long>();
+        for (int rank = 10; rank <= 50; rank += 10) {
+            long nodeId = helper.createNode();
+            Transaction tx = graph.beginTx();
+            try {
+                Node node = graph.getNodeById(nodeId);
+                node.setProperty("rank", rank);
+                node.setProperty(QueryBuilder.LAT_KEY, 40.0);
+                node.setProperty(QueryBuilder.LON_KEY, -74.0);
+                tx.success();
+            } finally {
+                tx.finish();
+            }
+            // in the index, but without the properties.
+            LuceneSearch.textIndex(graph, index, nodeId, "text", "rebuild me");
+            nodeIds.add(nodeId);
+        }
+        assertEquals(0, numRangeHits("rank", "[0,100]"));
+
+        Response response = service.rebuildIndex("{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"geo\": true, \"numeric_keys\": {\"rank\": \"int\"}, \"text_keys\": [\"title\"], " +
+            "\"threads\": 2, \"batch_size\": 2}");
+        assertEquals(200, response.getStatus());
+        RebuildJob job = RebuildJob.forIndex(graph, LuceneSearchTestFixtures.INDEX_NAME);
+        for (int i = 0; i < 300 && job.getState() == RebuildJob.State.RUNNING; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(RebuildJob.State.DONE, job.getState());
+        assertEquals(job.getTarget().getName(), IndexAliases.resolve(graph, LuceneSearchTestFixtures.INDEX_NAME));
+
+        // searches by the old name now go to the rebuilt index.
+        assertEquals(nodeIds.size(), numRangeHits("rank", "[0,100]"));
+        assertEquals(2, numRangeHits("rank", "[15,35]"));
+        assertEquals(nodeIds.size(), numRangeHits(QueryBuilder.LAT_KEY, "[39,41]"));
+        assertEquals("int", graph.index().getConfiguration(job.getTarget()).get(NumericFields.TYPE_PREFIX + "rank"));
+    }
+
+    @Test
+    public void queuedWritesShouldCoalesceAndBeVisibleAfterFlush() {
+        long nodeId = helper.createNode();
+        String index = "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", \"node_id\": " + nodeId;
+        for (int lat = -30; lat <= -10; lat += 10) {
+            Response response = service.geoIndex(FORCE, "{" + index + ", \"lat\": " + lat + ", \"lon\": 0, \"async\": true}");
+            assertEquals(202, response.getStatus());
+        }
+        Response response = service.numericIndex(FORCE, "{" + index + ", \"index_key\": \"rank\", " +
+            "\"index_value\": 7, \"async\": true}");
+        assertEquals(202, response.getStatus());
+        // a write committed straight away isn't overwritten by the one queued before it.
+        response = service.numericIndex(FORCE, "{" + index + ", \"index_key\": \"rank\", \"index_value\": 9}");
+        assertEquals(200, response.getStatus());
+
+        response = service.flushIndexWrites();
+        assertEquals(200, response.getStatus());
+        Map<String, Object> metrics = output.getResultAsMap();
+        assertEquals(0, ((Number)metrics.get("depth")).intValue());
+        assertEquals(4, ((Number)metrics.get("enqueued")).intValue());
+        assertEquals(4, ((Number)metrics.get("written")).intValue() + ((Number)metrics.get("coalesced")).intValue());
+        assertEquals(0, ((Number)metrics.get("failed")).intValue());
+
+        // only the last coordinates were kept.
+        assertEquals(0, numRangeHits(QueryBuilder.LAT_KEY, "[-35,-15]"));
+        assertEquals(1, numRangeHits(QueryBuilder.LAT_KEY, "[-15,-5]"));
+        assertEquals(0, numRangeHits("rank", "[5,8]"));
+        assertEquals(1, numRangeHits("rank", "[8,10]"));
+    }
+
+    @Test
+    public void queuedWritesShouldWaitForRoomWithoutHoldingUpARebuildSwitch() throws InterruptedException {
+        GraphDatabaseService graph = database.getGraph();
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(SearchSettings.WRITE_BEHIND_CAPACITY, 1);
+        config.setProperty(SearchSettings.WRITE_BEHIND_FLUSH_MS, 200);
+        WriteQueue.forDatabase(graph, new SearchSettings(config));
+        String index = "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", \"async\": true";
+        Response response = service.numericIndex(FORCE, "{" + index + ", \"node_id\": " + helper.createNode() +
+            ", \"index_key\": \"rank\", \"index_value\": 7}");
+        assertEquals(202, response.getStatus());
+
+        // a write in progress holds up a rebuild switching over, and the switch holds up the writer.
+        final ReadWriteLock switching = RebuildJob.switchLock(graph, LuceneSearchTestFixtures.INDEX_NAME);
+        switching.readLock().lock();
+        Thread rebuild = new Thread() {
+            public void run() {
+                switching.writeLock().lock();
+                switching.writeLock().unlock();
+            }
+        };
+        try {
+            rebuild.start();
+            while (((ReentrantReadWriteLock)switching).getQueueLength() == 0) {
+                Thread.sleep(10);
+            }
+            // the queue is full, but its writer still makes room without waiting for the switch.
+            final String geo = "{" + index + ", \"node_id\": " + helper.createNode() + ", \"lat\": 12, \"lon\": 0}";
+            final int[] status = new int[1];
+            Thread client = new Thread() {
+                public void run() {
+                    status[0] = service.geoIndex(FORCE, geo).getStatus();
+                }
+            };
+            client.start();
+            client.join(10000);
+            assertFalse(client.isAlive());
+            assertEquals(202, status[0]);
+        } finally {
+            switching.readLock().unlock();
+        }
+        rebuild.join(10000);
+        assertFalse(rebuild.isAlive());
+
+        service.flushIndexWrites();
+        assertEquals(1, numRangeHits("rank", "[7,7]"));
+        assertEquals(1, numRangeHits(QueryBuilder.LAT_KEY, "[11,13]"));
+    }
+
+    @Test
+    public void shouldSearchSeveralIndexesAndMergeHits() {
+        service.search(FORCE, LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE);
+        int contentHits = output.getResultAsList().size();
+
+        GraphDatabaseService graph = database.getGraph();
+        Map<String, String> config = new HashMap<String, String>();
+        config.put("analyzer", LuceneSearchTestFixtures.DEFAULT_ANALYZER);
+        Index<Node> archive = graph.index().forNodes("archive", config);
+        long nodeId = helper.createNode();
+        LuceneSearch.textIndex(graph, archive, nodeId, "text", "President Obama archived");
+
+        String body = LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE.replace(
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"",
+            "\"index_name\": [\"" + LuceneSearchTestFixtures.INDEX_NAME + "\", \"archive\"], \"score_merge\": \"normalize\"");
+        Response response = service.search(FORCE, body);
+        assertEquals(200, response.getStatus());
+        List<Object> hits = output.getResultAsList();
+        assertEquals(contentHits + 1, hits.size());
+        // normalized, each index's best hit scores 1.
+        assertEquals(1.0, ((Number)((Map<String, Object>)hits.get(0)).get("score")).doubleValue(), 1e-6);
+
+        response = service.search(FORCE, body.replace("\"index_name\": [", "\"limit\": 1, \"index_name\": ["));
+        assertEquals(200, response.getStatus());
+        assertEquals(1, output.getResultAsList().size());
+
+        response = service.search(FORCE, body.replace("\"archive\"", "\"missing\""));
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void collapseShouldKeepTheBestHitPerValue() {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        int uncollapsed = 0;
+        Transaction tx = graph.beginTx();
+        try {
+            for (Node n : index.query("text", "President")) {
+                String text = (String)n.getProperty("text");
+                if (text.contains("Obama")) {
+                    index.add(n, "author", "obama");
+                } else if (text.contains("Romney")) {
+                    index.add(n, "author", "romney");
+                } else {
+                    uncollapsed++;
+                }
+            }
+            tx.success();
+        } finally {
+            tx.finish();
+        }
+
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}";
+        Response response = service.search(FORCE, body + "}");
+        assertEquals(200, response.getStatus());
+        int all = output.getResultAsList().size();
+
+        response = service.search(FORCE, body + ", \"collapse_on\": \"author\"}");
+        assertEquals(200, response.getStatus());
+        List<Object> hits = output.getResultAsList();
+        assertEquals(uncollapsed + 2, hits.size());
+        assertTrue(hits.size() < all);
+        int obamas = 0;
+        for (Object hit : hits) {
+            String text = (String)((Map<String, Object>)((Map<String, Object>)hit).get("data")).get("text");
+            obamas += text.contains("Obama") ? 1 : 0;
+        }
+        assertEquals(1, obamas);
+
+        response = service.search(FORCE, body + ", \"collapse_on\": \"author\", \"limit\": 1}");
+        assertEquals(200, response.getStatus());
+        assertEquals(1, output.getResultAsList().size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void prunedSimilarityShouldDropCommonTermsAndRequireMatches() {
+        Index<Node> index = database.getGraph().index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        int presidents = index.query("text", "President").size();
+        int obamas = index.query("text", "Obama").size();
+        assertTrue(obamas < presidents);
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"SIM\", \"index_key\": \"text\", \"query\": \"President Obama Zyzzyva\"";
+
+        // President is in too many documents to be worth reading.
+        Response response = service.search(FORCE, body + ", \"max_doc_freq\": " + obamas + "}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(obamas, output.getResultAsList().size());
+
+        // keeping only the rarest term does the same.
+        response = service.search(FORCE, body + ", \"max_terms\": 1}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(obamas, output.getResultAsList().size());
+
+        // both terms that are in the index have to match; the missing one doesn't count.
+        response = service.search(FORCE, body + ", \"min_should_match\": \"100%\"}}");
+        assertEquals(200, response.getStatus());
+        List<Object> hits = output.getResultAsList();
+        assertTrue(hits.size() > 0);
+        for (Object hit : hits) {
+            String text = (String)((Map<String, Object>)((Map<String, Object>)hit).get("data")).get("text");
+            assertTrue(text.contains("President") && text.contains("Obama"));
+        }
+
+        response = service.search(FORCE, body + ", \"max_terms\": -1}}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void moreLikeThisShouldFindOtherNodesSharingDistinctiveTerms() {
+        Index<Node> index = database.getGraph().index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        Node source = index.query("text", "Tuesday").getSingle();
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"MLT\", \"node_id\": " + source.getId() + ", \"index_keys\": [\"text\"]";
+        Response response = service.search(FORCE, body + "}}");
+        assertEquals(200, response.getStatus());
+        List<Object> hits = output.getResultAsList();
+        assertTrue(hits.size() > 0);
+        String self = "/node/" + source.getId();
+        for (Object hit : hits) {
+            assertTrue(!((String)((Map<String, Object>)hit).get("self")).endsWith(self));
+        }
+        // Barack and Obama are rarer than President, so a story about Obama comes first.
+        String best = (String)((Map<String, Object>)((Map<String, Object>)hits.get(0)).get("data")).get("text");
+        assertTrue(best.contains("Obama"));
+
+        // served from the cache the second time.
+        response = service.search(FORCE, body + "}}");
+        assertEquals(selfs(hits), selfs(output.getResultAsList()));
+
+        response = service.search(FORCE, body + ", \"max_terms\": 0}}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void fuzzyShouldFindMisspellingsThroughNGrams() {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        for (Node n : graph.getAllNodes()) {
+            if (n.hasProperty("text")) {
+                Response response = service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+                    "\"node_id\": " + n.getId() + ", \"index_key\": \"text\", \"index_value\": \"" + n.getProperty("text") + "\", " +
+                    "\"ngram\": 3}");
+                assertEquals(200, response.getStatus());
+            }
+        }
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"FUZZY\", \"index_key\": \"text\", \"query\": ";
+
+        Response response = service.search(FORCE, body + "\"Obbama\"}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(index.query("text", "Obama").size(), output.getResultAsList().size());
+
+        // a transposition is two edits.
+        response = service.search(FORCE, body + "\"Presidnet\"}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(index.query("text", "President").size(), output.getResultAsList().size());
+        response = service.search(FORCE, body + "\"Presidnet\", \"max_edits\": 1}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(0, output.getResultAsList().size());
+
+        // terms shorter than the n-grams still find close spellings.
+        long nodeId = helper.createNode();
+        response = service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + nodeId + ", \"index_key\": \"text\", \"index_value\": \"Oz\", \"ngram\": 3}");
+        assertEquals(200, response.getStatus());
+        response = service.search(FORCE, body + "\"Ox\", \"max_edits\": 1}}");
+        assertEquals(200, response.getStatus());
+        assertEquals(1, output.getResultAsList().size());
+
+        // only n-gram indexed keys can be searched, with the size they were indexed with.
+        response = service.search(FORCE, body.replace("\"index_key\": \"text\"", "\"index_key\": \"title\"") + "\"Obbama\"}}");
+        assertEquals(400, response.getStatus());
+        response = service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": 0, \"index_key\": \"text\", \"index_value\": \"Obama\", \"ngram\": 2}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void multiFieldShouldSearchEveryFieldWithItsBoost() {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        Node president = index.query("text", "Tuesday").getSingle();
+        Response response = service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + president.getId() + ", \"index_key\": \"headline\", \"index_value\": \"Hawaii calls\"}");
+        assertEquals(200, response.getStatus());
+        int inText = index.query("text", "Hawaii").size();
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"MULTI_FIELD\", \"query\": \"Hawaii Honolulu\", " +
+            "\"fields\": [\"text\", {\"index_key\": \"headline\", \"boost\": 10}]";
+
+        for (String mode : new String[] {"DISMAX", "CROSS_FIELD"}) {
+            response = service.search(FORCE, body + ", \"mode\": \"" + mode + "\"}}");
+            assertEquals(200, response.getStatus());
+            List<Object> results = output.getResultAsList();
+            assertEquals(inText + 1, results.size());
+            // the headline's boost puts its node first.
+            assertTrue(((String)((Map<String, Object>)results.get(0)).get("self")).endsWith("/" + president.getId()));
+        }
+
+        response = service.search(FORCE, body.replace("\"fields\": [", "\"fields\": [0, ") + "}}");
+        assertEquals(400, response.getStatus());
+        response = service.search(FORCE, body + ", \"mode\": \"BEST\"}}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void searchShouldAnswerRepeatsWithNotModifiedUntilAWrite() throws Exception {
+        String body = LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE;
+        Response response = service.search(FORCE, null, null, null, null, new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(200, response.getStatus());
+        String etag = (String)response.getMetadata().getFirst("ETag");
+        assertNotNull(etag);
+
+        response = service.search(FORCE, null, null, null, etag, new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(304, response.getStatus());
+        // a different request has a different tag.
+        response = service.search(FORCE, null, null, null, etag, 
+            new ByteArrayInputStream(body.replace("Obama", "Romney").getBytes("UTF-8")));
+        assertEquals(200, response.getStatus());
+
+        Node node = database.getGraph().index().forNodes(LuceneSearchTestFixtures.INDEX_NAME).query("text", "Tuesday").getSingle();
+        assertEquals(200, service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+            "\"node_id\": " + node.getId() + ", \"index_key\": \"headline\", \"index_value\": \"Obama\"}").getStatus());
+        response = service.search(FORCE, null, null, null, etag, new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(200, response.getStatus());
+        assertTrue(!etag.equals(response.getMetadata().getFirst("ETag")));
+    }
+
+    @Test
+    public void searchShouldCompressForCallersThatAcceptIt() throws Exception {
+        String body = LuceneSearchTestFixtures.SIM_PRESIDENT_OBAMA_FIXTURE;
+        Response plain = service.search(FORCE, null, null, null, null, new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertTrue(!"gzip".equals(plain.getMetadata().getFirst("Content-Encoding")));
+
+        Response response = service.search(FORCE, null, null, "deflate;q=0.5, gzip", null, 
+            new ByteArrayInputStream(body.getBytes("UTF-8")));
+        assertEquals(200, response.getStatus());
+        assertEquals(Arrays.asList("gzip"), response.getMetadata().get("Content-Encoding"));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(compressed);
+        String json = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())), "UTF-8");
+        assertEquals(new String((byte[])plain.getEntity(), "UTF-8"), json);
+        assertTrue(compressed.size() < json.length());
+
+        assertEquals(ContentEncoding.IDENTITY, ContentEncoding.forAcceptEncoding("gzip;q=0, identity"));
+        assertEquals(ContentEncoding.DEFLATE, ContentEncoding.forAcceptEncoding("deflate"));
+    }
+
+    @Test
+    public void lowPrioritySearchShouldReadTheSnapshotUntilItsRefreshed() throws Exception {
+        File snapshotDir = new File(System.getProperty("java.io.tmpdir"), "lucene-search-snapshots-" + System.nanoTime());
+        BaseConfiguration config = new BaseConfiguration();
+        config.setProperty(SearchSettings.SNAPSHOT_INDEXES, LuceneSearchTestFixtures.INDEX_NAME);
+        config.setProperty(SearchSettings.SNAPSHOT_DIR, snapshotDir.getPath());
+        GraphDatabaseService graph = database.getGraph();
+        IndexSnapshots snapshots = IndexSnapshots.register(graph, new SearchSettings(config));
+        try {
+            String body = "{" +
+                "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+                "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}";
+            // without a snapshot, low-priority searches read the index.
+            service.search(FORCE, body + "}");
+            List<Object> live = output.getResultAsList();
+            service.search(FORCE, body + ", \"priority\": \"low\"}");
+            assertEquals(live, output.getResultAsList());
+
+            assertTrue(snapshots.refresh(LuceneSearchTestFixtures.INDEX_NAME));
+            assertTrue(!snapshots.refresh(LuceneSearchTestFixtures.INDEX_NAME));
+            Response response = service.search(FORCE, body + ", \"priority\": \"low\"}");
+            assertEquals(200, response.getStatus());
+            assertEquals(live, output.getResultAsList());
+
+            Node other = null;
+            for (Node n : graph.getAllNodes()) {
+                if (n.hasProperty("text") && !((String)n.getProperty("text")).contains("President")) {
+                    other = n;
+                }
+            }
+            assertEquals(200, service.textIndex(FORCE, "{\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\", " +
+                "\"node_id\": " + other.getId() + ", \"index_key\": \"text\", \"index_value\": \"President\"}").getStatus());
+            service.search(FORCE, body + ", \"priority\": \"low\"}");
+            assertEquals(live.size(), output.getResultAsList().size());
+            assertTrue(snapshots.refresh(LuceneSearchTestFixtures.INDEX_NAME));
+            service.search(FORCE, body + ", \"priority\": \"low\"}");
+            assertEquals(live.size() + 1, output.getResultAsList().size());
+
+            assertEquals(400, service.search(FORCE, body + ", \"priority\": \"urgent\"}").getStatus());
+
+            // once the name is switched to a rebuilt index, the old index's snapshot is let go.
+            Map<String, String> rebuiltConfig = new HashMap<String, String>();
+            rebuiltConfig.put("analyzer", LuceneSearchTestFixtures.DEFAULT_ANALYZER);
+            Index<Node> rebuilt = graph.index().forNodes("rebuilt", rebuiltConfig);
+            LuceneSearch.textIndex(graph, rebuilt, other.getId(), "text", "President");
+            IndexAliases.switchTo(graph, LuceneSearchTestFixtures.INDEX_NAME, "rebuilt");
+            snapshots.refreshAll();
+            assertEquals(null, snapshots.acquire(LuceneSearchTestFixtures.INDEX_NAME));
+            assertEquals(0, new File(snapshotDir, LuceneSearchTestFixtures.INDEX_NAME).list().length);
+            IndexSnapshots.Snapshot snapshot = snapshots.acquire("rebuilt");
+            assertNotNull(snapshot);
+            snapshot.release();
+        } finally {
+            snapshots.stop();
+            FileUtils.deleteDirectory(snapshotDir);
+        }
+    }
+
+    @Test
+    public void sampleShouldPickSomeMatchesRepeatablyWithASeed() {
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}";
+        Response response = service.search(FORCE, body + "}");
+        assertEquals(200, response.getStatus());
+        List<Object> all = output.getResultAsList();
+
+        response = service.search(FORCE, body + ", \"sample\": 2, \"seed\": 42}");
+        assertEquals(200, response.getStatus());
+        List<Object> sample = output.getResultAsList();
+        assertEquals(2, sample.size());
+        assertTrue(selfs(all).containsAll(selfs(sample)));
+        response = service.search(FORCE, body + ", \"sample\": 2, \"seed\": 42}");
+        assertEquals(selfs(sample), selfs(output.getResultAsList()));
+
+        // asking for more than there are gets them all.
+        response = service.search(FORCE, body + ", \"sample\": 100}");
+        assertEquals(200, response.getStatus());
+        assertEquals(all.size(), output.getResultAsList().size());
+
+        response = service.search(FORCE, body + ", \"sample\": 2, \"collapse_on\": \"author\"}");
+        assertEquals(400, response.getStatus());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> selfs(List<Object> hits) {
+        List<Object> selfs = new ArrayList<Object>();
+        for (Object hit : hits) {
+            selfs.add(((Map<String, Object>)hit).get("self"));
+        }
+        return selfs;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void exportShouldStreamEveryMatchAndResumeFromItsCursor() throws IOException {
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"fields\": [\"text\"]," +
+            "\"query_spec\": {\"type\": \"TERM\", \"index_key\": \"text\", \"query\": \"President\"}";
+        List<Map<String, Object>> all = exportLines(service.export(body + "}"));
+        Map<String, Object> trailer = all.remove(all.size() - 1);
+        assertTrue(all.size() > 2);
+        assertEquals(all.size(), ((Number)trailer.get("count")).intValue());
+        assertEquals(Boolean.TRUE, trailer.get("done"));
+        for (Map<String, Object> line : all) {
+            assertTrue(((String)((Map<String, Object>)line.get("fields")).get("text")).contains("President"));
+        }
+
+        // two at a time, carrying on from each page's cursor, gets the same ids in the same order.
+        List<Object> paged = new ArrayList<Object>();
+        String cursor = null;
+        boolean done = false;
+        while (!done) {
+            String page = body + ", \"limit\": 2" + (cursor == null ? "" : ", \"cursor\": \"" + cursor + "\"") + "}";
+            List<Map<String, Object>> lines = exportLines(service.export(page));
+            trailer = lines.remove(lines.size() - 1);
+            assertTrue(lines.size() <= 2);
+            for (Map<String, Object> line : lines) {
+                paged.add(line.get("id"));
+            }
+            cursor = (String)trailer.get("cursor");
+            done = (Boolean)trailer.get("done");
+        }
+        List<Object> ids = new ArrayList<Object>();
+        for (Map<String, Object> line : all) {
+            ids.add(line.get("id"));
+        }
+        assertEquals(ids, paged);
+        // in node id order.
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(((Number)ids.get(i - 1)).longValue() < ((Number)ids.get(i)).longValue());
+        }
+        assertEquals(400, service.export(body + ", \"cursor\": \"nope\"}").getStatus());
+
+        assertEquals(400, service.export(body + ", \"index_name\": [\"content\", \"archive\"]}").getStatus());
+    }
+
+    @Test
+    public void exportShouldFindMoreLikeThisAcrossSegments() throws IOException {
+        GraphDatabaseService graph = database.getGraph();
+        Index<Node> index = graph.index().forNodes(LuceneSearchTestFixtures.INDEX_NAME);
+        // written in a transaction of its own, so into a segment of its own.
+        long nodeId = helper.createNode();
+        LuceneSearch.textIndex(graph, index, nodeId, "text", "Barack Obama spoke on Tuesday");
+        CapturingQuery capture = new CapturingQuery(new TermQuery(new Term(CapturingQuery.DOC_ID_KEY, "")));
+        try {
+            index.query(capture).close();
+            assertTrue(capture.getSearcher().getIndexReader().getSequentialSubReaders().length > 1);
+        } finally {
+            capture.release();
+        }
+
+        String body = "{" +
+            "\"index_name\": \"" + LuceneSearchTestFixtures.INDEX_NAME + "\"," +
+            "\"query_spec\": {\"type\": \"MLT\", \"node_id\": " + nodeId + ", \"index_keys\": [\"text\"]}}";
+        Response response = service.search(FORCE, body);
+        assertEquals(200, response.getStatus());
+        int hits = output.getResultAsList().size();
+        assertTrue(hits > 0);
+        // the same matches, though none are in the source node's segment.
+        List<Map<String, Object>> lines = exportLines(service.export(body));
+        lines.remove(lines.size() - 1);
+        assertEquals(hits, lines.size());
+        for (Map<String, Object> line : lines) {
+            assertTrue(((Number)line.get("id")).longValue() != nodeId);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> exportLines(Response response) throws IOException {
+        assertEquals(200, response.getStatus());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ((StreamingOutput)response.getEntity()).write(out);
+        List<Map<String, Object>> lines = new ArrayList<Map<String, Object>>();
+        for (String line : out.toString("UTF-8").split("\n")) {
+            lines.add(objectMapper.readValue(line, Map.class));
+        }
+        return lines;
+    }
+
     @Test
     public void numeric() {
       final Response response = service.search(FORCE, LuceneSearchTestFixtures.NUM_RANGE_SEARCH_FIXTURE);
@@ -54,6 +54,16 @@ public class LuceneSearchTestFixtures {
               "}" +
             "}";
 
+    public static final String SIM_PRESIDENT_OBAMA_FIELDS_FIXTURE = "{" +
+            "\"index_name\": \"" + INDEX_NAME + "\"," +
+            "\"fields\": [\"text\", \"timestamp\"]," +
+            "\"query_spec\": {" +
+              "\"type\": \"SIM\"," +
+              "\"index_key\": \"text\"," +
+              "\"query\": \"President Obama\"" + // match case coz we are testing with whitespace analyzer
+              "}" +
+            "}";
+
     public static final String PRESIDENT_OBAMA_MIN_SCORE_FIXTURE = "{" +
             "\"index_name\": \"" + INDEX_NAME + "\"," +
             "\"min_score\": 0.1," +
@@ -171,6 +181,53 @@ public class LuceneSearchTestFixtures {
               "}" +
             "}";
 
+    public static final String PROFILED_GEO_BOOLEAN_FIXTURE = "{" +
+            "\"index_name\": \"" + INDEX_NAME + "\"," +
+            "\"profile\": true," +
+            "\"query_spec\": {" +
+              "\"type\": \"BOOL\"," +
+              "\"clauses\": [" +
+                "{\"query_spec\": {" +
+                    "\"type\":\"GEO\"," +
+                    "\"lat\": 40.7142," + // new york
+                    "\"lon\": -74.0064," +
+                    "\"dist\": 300" +
+                    "}," +
+                  "\"occurs\": \"MUST\"" +
+                  "}," +
+                "{\"query_spec\": {" +
+                    "\"type\":\"TERM\"," +
+                    "\"index_key\": \"text\"," +
+                    "\"query\": \"Obama\"" +
+                    "}," +
+                  "\"occurs\": \"SHOULD\"" +
+                  "}" +
+                "]" +
+              "}" +
+            "}";
+
+    // President matches, ranked by how close they were to christmas. undated ones sink to the bottom.
+    public static final String FUNCTION_SCORE_RECENCY_FIXTURE = "{" +
+            "\"index_name\": \"" + INDEX_NAME + "\"," +
+            "\"limit\": 2," +
+            "\"query_spec\": {" +
+              "\"type\": \"FUNCTION_SCORE\"," +
+              "\"query\": {" +
+                "\"type\":\"TERM\"," +
+                "\"index_key\": \"text\"," +
+                "\"query\": \"President\"" +
+                "}," +
+              "\"functions\": [" +
+                "{\"type\": \"DECAY\"," +
+                  "\"index_key\": \"timestamp\"," +
+                  "\"origin\": " + christmas.get("timestamp") + "," +
+                  "\"scale\": " + 30L * 24 * 3600 * 1000 + "," + // a month
+                  "\"missing\": 0" +
+                  "}" +
+                "]" +
+              "}" +
+            "}";
+
     public static final String NUM_RANGE_SEARCH_FIXTURE = "{" +
             "\"index_name\": \"" + INDEX_NAME + "\"," +
             "\"min_score\": 0.1," +
@@ -0,0 +1,47 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.TreeMap;
+import java.util.SortedMap;
+
+import org.junit.Test;
+
+public class PrefixSuggesterTest {
+
+    private static PrefixSuggester suggester(Object... termWeights) {
+        SortedMap<String, Long> weights = new TreeMap<String, Long>();
+        for (int i = 0; i < termWeights.length; i += 2) {
+            weights.put((String)termWeights[i], ((Number)termWeights[i + 1]).longValue());
+        }
+        return PrefixSuggester.build(weights);
+    }
+
+    @Test
+    public void shouldCompleteHeaviestFirst() {
+        PrefixSuggester suggester = suggester("obama", 3, "obey", 7, "object", 1, "oboe", 5, "president", 9, "o", 2);
+        List<PrefixSuggester.Suggestion> suggestions = suggester.complete("ob", 3);
+        assertEquals(3, suggestions.size());
+        assertEquals("obey", suggestions.get(0).getTerm());
+        assertEquals("oboe", suggestions.get(1).getTerm());
+        assertEquals("obama", suggestions.get(2).getTerm());
+        assertEquals(7, suggestions.get(0).getWeight());
+    }
+
+    @Test
+    public void shouldCompleteNothingForUnknownPrefix() {
+        PrefixSuggester suggester = suggester("obama", 3, "president", 9);
+        assertEquals(0, suggester.complete("q", 10).size());
+        assertEquals(0, suggester.complete("zzz", 10).size());
+        assertEquals(0, PrefixSuggester.EMPTY.complete("a", 10).size());
+    }
+
+    @Test
+    public void shouldCompleteEverythingForEmptyPrefix() {
+        PrefixSuggester suggester = suggester("a", 1, "b", 4, "c", 2, "d", 3, "e", 5);
+        List<PrefixSuggester.Suggestion> suggestions = suggester.complete("", 10);
+        assertEquals(5, suggestions.size());
+        assertEquals("[e=5, b=4, d=3, c=2, a=1]", suggestions.toString());
+    }
+}
@@ -0,0 +1,75 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.neo4j.server.rest.repr.BadInputException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestDecoderTest {
+
+    private static InputStream stream(String body) throws Exception {
+        return new ByteArrayInputStream(body.getBytes("UTF-8"));
+    }
+
+    @Test
+    public void shouldDecodeNestedQuerySpec() throws Exception {
+        SearchRequest request = RequestDecoder.readSearchRequest(
+            stream(LuceneSearchTestFixtures.DISMAX_OBAMA_ROMNEY_FIXTURE));
+        assertEquals(LuceneSearchTestFixtures.INDEX_NAME, request.getIndexName());
+        assertEquals(0.1f, request.getMinScore(), 0.0001f);
+        assertEquals("DISMAX", request.getQuerySpec().get("type"));
+        List subqueries = (List)request.getQuerySpec().get("subqueries");
+        assertEquals(2, subqueries.size());
+        // nested specs should already be property maps, so the builder doesn't copy them.
+        assertTrue(subqueries.get(0) instanceof PropertyMap);
+        assertEquals("Obama", ((Map)subqueries.get(0)).get("query"));
+    }
+
+    @Test
+    public void shouldCollectGeoConstraints() throws Exception {
+        SearchRequest request = RequestDecoder.readSearchRequest(
+            stream(LuceneSearchTestFixtures.GEO_CONSTRAINED_FIXTURE));
+        PropertyMap<String, Double> radius = request.getGeoConstraints().getSearchRadius(
+            QueryBuilder.LAT_KEY, QueryBuilder.LON_KEY, QueryBuilder.DIST_KEY);
+        assertEquals(300d, radius.get(QueryBuilder.DIST_KEY), 0.0001d);
+    }
+
+    @Test
+    public void shouldReportMissingParameters() throws Exception {
+        SearchRequest request = RequestDecoder.readSearchRequest(stream("{\"index_name\": \"content\", \"query_spec\": null}"));
+        assertTrue(request.hasParameters("index_name"));
+        assertFalse(request.hasParameters("index_name", "query_spec"));
+    }
+
+    @Test
+    public void shouldIgnoreBadMinScore() throws Exception {
+        SearchRequest request = RequestDecoder.readSearchRequest(stream("{\"min_score\": \"omfg\"}"));
+        assertEquals(0f, request.getMinScore(), 0f);
+    }
+
+    @Test
+    public void shouldDecodeIndexRequest() throws Exception {
+        IndexRequest request = RequestDecoder.readIndexRequest(
+            stream("{\"index_name\": \"content\", \"node_id\": 12345678901, \"index_key\": \"age\", \"index_value\": 27}"));
+        assertEquals(12345678901L, request.getNodeId());
+        assertEquals("age", request.getIndexKey());
+        assertEquals(27, request.getIndexValue());
+    }
+
+    @Test(expected = BadInputException.class)
+    public void shouldRefuseTruncatedBody() throws Exception {
+        RequestDecoder.readSearchRequest(stream("{\"index_name\": \"content\", \"query_spec\": {\"type\": "));
+    }
+
+    @Test(expected = BadInputException.class)
+    public void shouldRefuseNonObjectQuerySpec() throws Exception {
+        RequestDecoder.readSearchRequest(stream("{\"index_name\": \"content\", \"query_spec\": \"SIM\"}"));
+    }
+}
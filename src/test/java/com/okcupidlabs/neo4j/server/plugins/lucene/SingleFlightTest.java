@@ -0,0 +1,86 @@
+package com.okcupidlabs.neo4j.server.plugins.lucene;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+    @Test
+    public void concurrentCallersShouldShareOneRun() throws Exception {
+        final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object result = new Object();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Future<Object> first = pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return flight.run("q", new Callable<Object>() {
+                        public Object call() throws Exception {
+                            release.await();
+                            return result;
+                        }
+                    });
+                }
+            });
+            while (!flight.isInFlight("q")) {
+                Thread.sleep(1);
+            }
+            Future<Object> second = pool.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    return flight.run("q", new Callable<Object>() {
+                        public Object call() {
+                            fail("an identical run was in flight");
+                            return null;
+                        }
+                    });
+                }
+            });
+            // give the second caller time to join before the first finishes.
+            while (flight.getShared() == 0) {
+                Thread.sleep(1);
+            }
+            release.countDown();
+            assertSame(result, first.get(5, TimeUnit.SECONDS));
+            assertSame(result, second.get(5, TimeUnit.SECONDS));
+            assertEquals(1, flight.getExecutions());
+            assertEquals(1, flight.getShared());
+            assertFalse(flight.isInFlight("q"));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void laterCallersShouldRunAgain() throws Exception {
+        SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final int[] runs = {0};
+        Callable<Integer> work = new Callable<Integer>() {
+            public Integer call() {
+                return ++runs[0];
+            }
+        };
+        assertEquals(1, (int)flight.run("q", work));
+        assertEquals(2, (int)flight.run("q", work));
+        assertEquals(2, flight.getExecutions());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void failuresShouldReachTheCaller() throws Exception {
+        new SingleFlight<String, Object>().run("q", new Callable<Object>() {
+            public Object call() {
+                throw new IllegalArgumentException("bad query");
+            }
+        });
+    }
+}